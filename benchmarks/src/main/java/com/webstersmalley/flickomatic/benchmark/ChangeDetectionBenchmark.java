@@ -0,0 +1,117 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import com.webstersmalley.flickomatic.FlatPhotoStore;
+import com.webstersmalley.flickomatic.PhotoInfo;
+import com.webstersmalley.flickomatic.PhotoManifest;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-photo work of deciding what to download on a run where nothing has changed. shouldDownload() is private to
+ * FlickrDownloader, so its two paths are measured through the same calls it makes: the manifest lookup, and the
+ * fallback of building the file's path and comparing its modification time with the photo's lastupdate time. Also
+ * measured are the other bits of per-photo string work: the original's url (String.format) and the paths of the three
+ * metadata files.
+ *
+ * Each operation handles the next photo of a library of the given size, all of it already downloaded.
+ *
+ * Run with: java -jar target/benchmarks.jar ChangeDetectionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeDetectionBenchmark {
+    private final static long LAST_UPDATE = 1381572000L;
+
+    @Param({"10000"})
+    private int photos;
+
+    private File directory;
+    private PhotoManifest manifest;
+    private FlatPhotoStore store;
+    private PhotoInfo[] photoInfos;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("flickomatic-bench").toFile();
+        File pictures = new File(directory, "pictures");
+        pictures.mkdir();
+        manifest = new PhotoManifest(new File(directory, "flickomatic.manifest"));
+        manifest.open();
+        store = new FlatPhotoStore(pictures, null);
+        photoInfos = new PhotoInfo[photos];
+        for (int i = 0; i < photos; i++) {
+            PhotoInfo photoInfo = new PhotoInfo(FlickrPayloads.photoId(1, i), String.valueOf(i % 9 + 1), "7000", "f6e5d4c3b2", "jpg");
+            photoInfo.setLastUpdate(LAST_UPDATE);
+            photoInfos[i] = photoInfo;
+            File file = store.getExistingFile(photoInfo);
+            file.createNewFile();
+            file.setLastModified(LAST_UPDATE * 1000 + 1000);
+            manifest.record(photoInfo.getId(), LAST_UPDATE, "jpg", PhotoManifest.Artifact.IMAGE, null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manifest.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private PhotoInfo nextPhoto() {
+        PhotoInfo photoInfo = photoInfos[next];
+        next = next + 1 == photoInfos.length ? 0 : next + 1;
+        return photoInfo;
+    }
+
+    @Benchmark
+    public boolean manifestLookup() {
+        PhotoInfo photoInfo = nextPhoto();
+        return manifest.isCurrent(photoInfo.getId(), photoInfo.getLastUpdate(), PhotoManifest.Artifact.IMAGE);
+    }
+
+    /**
+     * What shouldDownload() does for an artifact the manifest doesn't know about.
+     */
+    @Benchmark
+    public boolean fileTimestamp() {
+        PhotoInfo photoInfo = nextPhoto();
+        File file = store.getExistingFile(photoInfo);
+        return !file.exists() || file.lastModified() <= photoInfo.getLastUpdate() * 1000;
+    }
+
+    @Benchmark
+    public String originalUrl() {
+        return nextPhoto().getOriginalUrl();
+    }
+
+    @Benchmark
+    public File[] metadataPaths() {
+        String photoId = nextPhoto().getId();
+        return new File[] {
+                new File(directory, photoId + ".info.xml"),
+                new File(directory, photoId + ".comments.xml"),
+                new File(directory, photoId + ".contexts.xml")
+        };
+    }
+}
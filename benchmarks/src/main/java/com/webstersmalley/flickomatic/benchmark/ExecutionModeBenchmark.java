@@ -0,0 +1,113 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import com.webstersmalley.flickomatic.DownloadScheduler;
+import com.webstersmalley.flickomatic.HttpTransport;
+import com.webstersmalley.flickomatic.ImageTransfer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a batch of images from a simulated high-latency server through a transfer stage, comparing the fixed
+ * thread pool ("pool", flickomatic.threads workers) with virtual threads ("virtual", up to
+ * flickomatic.virtualthreads.concurrency at once). Each operation is one whole batch.
+ *
+ * Run with: java -jar target/benchmarks.jar ExecutionModeBenchmark
+ * or e.g. -p threads=256 to compare with a pool as wide as the virtual thread limit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+    @Param({"pool", "virtual"})
+    private String mode;
+
+    @Param({"100"})
+    private int latencyMillis;
+
+    @Param({"1000"})
+    private int photos;
+
+    @Param({"65536"})
+    private int imageSize;
+
+    @Param({"8"})
+    private int threads;
+
+    @Param({"256"})
+    private int concurrency;
+
+    private FlickrSimulator server;
+    private HttpTransport httpTransport;
+    private ImageTransfer imageTransfer;
+    private File directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FlickrSimulator();
+        server.setLatencyMillis(latencyMillis);
+        server.setImageSize(imageSize);
+        server.start();
+        // Big enough that the connection pool isn't what limits either mode
+        httpTransport = new HttpTransport();
+        httpTransport.setMaxConnections(Math.max(threads, concurrency));
+        httpTransport.setMaxConnectionsPerHost(Math.max(threads, concurrency));
+        imageTransfer = new ImageTransfer();
+        imageTransfer.setHttpTransport(httpTransport);
+        directory = Files.createTempDirectory("flickomatic-bench").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        httpTransport.shutdown();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public int downloadBatch() {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        DownloadScheduler.Stage transfer = "virtual".equals(mode)
+                ? scheduler.addVirtualStage("transfer", concurrency)
+                : scheduler.addStage("transfer", threads, photos);
+        for (int i = 0; i < photos; i++) {
+            final String photoId = String.valueOf(i);
+            scheduler.submit(transfer, "benchmark", new Runnable() {
+                public void run() {
+                    try {
+                        imageTransfer.download(server.getImageUrl(photoId), new File(directory, photoId + ".jpg"));
+                    } catch (IOException e) {
+                        throw new RuntimeException("Error downloading " + photoId + ": " + e.getMessage(), e);
+                    }
+                }
+            });
+        }
+        scheduler.setEnumerated("benchmark");
+        scheduler.awaitCompletion();
+        if (scheduler.getFailureCount() > 0) {
+            throw new IllegalStateException(scheduler.getFailureCount() + " downloads failed");
+        }
+        return photos;
+    }
+}
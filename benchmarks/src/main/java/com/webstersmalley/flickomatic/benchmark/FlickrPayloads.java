@@ -0,0 +1,70 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+/**
+ * Synthetic Flickr API responses, shaped like the real thing (same elements, attributes and typical sizes) so the
+ * benchmarks exercise realistic documents.
+ */
+public class FlickrPayloads {
+    private FlickrPayloads() {
+
+    }
+
+    /**
+     * @return a flickr.photosets.getPhotos page with the given number of photos
+     */
+    public static String setPage(String setId, int page, int pages, int photos) {
+        StringBuilder sb = new StringBuilder(photos * 200);
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n");
+        sb.append("<photoset id=\"").append(setId).append("\" primary=\"").append(photoId(page, 0))
+                .append("\" owner=\"12345678@N00\" ownername=\"flickomatic\" page=\"").append(page)
+                .append("\" per_page=\"").append(photos).append("\" perpage=\"").append(photos)
+                .append("\" pages=\"").append(pages).append("\" total=\"").append(pages * photos)
+                .append("\" title=\"Holiday ").append(setId).append("\">\n");
+        for (int i = 0; i < photos; i++) {
+            sb.append("\t<photo id=\"").append(photoId(page, i)).append("\" secret=\"a1b2c3d4e5\" server=\"7")
+                    .append(i % 10).append("23\" farm=\"").append(i % 9 + 1)
+                    .append("\" title=\"IMG_").append(i).append("\" isprimary=\"").append(i == 0 ? 1 : 0)
+                    .append("\" ispublic=\"0\" isfriend=\"1\" isfamily=\"1\" />\n");
+        }
+        sb.append("</photoset>\n</rsp>\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return a flickr.photos.getInfo response with a few tags, notes and urls
+     */
+    public static String photoInfo(String photoId, long lastUpdate) {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n");
+        sb.append("<photo id=\"").append(photoId).append("\" secret=\"a1b2c3d4e5\" server=\"7723\" farm=\"8\"")
+                .append(" dateuploaded=\"1381572000\" isfavorite=\"0\" license=\"0\" safety_level=\"0\" rotation=\"0\"")
+                .append(" originalsecret=\"f6e5d4c3b2\" originalformat=\"jpg\" views=\"42\" media=\"photo\">\n");
+        sb.append("\t<owner nsid=\"12345678@N00\" username=\"flickomatic\" realname=\"Flick O'Matic\" location=\"\" iconserver=\"0\" iconfarm=\"0\" path_alias=\"\" />\n");
+        sb.append("\t<title>IMG_").append(photoId).append("</title>\n");
+        sb.append("\t<description>A photo taken on holiday, with a reasonably long description attached to it.</description>\n");
+        sb.append("\t<visibility ispublic=\"0\" isfriend=\"1\" isfamily=\"1\" />\n");
+        sb.append("\t<dates posted=\"1381572000\" taken=\"2013-10-12 10:00:00\" takengranularity=\"0\" takenunknown=\"0\" lastupdate=\"")
+                .append(lastUpdate).append("\" />\n");
+        sb.append("\t<permissions permcomment=\"3\" permaddmeta=\"2\" />\n");
+        sb.append("\t<editability cancomment=\"1\" canaddmeta=\"1\" />\n");
+        sb.append("\t<publiceditability cancomment=\"1\" canaddmeta=\"0\" />\n");
+        sb.append("\t<usage candownload=\"1\" canblog=\"1\" canprint=\"1\" canshare=\"1\" />\n");
+        sb.append("\t<comments>2</comments>\n");
+        sb.append("\t<notes>\n\t\t<note id=\"313\" author=\"12345678@N00\" authorname=\"flickomatic\" x=\"10\" y=\"10\" w=\"50\" h=\"50\">Look at this</note>\n\t</notes>\n");
+        sb.append("\t<people haspeople=\"0\" />\n");
+        sb.append("\t<tags>\n");
+        for (String tag : new String[]{"holiday", "beach", "sunset", "family", "2013"}) {
+            sb.append("\t\t<tag id=\"1234-").append(photoId).append("-").append(tag)
+                    .append("\" author=\"12345678@N00\" authorname=\"flickomatic\" raw=\"").append(tag)
+                    .append("\" machine_tag=\"0\">").append(tag).append("</tag>\n");
+        }
+        sb.append("\t</tags>\n");
+        sb.append("\t<urls>\n\t\t<url type=\"photopage\">https://www.flickr.com/photos/flickomatic/").append(photoId).append("/</url>\n\t</urls>\n");
+        sb.append("</photo>\n</rsp>\n");
+        return sb.toString();
+    }
+
+    public static String photoId(int page, int index) {
+        return String.valueOf(10000000000L + page * 1000L + index);
+    }
+}
@@ -0,0 +1,457 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for Flickr, so the whole download stack can be measured without an account or a network. It
+ * serves a synthetic library of sets x photos-per-set (plus some photos not in any set) through the REST methods the
+ * downloader uses, and the original images through an image endpoint:
+ *
+ * - /services/rest: flickr.test.login, photosets.getList, photosets.getPhotos, photos.getNotInSet,
+ * photos.recentlyUpdated, photos.search, photos.getInfo, photos.comments.getList and photos.getAllContexts, paged and
+ * with the last_update, original_format, date_upload and tags extras like the real thing. Photos are uploaded a day
+ * apart, oldest first, and tagged t0 to t9 in turn; search filters on upload date and tags. Every photo is a photo, so
+ * media=videos finds nothing. OAuth signatures aren't checked.
+ * - /images/{server}/{id}_{secret}_o.{format}: synthetic image bytes, the same for a given photo every time. Point
+ * flickomatic.image.urlformat at getImageUrlFormat().
+ *
+ * Every response waits for the configured latency before starting, and bodies are sent no faster than the configured
+ * bandwidth. A configurable fraction of requests fail: API calls with HTTP 503 or Flickr's error 105, images with
+ * HTTP 500. Requests are handled on virtual threads, so the simulator itself can keep thousands of slow responses
+ * going and the client is what gets measured.
+ */
+public class FlickrSimulator {
+    private final static long FIRST_PHOTO_ID = 10000000000L;
+    private final static String SET_ID_PREFIX = "7215760000";
+    private final static int CHUNK_SIZE = 16384;
+    // 2010-01-01, when the first photo was uploaded
+    private final static long FIRST_UPLOAD = 1262304000L;
+    private final static long DAY = 86400L;
+
+    private int sets = 10;
+    private int photosPerSet = 100;
+    private int photosNotInSet = 10;
+    private int latencyMillis = 0;
+    private long bytesPerSecond = 0;
+    private double errorRate = 0;
+    private int imageSize = 65536;
+    private long lastUpdate = 1381572000L;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicLong apiRequests = new AtomicLong();
+    private final AtomicLong imageRequests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    // System.nanoTime() when the first api request arrived, or 0 if none has
+    private final AtomicLong firstApiRequest = new AtomicLong();
+
+    public void setSets(int sets) {
+        this.sets = sets;
+    }
+
+    public void setPhotosPerSet(int photosPerSet) {
+        this.photosPerSet = photosPerSet;
+    }
+
+    public void setPhotosNotInSet(int photosNotInSet) {
+        this.photosNotInSet = photosNotInSet;
+    }
+
+    /**
+     * @param latencyMillis how long every request waits before responding
+     */
+    public void setLatencyMillis(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param bytesPerSecond the maximum rate at which each response body is sent, or 0 for no limit
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param errorRate the fraction of requests (0 to 1) that fail
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setImageSize(int imageSize) {
+        this.imageSize = imageSize;
+    }
+
+    /**
+     * @param lastUpdate the lastupdate time of every photo, in seconds since the epoch
+     */
+    public void setLastUpdate(long lastUpdate) {
+        this.lastUpdate = lastUpdate;
+    }
+
+    public int getTotalPhotos() {
+        return sets * photosPerSet + photosNotInSet;
+    }
+
+    public long getApiRequests() {
+        return apiRequests.get();
+    }
+
+    public long getImageRequests() {
+        return imageRequests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return System.nanoTime() when the first api request arrived (since the last reset), or 0 if none has
+     */
+    public long getFirstApiRequestNanos() {
+        return firstApiRequest.get();
+    }
+
+    /**
+     * Zeroes the request and error counts, for reusing the simulator between runs.
+     */
+    public void resetCounters() {
+        apiRequests.set(0);
+        imageRequests.set(0);
+        errors.set(0);
+        firstApiRequest.set(0);
+    }
+
+    public void start() throws IOException {
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        server.setExecutor(executor);
+        server.createContext("/services/rest", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleApi(exchange);
+            }
+        });
+        server.createContext("/images/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleImage(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the value for flickomatic.api.url
+     */
+    public String getApiUrl() {
+        return getBaseUrl() + "/services/rest";
+    }
+
+    /**
+     * @return the value for flickomatic.image.urlformat (farm is ignored)
+     */
+    public String getImageUrlFormat() {
+        return getBaseUrl() + "/images/%s/%s/%s_%s_o.%s";
+    }
+
+    /**
+     * @return a url for the given photo's image
+     */
+    public String getImageUrl(String photoId) {
+        return String.format(getImageUrlFormat(), 1, getServer(0), photoId, getOriginalSecret(photoId), "jpg");
+    }
+
+    private boolean shouldFail() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    private void waitForLatency() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Sends a body in chunks, pausing as needed to stay within the bandwidth limit.
+     */
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            long start = System.nanoTime();
+            for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                os.write(body, offset, Math.min(CHUNK_SIZE, body.length - offset));
+                if (bytesPerSecond > 0) {
+                    long due = start + (offset + CHUNK_SIZE) * 1000000000L / bytesPerSecond;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            os.close();
+        }
+    }
+
+    private void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=utf-8");
+        send(exchange, status, xml.getBytes("UTF-8"));
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static int getInt(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private void handleApi(HttpExchange exchange) throws IOException {
+        firstApiRequest.compareAndSet(0, System.nanoTime());
+        apiRequests.incrementAndGet();
+        waitForLatency();
+        if (shouldFail()) {
+            errors.incrementAndGet();
+            if (ThreadLocalRandom.current().nextBoolean()) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                sendXml(exchange, 503, "Service Unavailable");
+            } else {
+                sendXml(exchange, 200, fail(105, "Service currently unavailable"));
+            }
+            return;
+        }
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        String method = params.get("method");
+        String response;
+        if ("flickr.test.login".equals(method)) {
+            response = ok("<user id=\"12345678@N00\"><username>flickomatic</username></user>");
+        } else if ("flickr.photosets.getList".equals(method)) {
+            response = getSetList(params);
+        } else if ("flickr.photosets.getPhotos".equals(method)) {
+            response = getSetPhotos(params);
+        } else if ("flickr.photos.getNotInSet".equals(method)) {
+            response = getPhotos(params, sets * photosPerSet, photosNotInSet);
+        } else if ("flickr.photos.recentlyUpdated".equals(method)) {
+            boolean updated = lastUpdate >= Long.parseLong(params.get("min_date"));
+            response = getPhotos(params, 0, updated ? getTotalPhotos() : 0);
+        } else if ("flickr.photos.search".equals(method)) {
+            response = search(params);
+        } else if ("flickr.photos.getInfo".equals(method)) {
+            response = FlickrPayloads.photoInfo(params.get("photo_id"), lastUpdate)
+                    .replace("originalsecret=\"f6e5d4c3b2\"", "originalsecret=\"" + getOriginalSecret(params.get("photo_id")) + "\"");
+        } else if ("flickr.photos.comments.getList".equals(method)) {
+            response = ok("<comments photo_id=\"" + params.get("photo_id") + "\"><comment id=\"1\" author=\"87654321@N00\""
+                    + " authorname=\"someone\" datecreate=\"1381572600\">Lovely shot</comment></comments>");
+        } else if ("flickr.photos.getAllContexts".equals(method)) {
+            long index = Long.parseLong(params.get("photo_id")) - FIRST_PHOTO_ID;
+            response = index < sets * photosPerSet
+                    ? ok("<set id=\"" + getSetId((int) (index / photosPerSet)) + "\" title=\"Set\" />")
+                    : ok("");
+        } else {
+            response = fail(112, "Method &quot;" + method + "&quot; not found");
+        }
+        sendXml(exchange, 200, response);
+    }
+
+    private static String ok(String contents) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n" + contents + "\n</rsp>\n";
+    }
+
+    private static String fail(int code, String message) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"fail\">\n<err code=\"" + code + "\" msg=\"" + message + "\" />\n</rsp>\n";
+    }
+
+    private static String getSetId(int set) {
+        return SET_ID_PREFIX + String.format("%05d", set);
+    }
+
+    private static String getPhotoId(long index) {
+        return String.valueOf(FIRST_PHOTO_ID + index);
+    }
+
+    private static String getOriginalSecret(String photoId) {
+        return Integer.toHexString(photoId.hashCode() | 0x10000000);
+    }
+
+    private static String getServer(long index) {
+        return String.valueOf(7000 + index % 100);
+    }
+
+    private String getSetList(Map<String, String> params) {
+        int perPage = getInt(params, "per_page", 500);
+        int page = getInt(params, "page", 1);
+        StringBuilder sb = new StringBuilder();
+        sb.append("<photosets page=\"").append(page).append("\" pages=\"").append(Math.max(1, (sets + perPage - 1) / perPage))
+                .append("\" perpage=\"").append(perPage).append("\" total=\"").append(sets).append("\">\n");
+        for (int set = (page - 1) * perPage; set < Math.min(sets, page * perPage); set++) {
+            sb.append("\t<photoset id=\"").append(getSetId(set)).append("\" primary=\"").append(getPhotoId((long) set * photosPerSet))
+                    .append("\" photos=\"").append(photosPerSet).append("\" videos=\"0\">")
+                    .append("<title>Set ").append(set).append("</title><description /></photoset>\n");
+        }
+        return ok(sb.append("</photosets>").toString());
+    }
+
+    private String getSetPhotos(Map<String, String> params) {
+        String setId = params.get("photoset_id");
+        int set;
+        try {
+            set = Integer.parseInt(setId.substring(SET_ID_PREFIX.length()));
+        } catch (RuntimeException e) {
+            return fail(1, "Photoset not found");
+        }
+        if (!setId.startsWith(SET_ID_PREFIX) || set >= sets) {
+            return fail(1, "Photoset not found");
+        }
+        return getPhotos(params, (long) set * photosPerSet, photosPerSet).replace("<photos ", "<photoset id=\"" + setId + "\" ")
+                .replace("</photos>", "</photoset>");
+    }
+
+    /**
+     * The user's photos uploaded within min_upload_date..max_upload_date with any of the tags, in upload order or (with
+     * sort=date-posted-desc) newest first.
+     */
+    private String search(Map<String, String> params) {
+        long minDate = params.get("min_upload_date") == null ? Long.MIN_VALUE : Long.parseLong(params.get("min_upload_date"));
+        long maxDate = params.get("max_upload_date") == null ? Long.MAX_VALUE : Long.parseLong(params.get("max_upload_date"));
+        List<String> tags = params.get("tags") == null ? null : Arrays.asList(params.get("tags").split(","));
+        final List<Long> found = new ArrayList<Long>();
+        for (long index = 0; index < getTotalPhotos(); index++) {
+            long uploaded = FIRST_UPLOAD + index * DAY;
+            if (uploaded >= minDate && uploaded <= maxDate && (tags == null || tags.contains(getTag(index)))) {
+                found.add(index);
+            }
+        }
+        if ("date-posted-desc".equals(params.get("sort"))) {
+            Collections.reverse(found);
+        }
+        return getPhotos(params, found.size(), new IndexList() {
+            public long get(int i) {
+                return found.get(i);
+            }
+        });
+    }
+
+    private static String getTag(long index) {
+        return "t" + index % 10;
+    }
+
+    private interface IndexList {
+        long get(int i);
+    }
+
+    /**
+     * @return one page of a photo list covering the given range of photo indexes
+     */
+    private String getPhotos(Map<String, String> params, final long first, int count) {
+        return getPhotos(params, count, new IndexList() {
+            public long get(int i) {
+                return first + i;
+            }
+        });
+    }
+
+    /**
+     * @return one page of a photo list of the given photo indexes
+     */
+    private String getPhotos(Map<String, String> params, int count, IndexList indexes) {
+        if ("videos".equals(params.get("media"))) {
+            count = 0;
+        }
+        int perPage = getInt(params, "per_page", 100);
+        int page = getInt(params, "page", 1);
+        String extras = params.get("extras") == null ? "" : params.get("extras");
+        boolean lastUpdateExtra = extras.contains("last_update");
+        boolean formatExtra = extras.contains("original_format");
+        boolean uploadExtra = extras.contains("date_upload");
+        boolean tagsExtra = extras.contains("tags");
+        boolean mediaExtra = extras.contains("media");
+        StringBuilder sb = new StringBuilder(perPage * 200);
+        sb.append("<photos page=\"").append(page).append("\" pages=\"").append(Math.max(1, (count + perPage - 1) / perPage))
+                .append("\" perpage=\"").append(perPage).append("\" total=\"").append(count).append("\">\n");
+        for (int i = (page - 1) * perPage; i < Math.min(count, page * perPage); i++) {
+            long index = indexes.get(i);
+            String photoId = getPhotoId(index);
+            sb.append("\t<photo id=\"").append(photoId).append("\" secret=\"a1b2c3d4e5\" server=\"").append(getServer(index))
+                    .append("\" farm=\"").append(index % 9 + 1).append("\" title=\"IMG_").append(index).append("\" isprimary=\"0\"");
+            if (lastUpdateExtra) {
+                sb.append(" lastupdate=\"").append(lastUpdate).append("\"");
+            }
+            if (formatExtra) {
+                sb.append(" originalsecret=\"").append(getOriginalSecret(photoId)).append("\" originalformat=\"jpg\"");
+            }
+            if (uploadExtra) {
+                sb.append(" dateupload=\"").append(FIRST_UPLOAD + index * DAY).append("\"");
+            }
+            if (mediaExtra) {
+                sb.append(" media=\"photo\"");
+            }
+            if (tagsExtra) {
+                sb.append(" tags=\"").append(getTag(index)).append("\"");
+            }
+            sb.append(" />\n");
+        }
+        return ok(sb.append("</photos>").toString());
+    }
+
+    private void handleImage(HttpExchange exchange) throws IOException {
+        imageRequests.incrementAndGet();
+        waitForLatency();
+        if (shouldFail()) {
+            errors.incrementAndGet();
+            send(exchange, 500, new byte[0]);
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        byte[] image = new byte[imageSize];
+        // Different for every photo, so a content-addressed store doesn't collapse the whole library into one blob
+        ThreadLocalRandom.current().nextBytes(image);
+        byte[] nameBytes = name.getBytes("UTF-8");
+        System.arraycopy(nameBytes, 0, image, 0, Math.min(nameBytes.length, image.length));
+        exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+        send(exchange, 200, image);
+    }
+}
@@ -0,0 +1,81 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import com.webstersmalley.flickomatic.XMLUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The writer stage's work for an info file: formatting the getInfo response's photo element as indented XML. Compares
+ * the original writeNodeToFile(), which looked up a TransformerFactory and created a Transformer for every file, with
+ * XMLUtils.nodeToString(), which keeps a transformer per thread. The "writeInfo" pair include parsing the response
+ * too, which is the whole of what the writer does before handing the string to the metadata store.
+ *
+ * Run with: java -jar target/benchmarks.jar MetadataWriteBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataWriteBenchmark {
+    private String photoInfo;
+    private Node photo;
+
+    @Setup
+    public void setUp() {
+        photoInfo = FlickrPayloads.photoInfo(FlickrPayloads.photoId(1, 0), 1381572000L);
+        photo = XMLUtils.getDocumentFromString(photoInfo).getElementsByTagName("photo").item(0);
+    }
+
+    /**
+     * writeNodeToFile() as it was, less the write itself.
+     */
+    private static String legacyNodeToString(Node node) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        StreamResult result = new StreamResult(new StringWriter());
+        transformer.transform(new DOMSource(node), result);
+        return result.getWriter().toString();
+    }
+
+    @Benchmark
+    public String formatLegacy() throws Exception {
+        return legacyNodeToString(photo);
+    }
+
+    @Benchmark
+    public String formatCachedTransformer() {
+        return XMLUtils.nodeToString(photo);
+    }
+
+    @Benchmark
+    public String writeInfoLegacy() throws Exception {
+        Document doc = XMLUtils.getDocumentFromString(photoInfo);
+        return legacyNodeToString(doc.getElementsByTagName("photo").item(0));
+    }
+
+    @Benchmark
+    public String writeInfoCachedTransformer() {
+        Document doc = XMLUtils.getDocumentFromString(photoInfo);
+        return XMLUtils.nodeToString(doc.getElementsByTagName("photo").item(0));
+    }
+}
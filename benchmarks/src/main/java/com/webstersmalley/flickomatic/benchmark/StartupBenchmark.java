@@ -0,0 +1,128 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how long the launcher takes to get going: a fresh JVM is started for every run, and the time from starting
+ * it to the simulator (see FlickrSimulator) receiving the first API request is reported, along with the time to the
+ * end of the run. The library is small and already downloaded, like a typical cron run, so startup is most of the
+ * cost. Each mode is run several times and the median and best are reported:
+ *
+ *   spring - the usual Spring context from beans.xml
+ *   light  - the services wired directly (Launcher --light)
+ *
+ * Run with:
+ *
+ *   java -cp target/benchmarks.jar com.webstersmalley.flickomatic.benchmark.StartupBenchmark
+ *
+ * Settings (defaults in brackets): bench.runs (5), bench.modes (spring,light), bench.classpath for the launched JVMs
+ * (this JVM's classpath) and bench.jvmargs, extra options for the launched JVMs, e.g. to try a class data sharing
+ * archive: -Dbench.jvmargs=-XX:SharedArchiveFile=flickomatic.jsa
+ */
+public class StartupBenchmark {
+    private static List<String> command(String mode) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        String jvmArgs = System.getProperty("bench.jvmargs", "").trim();
+        if (!jvmArgs.isEmpty()) {
+            command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("bench.classpath", System.getProperty("java.class.path")));
+        command.add("com.webstersmalley.flickomatic.Launcher");
+        if ("light".equals(mode)) {
+            command.add("--light");
+        }
+        return command;
+    }
+
+    /**
+     * Runs the launcher once.
+     *
+     * @return the milliseconds to the first API request and to the end of the run
+     */
+    private static double[] launch(FlickrSimulator simulator, File home, String mode) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command(mode));
+        builder.directory(home);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(home, mode + ".log"));
+        simulator.resetCounters();
+        long start = System.nanoTime();
+        Process process = builder.start();
+        int exitCode = process.waitFor();
+        long end = System.nanoTime();
+        if (exitCode != 0 || simulator.getFirstApiRequestNanos() == 0) {
+            throw new IllegalStateException("Launcher (" + mode + ") failed with exit code " + exitCode + ": see " + new File(home, mode + ".log"));
+        }
+        return new double[]{(simulator.getFirstApiRequestNanos() - start) / 1e6, (end - start) / 1e6};
+    }
+
+    private static double median(List<Double> values) {
+        List<Double> sorted = new ArrayList<Double>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int runs = Integer.getInteger("bench.runs", 5);
+        String[] modes = System.getProperty("bench.modes", "spring,light").split(",");
+
+        FlickrSimulator simulator = new FlickrSimulator();
+        simulator.setSets(1);
+        simulator.setPhotosPerSet(10);
+        simulator.setPhotosNotInSet(0);
+        simulator.setImageSize(4096);
+        simulator.start();
+
+        File home = Files.createTempDirectory("flickomatic-startup").toFile();
+        boolean keep = false;
+        try {
+            File authfile = new File(home, "auth");
+            FileUtils.writeStringToFile(authfile, "simulated-token,simulated-secret", "UTF-8");
+            String properties = "flickomatic.api.url=" + simulator.getApiUrl() + "\n"
+                    + "flickomatic.api.key=simulated-key\n"
+                    + "flickomatic.api.secret=simulated-secret\n"
+                    + "flickomatic.image.urlformat=" + simulator.getImageUrlFormat() + "\n"
+                    + "flickomatic.home.authfile=" + authfile.getAbsolutePath() + "\n"
+                    + "flickomatic.home.savedir.pictures=" + new File(home, "pictures").getAbsolutePath() + "\n"
+                    + "flickomatic.home.savedir.metadata=" + new File(home, "metadata").getAbsolutePath() + "\n"
+                    + "flickomatic.fulldownload=false\n"
+                    + "flickomatic.metrics.interval=0\n"
+                    + "flickomatic.api.maxrate=1000000\n";
+            FileUtils.writeStringToFile(new File(home, "flickomatic.properties"), properties.replace("\\", "\\\\"), "UTF-8");
+
+            // The first run downloads the library, so the measured runs only have to check it
+            launch(simulator, home, modes[0]);
+
+            System.out.println(String.format("%d runs per mode%s", runs,
+                    System.getProperty("bench.jvmargs", "").isEmpty() ? "" : ", with " + System.getProperty("bench.jvmargs")));
+            for (String mode : modes) {
+                List<Double> firstRequest = new ArrayList<Double>();
+                List<Double> total = new ArrayList<Double>();
+                for (int i = 0; i < runs; i++) {
+                    double[] times = launch(simulator, home, mode);
+                    firstRequest.add(times[0]);
+                    total.add(times[1]);
+                }
+                System.out.println(String.format("  %-8s first request: median %6.0f ms, best %6.0f ms; whole run: median %6.0f ms, best %6.0f ms",
+                        mode, median(firstRequest), Collections.min(firstRequest), median(total), Collections.min(total)));
+            }
+        } catch (IllegalStateException e) {
+            keep = true;
+            throw e;
+        } finally {
+            simulator.stop();
+            if (!keep) {
+                FileUtils.deleteDirectory(home);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import com.webstersmalley.flickomatic.FlickrDownloader;
+import com.webstersmalley.flickomatic.Metrics;
+import org.apache.commons.io.FileUtils;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Runs a complete download of a simulated library (see FlickrSimulator) through the real Spring wiring, API client,
+ * pipeline and stores, and reports photos per second, API latency by method and peak heap. Nothing talks to Flickr,
+ * so the numbers are repeatable and can be compared between changes or settings.
+ *
+ * This measures a whole run end to end rather than a method in a loop, so it's a plain main class rather than a JMH
+ * benchmark. Run with:
+ *
+ *   java -cp target/benchmarks.jar com.webstersmalley.flickomatic.benchmark.ThroughputBenchmark
+ *
+ * The simulated library and network are set with system properties (defaults in brackets): bench.sets (20),
+ * bench.photosperset (100), bench.notinset (50), bench.latency in ms (50), bench.bandwidth in bytes/s per response
+ * (0, unlimited), bench.errorrate (0) and bench.imagesize (65536). Any flickomatic.* property can be set the same way,
+ * e.g. -Dflickomatic.virtualthreads=true or -Dflickomatic.store=content.
+ */
+public class ThroughputBenchmark {
+    private final static double MB = 1024 * 1024;
+
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the peaks of the heap pools, which is an upper bound on the actual peak heap use
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public static void main(String[] args) throws IOException {
+        FlickrSimulator simulator = new FlickrSimulator();
+        simulator.setSets(Integer.getInteger("bench.sets", 20));
+        simulator.setPhotosPerSet(Integer.getInteger("bench.photosperset", 100));
+        simulator.setPhotosNotInSet(Integer.getInteger("bench.notinset", 50));
+        simulator.setLatencyMillis(Integer.getInteger("bench.latency", 50));
+        simulator.setBytesPerSecond(Long.getLong("bench.bandwidth", 0L));
+        simulator.setErrorRate(Double.parseDouble(System.getProperty("bench.errorrate", "0")));
+        simulator.setImageSize(Integer.getInteger("bench.imagesize", 65536));
+        simulator.start();
+
+        File home = Files.createTempDirectory("flickomatic-throughput").toFile();
+        try {
+            File authfile = new File(home, "auth");
+            FileUtils.writeStringToFile(authfile, "simulated-token,simulated-secret", "UTF-8");
+            setDefault("flickomatic.api.url", simulator.getApiUrl());
+            setDefault("flickomatic.api.key", "simulated-key");
+            setDefault("flickomatic.api.secret", "simulated-secret");
+            setDefault("flickomatic.image.urlformat", simulator.getImageUrlFormat());
+            setDefault("flickomatic.home.authfile", authfile.getAbsolutePath());
+            setDefault("flickomatic.home.savedir.pictures", new File(home, "pictures").getAbsolutePath());
+            setDefault("flickomatic.home.savedir.metadata", new File(home, "metadata").getAbsolutePath());
+            setDefault("flickomatic.fulldownload", "true");
+            setDefault("flickomatic.metrics.interval", "0");
+            // The simulator doesn't have Flickr's rate limit, so don't pace requests to it
+            setDefault("flickomatic.api.maxrate", "1000000");
+
+            ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("beans.xml");
+            try {
+                FlickrDownloader downloader = context.getBean("flickrDownloader", FlickrDownloader.class);
+                System.gc();
+                resetPeakHeap();
+                long start = System.nanoTime();
+                downloader.downloadAllSets();
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                Metrics metrics = Metrics.get();
+                System.out.println(String.format("Library: %d photos in %d sets; latency %d ms, error rate %s",
+                        simulator.getTotalPhotos(), Integer.getInteger("bench.sets", 20), Integer.getInteger("bench.latency", 50),
+                        System.getProperty("bench.errorrate", "0")));
+                System.out.println(String.format("Run: %.2f s, %.1f photos/s, %.2f MB/s",
+                        seconds, simulator.getTotalPhotos() / seconds, metrics.getBytesTransferred() / MB / seconds));
+                System.out.println(String.format("Requests: %d api, %d image, %d simulated errors, %d failed downloads",
+                        simulator.getApiRequests(), simulator.getImageRequests(), simulator.getErrors(), metrics.getFailed()));
+                System.out.println(String.format("Peak heap: %.1f MB", getPeakHeap() / MB));
+                Map<String, Long> calls = metrics.getApiCalls();
+                Map<String, Double> p50 = metrics.getApiLatencyP50Millis();
+                Map<String, Double> p99 = metrics.getApiLatencyP99Millis();
+                for (String method : calls.keySet()) {
+                    System.out.println(String.format("  %-32s %6d calls, p50 %7.1f ms, p99 %7.1f ms",
+                            method, calls.get(method), p50.get(method), p99.get(method)));
+                }
+            } finally {
+                context.close();
+            }
+        } finally {
+            simulator.stop();
+            FileUtils.deleteDirectory(home);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.webstersmalley.flickomatic.benchmark;
+
+import com.webstersmalley.flickomatic.PhotoInfo;
+import com.webstersmalley.flickomatic.XMLUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the original DOM/XPath parsing (a new DocumentBuilderFactory, XPathFactory and compiled expression per call)
+ * with the cached DOM path and the streaming path now behind XMLUtils, for a page of a set, a getInfo response and the
+ * single attribute read from a flickr.test.login response.
+ *
+ * Run with: java -jar target/benchmarks.jar XMLParsingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLParsingBenchmark {
+    @Param({"100", "500"})
+    private int photosPerPage;
+
+    private String setPage;
+    private String photoInfo;
+    private String loginResponse;
+
+    @Setup
+    public void setUp() {
+        setPage = FlickrPayloads.setPage("72157600000000000", 1, 1, photosPerPage);
+        photoInfo = FlickrPayloads.photoInfo(FlickrPayloads.photoId(1, 0), 1381572000L);
+        loginResponse = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n"
+                + "<user id=\"12345678@N00\"><username>flickomatic</username></user>\n</rsp>\n";
+    }
+
+    /**
+     * The getListOfAttributesFromElements implementation as it was before the parsing changes.
+     */
+    private static List<Map<String, String>> legacyGetListOfAttributesFromElements(String contents, String xpath) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(contents)));
+        NodeList nodeList = (NodeList) XPathFactory.newInstance().newXPath().compile(xpath).evaluate(document, XPathConstants.NODESET);
+        List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Element el = (Element) nodeList.item(i);
+            Map<String, String> attributes = new HashMap<String, String>();
+            NamedNodeMap elementAttributes = el.getAttributes();
+            for (int j = 0; j < elementAttributes.getLength(); j++) {
+                attributes.put(elementAttributes.item(j).getNodeName(), elementAttributes.item(j).getNodeValue());
+            }
+            list.add(attributes);
+        }
+        return list;
+    }
+
+    @Benchmark
+    public List<Map<String, String>> setPageLegacyDom() throws Exception {
+        return legacyGetListOfAttributesFromElements(setPage, "//photo");
+    }
+
+    @Benchmark
+    public List<Map<String, String>> setPageCachedDom() {
+        return XMLUtils.getListOfAttributesFromElements(XMLUtils.getDocumentFromString(setPage), "//photo");
+    }
+
+    @Benchmark
+    public List<Map<String, String>> setPageStreaming() {
+        return XMLUtils.getListOfAttributesFromElements(setPage, "//photo");
+    }
+
+    /**
+     * getAttributeValue() as it was, as used to check the response to flickr.test.login.
+     */
+    @Benchmark
+    public String attributeValueLegacy() throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(loginResponse)));
+        return "" + XPathFactory.newInstance().newXPath().compile("rsp/@stat").evaluate(document, XPathConstants.STRING);
+    }
+
+    @Benchmark
+    public String attributeValueCached() {
+        return XMLUtils.getAttributeValue(loginResponse, "rsp", "stat");
+    }
+
+    /**
+     * What processPhoto() used to do with a getInfo response: parse it into a DOM and walk it for the attributes.
+     */
+    @Benchmark
+    public String photoInfoLegacyDom() throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(photoInfo)));
+        Element element = (Element) doc.getElementsByTagName("photo").item(0);
+        Element dates = (Element) element.getElementsByTagName("dates").item(0);
+        return element.getAttribute("id") + element.getAttribute("farm") + element.getAttribute("server")
+                + element.getAttribute("originalsecret") + element.getAttribute("originalformat") + dates.getAttribute("lastupdate");
+    }
+
+    @Benchmark
+    public PhotoInfo photoInfoStreaming() {
+        return XMLUtils.getPhotoInfo(photoInfo);
+    }
+}
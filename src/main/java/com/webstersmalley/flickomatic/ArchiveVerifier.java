@@ -0,0 +1,497 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scrubs the local copy for files that are missing, truncated or corrupted: originals are checked against the size and
+ * SHA-256 recorded in the manifest when they were downloaded (or, in a content-addressed store, against the checksum
+ * they're named after), and metadata files are checked for being well-formed XML. Anything the manifest says was
+ * written but can't be found is reported too.
+ *
+ * The folders are split into shards of a few dozen files which are checked in parallel on a fork-join pool, each file
+ * read through a memory map. Reads are held to a byte rate so a scrub can run alongside a sync without starving it of
+ * disk.
+ *
+ * Bad files are renamed with a .corrupt suffix (never deleted: they may be the only copy left of a photo since removed
+ * from Flickr) and dropped from the manifest, so the next run downloads them again instead of trusting them.
+ */
+public class ArchiveVerifier {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    // Files per fork-join task
+    private final static int SHARD_SIZE = 32;
+    // How much of a file is mapped (and charged to the budget) at a time
+    private final static int MAP_WINDOW = 8 * 1024 * 1024;
+    private final static String CORRUPT_SUFFIX = ".corrupt";
+    private final static Pattern METADATA_NAME = Pattern.compile("(.+)\\.(info|comments|contexts)\\.xml");
+    private final static Pattern BLOB_NAME = Pattern.compile("([0-9a-f]{64})\\.[^.]+");
+
+    public static class Problem {
+        private final String photoId;
+        private final PhotoManifest.Artifact artifact;
+        private final File file;
+        private final String reason;
+
+        public Problem(String photoId, PhotoManifest.Artifact artifact, File file, String reason) {
+            this.photoId = photoId;
+            this.artifact = artifact;
+            this.file = file;
+            this.reason = reason;
+        }
+
+        /**
+         * @return the photo the file belongs to, or null if nothing in the manifest refers to it
+         */
+        public String getPhotoId() {
+            return photoId;
+        }
+
+        public PhotoManifest.Artifact getArtifact() {
+            return artifact;
+        }
+
+        /**
+         * @return the bad file, or null if it's missing or archived
+         */
+        public File getFile() {
+            return file;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public String toString() {
+            return (photoId == null ? "unknown photo" : "photo " + photoId) + " " + artifact
+                    + (file == null ? "" : " (" + file + ")") + ": " + reason;
+        }
+    }
+
+    private interface Check<T> {
+        void check(T item);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final PhotoManifest manifest;
+    private final int threads;
+    private final TokenBucket budget;
+
+    private final Queue<Problem> problems = new ConcurrentLinkedQueue<Problem>();
+    private final AtomicLong filesChecked = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private ForkJoinPool pool;
+
+    /**
+     * @param manifest the manifest of the copy being checked
+     * @param threads  how many files to check at once
+     * @param maxRate  the most bytes per second to read, or 0 for no limit
+     */
+    public ArchiveVerifier(PhotoManifest manifest, int threads, long maxRate) {
+        this.manifest = manifest;
+        this.threads = threads;
+        this.budget = maxRate > 0 ? new TokenBucket(maxRate, Math.max(maxRate, MAP_WINDOW)) : null;
+    }
+
+    /**
+     * Checks every original and metadata file, then sets aside the bad ones.
+     *
+     * @return the problems found
+     */
+    public List<Problem> verify(PhotoStore photoStore, MetadataSink metadataSink) {
+        long start = System.currentTimeMillis();
+        problems.clear();
+        filesChecked.set(0);
+        bytesRead.set(0);
+        pool = new ForkJoinPool(threads);
+        try {
+            if (photoStore instanceof ContentAddressedStore) {
+                verifyBlobs((ContentAddressedStore) photoStore);
+            } else if (photoStore instanceof FlatPhotoStore) {
+                verifyImages(((FlatPhotoStore) photoStore).getFolder());
+            }
+            if (metadataSink instanceof MetadataArchive) {
+                verifyArchive((MetadataArchive) metadataSink);
+            } else if (metadataSink instanceof MetadataFolder) {
+                verifyMetadataFiles(((MetadataFolder) metadataSink).getFolder());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        List<Problem> found = new ArrayList<Problem>(problems);
+        for (Problem problem : found) {
+            logger.warn("Verification failed for {}", problem);
+            setAside(problem);
+        }
+        logger.info("Verified {} files ({} MB) in {} s: {} problems", filesChecked.get(), bytesRead.get() / (1024 * 1024),
+                (System.currentTimeMillis() - start) / 1000, found.size());
+        return found;
+    }
+
+    private void setAside(Problem problem) {
+        if (problem.getFile() != null && problem.getFile().exists()) {
+            File corrupt = new File(problem.getFile().getPath() + CORRUPT_SUFFIX);
+            if (!problem.getFile().renameTo(corrupt)) {
+                logger.error("Failed to rename {} to {}", problem.getFile(), corrupt);
+            }
+        }
+        if (problem.getPhotoId() != null) {
+            manifest.invalidate(problem.getPhotoId(), problem.getArtifact());
+        }
+    }
+
+    private void report(String photoId, PhotoManifest.Artifact artifact, File file, String reason) {
+        problems.add(new Problem(photoId, artifact, file, reason));
+    }
+
+    /**
+     * Originals in the flat layout are named after the photo, so each is checked against its own manifest entry.
+     */
+    private void verifyImages(final File folder) {
+        pool.invoke(new FolderTask(folder, new Check<File>() {
+            public void check(File file) {
+                String name = file.getName();
+                int dot = name.indexOf('.');
+                if (dot <= 0 || isScratch(name)) {
+                    return;
+                }
+                String photoId = name.substring(0, dot);
+                PhotoManifest.Entry entry = manifest.get(photoId);
+                if (entry == null || !entry.getArtifacts().contains(PhotoManifest.Artifact.IMAGE)
+                        || !name.equals(photoId + "." + entry.getFormat())) {
+                    // Nothing recorded to check it against (it predates the manifest, or is an older format)
+                    checkImage(photoId, file, -1, null);
+                } else {
+                    checkImage(photoId, file, entry.getSize(), entry.getChecksum());
+                }
+            }
+        }));
+        pool.invoke(new ListTask<PhotoManifest.Entry>(manifest.getEntries(), new Check<PhotoManifest.Entry>() {
+            public void check(PhotoManifest.Entry entry) {
+                if (entry.getArtifacts().contains(PhotoManifest.Artifact.IMAGE) && entry.getFormat() != null
+                        && !new File(folder, entry.getPhotoId() + "." + entry.getFormat()).exists()) {
+                    report(entry.getPhotoId(), PhotoManifest.Artifact.IMAGE, null, "missing");
+                }
+            }
+        }));
+    }
+
+    /**
+     * Blobs are named after their checksum, so they can be checked without the manifest; the manifest says which
+     * photos a bad blob belongs to.
+     */
+    private void verifyBlobs(final ContentAddressedStore store) {
+        final Map<String, List<String>> owners = new HashMap<String, List<String>>();
+        for (PhotoManifest.Entry entry : manifest.getEntries()) {
+            if (entry.getChecksum() != null && entry.getArtifacts().contains(PhotoManifest.Artifact.IMAGE)) {
+                List<String> photoIds = owners.get(entry.getChecksum());
+                if (photoIds == null) {
+                    photoIds = new ArrayList<String>();
+                    owners.put(entry.getChecksum(), photoIds);
+                }
+                photoIds.add(entry.getPhotoId());
+            }
+        }
+        pool.invoke(new FolderTask(store.getRoot(), new Check<File>() {
+            public void check(File file) {
+                Matcher matcher = BLOB_NAME.matcher(file.getName());
+                if (!matcher.matches()) {
+                    return;
+                }
+                String checksum = matcher.group(1);
+                String reason = getImageProblem(file, -1, checksum);
+                if (reason != null) {
+                    List<String> photoIds = owners.get(checksum);
+                    if (photoIds == null) {
+                        report(null, PhotoManifest.Artifact.IMAGE, file, reason);
+                    } else {
+                        for (String photoId : photoIds) {
+                            // Only the first report renames the file; the others just drop their manifest entries
+                            report(photoId, PhotoManifest.Artifact.IMAGE, file, reason);
+                        }
+                    }
+                }
+            }
+        }));
+        pool.invoke(new ListTask<PhotoManifest.Entry>(manifest.getEntries(), new Check<PhotoManifest.Entry>() {
+            public void check(PhotoManifest.Entry entry) {
+                if (entry.getChecksum() != null && entry.getFormat() != null && entry.getArtifacts().contains(PhotoManifest.Artifact.IMAGE)
+                        && !store.getBlobFile(entry.getChecksum(), entry.getFormat()).exists()) {
+                    report(entry.getPhotoId(), PhotoManifest.Artifact.IMAGE, null, "missing");
+                }
+            }
+        }));
+    }
+
+    private void verifyMetadataFiles(final File folder) {
+        pool.invoke(new FolderTask(folder, new Check<File>() {
+            public void check(File file) {
+                Matcher matcher = METADATA_NAME.matcher(file.getName());
+                if (!matcher.matches()) {
+                    return;
+                }
+                String reason = getXmlProblem(file);
+                if (reason != null) {
+                    report(matcher.group(1), getArtifact(matcher.group(2)), file, reason);
+                }
+            }
+        }));
+        pool.invoke(new ListTask<PhotoManifest.Entry>(manifest.getEntries(), new Check<PhotoManifest.Entry>() {
+            public void check(PhotoManifest.Entry entry) {
+                for (PhotoManifest.Artifact artifact : entry.getArtifacts()) {
+                    if (artifact != PhotoManifest.Artifact.IMAGE && !new File(folder, getMetadataName(entry.getPhotoId(), artifact)).exists()) {
+                        report(entry.getPhotoId(), artifact, null, "missing");
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Archived records are compressed, so reading one back checks its CRC as well as the XML.
+     */
+    private void verifyArchive(final MetadataArchive archive) {
+        List<String> names = archive.getNames();
+        pool.invoke(new ListTask<String>(names, new Check<String>() {
+            public void check(String name) {
+                Matcher matcher = METADATA_NAME.matcher(name);
+                if (!matcher.matches()) {
+                    return;
+                }
+                String reason;
+                try {
+                    byte[] contents = archive.read(name).getBytes(UTF8);
+                    charge(contents.length);
+                    reason = XMLUtils.checkWellFormed(new ByteArrayInputStream(contents));
+                } catch (RuntimeException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    reason = "unreadable: " + e.getMessage();
+                }
+                filesChecked.incrementAndGet();
+                if (reason != null) {
+                    report(matcher.group(1), getArtifact(matcher.group(2)), null, reason);
+                }
+            }
+        }));
+        final Set<String> archived = new HashSet<String>(names);
+        for (PhotoManifest.Entry entry : manifest.getEntries()) {
+            for (PhotoManifest.Artifact artifact : entry.getArtifacts()) {
+                if (artifact != PhotoManifest.Artifact.IMAGE && !archived.contains(getMetadataName(entry.getPhotoId(), artifact))) {
+                    report(entry.getPhotoId(), artifact, null, "missing");
+                }
+            }
+        }
+    }
+
+    private static boolean isScratch(String name) {
+        return name.endsWith(".part") || name.endsWith(".part.meta") || name.endsWith(".tmp") || name.endsWith(CORRUPT_SUFFIX);
+    }
+
+    private static PhotoManifest.Artifact getArtifact(String suffix) {
+        return PhotoManifest.Artifact.valueOf(suffix.toUpperCase());
+    }
+
+    private static String getMetadataName(String photoId, PhotoManifest.Artifact artifact) {
+        return photoId + "." + artifact.name().toLowerCase() + ".xml";
+    }
+
+    private void checkImage(String photoId, File file, long expectedSize, String expectedChecksum) {
+        String reason = getImageProblem(file, expectedSize, expectedChecksum);
+        if (reason != null) {
+            report(photoId, PhotoManifest.Artifact.IMAGE, file, reason);
+        }
+    }
+
+    /**
+     * @return null if the image is as expected, otherwise what's wrong with it
+     */
+    private String getImageProblem(File file, long expectedSize, String expectedChecksum) {
+        filesChecked.incrementAndGet();
+        long length = file.length();
+        if (length == 0) {
+            return "empty";
+        }
+        if (expectedSize >= 0 && length != expectedSize) {
+            return "size is " + length + " bytes, expected " + expectedSize;
+        }
+        if (expectedChecksum != null) {
+            try {
+                String checksum = checksum(file);
+                if (!checksum.equals(expectedChecksum)) {
+                    return "checksum is " + checksum + ", expected " + expectedChecksum;
+                }
+            } catch (IOException e) {
+                return "unreadable: " + e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return hex SHA-256 of the file, read a window at a time through a memory map
+     */
+    private String checksum(File file) throws IOException {
+        MessageDigest digest = ImageTransfer.createDigest();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                long length = Math.min(MAP_WINDOW, size - position);
+                charge(length);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            }
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+        return ImageTransfer.toHex(digest.digest());
+    }
+
+    /**
+     * @return null if the file is well-formed XML, otherwise what's wrong with it
+     */
+    private String getXmlProblem(File file) {
+        filesChecked.incrementAndGet();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size == 0) {
+                return "empty";
+            }
+            if (size > Integer.MAX_VALUE) {
+                return "too big to be metadata: " + size + " bytes";
+            }
+            charge(size);
+            return XMLUtils.checkWellFormed(new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+        } catch (IOException e) {
+            return "unreadable: " + e.getMessage();
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Counts bytes read against the budget, waiting if it's spent.
+     */
+    private void charge(long bytes) {
+        bytesRead.addAndGet(bytes);
+        if (budget != null) {
+            try {
+                budget.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted verifying the archive", e);
+            }
+        }
+    }
+
+    /**
+     * Checks a list of items, splitting it in two until the pieces are shard-sized.
+     */
+    private class ListTask<T> extends RecursiveAction {
+        private final List<T> items;
+        private final Check<T> check;
+
+        private ListTask(List<T> items, Check<T> check) {
+            this.items = items;
+            this.check = check;
+        }
+
+        protected void compute() {
+            if (items.size() > SHARD_SIZE) {
+                int middle = items.size() / 2;
+                invokeAll(new ListTask<T>(items.subList(0, middle), check), new ListTask<T>(items.subList(middle, items.size()), check));
+                return;
+            }
+            for (T item : items) {
+                check.check(item);
+            }
+        }
+    }
+
+    /**
+     * Checks the files in a folder, and (as tasks of their own) its subfolders. Hidden folders, such as a
+     * content-addressed store's staging folder, are skipped.
+     */
+    private class FolderTask extends RecursiveAction {
+        private final File folder;
+        private final Check<File> check;
+
+        private FolderTask(File folder, Check<File> check) {
+            this.folder = folder;
+            this.check = check;
+        }
+
+        protected void compute() {
+            File[] children = folder.listFiles();
+            if (children == null) {
+                logger.warn("Can't list {}", folder);
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            List<File> files = new ArrayList<File>();
+            for (File child : children) {
+                if (Files.isDirectory(child.toPath())) {
+                    if (!child.getName().startsWith(".")) {
+                        tasks.add(new FolderTask(child, check));
+                    }
+                } else {
+                    files.add(child);
+                }
+            }
+            tasks.add(new ListTask<File>(files, check));
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Reads a mapped file.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
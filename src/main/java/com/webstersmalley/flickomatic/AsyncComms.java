@@ -0,0 +1,76 @@
+package com.webstersmalley.flickomatic;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Comms that can send requests without tying up a thread while they're in flight, so that calls can be overlapped and
+ * composed. Responses can be read as a String, or streamed through a parser as they arrive so the body is never held
+ * in memory whole.
+ *
+ * Failures complete the future exceptionally, with a CommsException where the comms would have thrown one.
+ */
+public interface AsyncComms extends Comms {
+    /**
+     * Reads a response body as it arrives. Runs on one of the comms' threads, not the caller's.
+     */
+    interface BodyParser<T> {
+        T parse(InputStream body) throws IOException;
+    }
+
+    CompletableFuture<String> sendGetRequestAsync(Map<String, String> params);
+
+    <T> CompletableFuture<T> sendGetRequestAsync(Map<String, String> params, BodyParser<T> parser);
+
+    /**
+     * Sends a request through any comms: asynchronously if they can, otherwise synchronously on the calling thread,
+     * returning a future that's already complete.
+     */
+    static CompletableFuture<String> sendAsync(Comms comms, Map<String, String> params) {
+        if (comms instanceof AsyncComms) {
+            return ((AsyncComms) comms).sendGetRequestAsync(params);
+        }
+        try {
+            return CompletableFuture.completedFuture(comms.sendGetRequest(params));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Sends a request through any comms and parses the response: asynchronously if the comms can, otherwise
+     * synchronously on the calling thread, returning a future that's already complete.
+     */
+    static <T> CompletableFuture<T> sendAsync(Comms comms, Map<String, String> params, BodyParser<T> parser) {
+        if (comms instanceof AsyncComms) {
+            return ((AsyncComms) comms).sendGetRequestAsync(params, parser);
+        }
+        try {
+            String response = comms.sendGetRequest(params);
+            return CompletableFuture.completedFuture(parser.parse(new ByteArrayInputStream(response.getBytes(Charset.forName("UTF-8")))));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new CommsException("Error reading response to " + params.get("method") + ": " + e.getMessage(), e, -1, false, false, -1));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Waits for a request sent asynchronously, rethrowing its failure as the synchronous call would have.
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
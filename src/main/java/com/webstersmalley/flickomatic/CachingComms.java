@@ -0,0 +1,388 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decorator in front of the throttled comms that remembers the responses to per-photo requests (getInfo and comments),
+ * so a photo fetched again - in a full download, or after its files were lost - costs no API calls if it hasn't
+ * changed. List calls always go through, since they're how changes are found. So do a photo's contexts: adding a photo
+ * to a set or pool doesn't always change its lastupdate, so there'd be no telling a cached response was out of date.
+ *
+ * A cached response is only used while the photo's lastupdate, as last listed (see photoListed()), is the one it was
+ * cached at; a photo that hasn't been listed since the process started is always fetched. The cache is bounded by
+ * entries and by characters, evicting the least recently used, and can be kept on disk between runs (see load() and
+ * save()).
+ *
+ * Identical requests in flight at the same time are sent once, and every caller gets the one response.
+ */
+@Service("cachingComms")
+public class CachingComms implements AsyncComms {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static Set<String> CACHED_METHODS = new HashSet<String>(Arrays.asList(
+            "flickr.photos.getInfo", "flickr.photos.comments.getList"));
+    // Identifies (and versions) the cache file format
+    private final static int MAGIC = 0x464c4331;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Resource(name = "comms")
+    private Comms delegate;
+
+    @Value("${flickomatic.cache.maxentries:20000}")
+    private int maxEntries = 20000;
+
+    // Total characters of the cached responses
+    @Value("${flickomatic.cache.maxsize:33554432}")
+    private long maxSize = 33554432;
+
+    @Value("${flickomatic.cache.persist:false}")
+    private boolean persist;
+
+    // Least recently used first; guarded by itself
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    // Each photo's lastupdate as last listed
+    private final Map<String, Long> versions = new ConcurrentHashMap<String, Long>();
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    private File file;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private static class Entry {
+        private final long lastUpdate;
+        private final String response;
+
+        private Entry(long lastUpdate, String response) {
+            this.lastUpdate = lastUpdate;
+            this.response = response;
+        }
+    }
+
+    public CachingComms() {
+        // For Spring, which injects the fields
+    }
+
+    public CachingComms(Comms delegate, int maxEntries, long maxSize) {
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    public void setPersist(boolean persist) {
+        this.persist = persist;
+    }
+
+    /**
+     * Creates a cache for another account's requests, with the same settings as this one but its own entries.
+     *
+     * @param accountDelegate the account's comms
+     */
+    public CachingComms forAccount(Comms accountDelegate) {
+        CachingComms cachingComms = new CachingComms(accountDelegate, maxEntries, maxSize);
+        cachingComms.persist = persist;
+        return cachingComms;
+    }
+
+    public void authenticate() {
+        delegate.authenticate();
+    }
+
+    /**
+     * Records a photo's lastupdate as listed, dropping anything cached for an earlier version.
+     *
+     * @param lastUpdate the lastupdate time in seconds since the epoch
+     */
+    public void photoListed(String photoId, long lastUpdate) {
+        versions.put(photoId, lastUpdate);
+        synchronized (entries) {
+            for (String method : CACHED_METHODS) {
+                Entry entry = entries.get(getKey(method, photoId));
+                if (entry != null && entry.lastUpdate != lastUpdate) {
+                    remove(getKey(method, photoId));
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-photo responses are keyed on the method and photo alone: the other parameters (the secret, say) don't change
+     * the response.
+     */
+    private static String getKey(String method, String photoId) {
+        return method + " " + photoId;
+    }
+
+    /**
+     * @return the request's key, or null if its response isn't cached
+     */
+    private static String getKey(Map<String, String> params) {
+        String method = params.get("method");
+        String photoId = params.get("photo_id");
+        if (photoId == null || !CACHED_METHODS.contains(method)) {
+            return null;
+        }
+        return getKey(method, photoId);
+    }
+
+    private String lookup(String key, String photoId) {
+        Long version = versions.get(photoId);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (version == null || entry.lastUpdate != version) {
+                return null;
+            }
+            return entry.response;
+        }
+    }
+
+    private void store(String key, String photoId, String response) {
+        if (!response.contains("stat=\"ok\"")) {
+            return;
+        }
+        Long version = versions.get(photoId);
+        if (version == null && key.startsWith("flickr.photos.getInfo ")) {
+            // Photos queued by id alone haven't been listed, but getInfo says which version it describes
+            PhotoInfo photoInfo = XMLUtils.getPhotoInfo(response);
+            if (photoInfo != null && photoInfo.getLastUpdate() >= 0) {
+                version = photoInfo.getLastUpdate();
+                versions.putIfAbsent(photoId, version);
+            }
+        }
+        if (version == null) {
+            // No way of telling later whether it's still current
+            return;
+        }
+        put(key, new Entry(version, response));
+    }
+
+    private void put(String key, Entry entry) {
+        if (maxEntries <= 0 || entry.response.length() > maxSize) {
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            size += entry.response.length();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || size > maxSize) {
+                size -= eldest.next().response.length();
+                eldest.remove();
+            }
+        }
+    }
+
+    // Called holding the entries lock
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            size -= removed.response.length();
+        }
+    }
+
+    /**
+     * @return how many responses are cached
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public String sendGetRequest(Map<String, String> params) {
+        return AsyncComms.await(send(params, new Function<Map<String, String>, CompletableFuture<String>>() {
+            public CompletableFuture<String> apply(Map<String, String> params) {
+                try {
+                    return CompletableFuture.completedFuture(delegate.sendGetRequest(params));
+                } catch (RuntimeException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+        }));
+    }
+
+    public CompletableFuture<String> sendGetRequestAsync(Map<String, String> params) {
+        return send(params, new Function<Map<String, String>, CompletableFuture<String>>() {
+            public CompletableFuture<String> apply(Map<String, String> params) {
+                return AsyncComms.sendAsync(delegate, params);
+            }
+        });
+    }
+
+    public <T> CompletableFuture<T> sendGetRequestAsync(Map<String, String> params, final BodyParser<T> parser) {
+        if (getKey(params) == null) {
+            // Nothing to cache, so the response can be streamed straight through the parser
+            return AsyncComms.sendAsync(delegate, params, parser);
+        }
+        final String method = params.get("method");
+        return sendGetRequestAsync(params).thenApply(new Function<String, T>() {
+            public T apply(String response) {
+                try {
+                    return parser.parse(new ByteArrayInputStream(response.getBytes(UTF8)));
+                } catch (IOException e) {
+                    throw new CommsException("Error reading response to " + method + ": " + e.getMessage(), e, -1, false, false, -1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Answers from the cache if it can; otherwise joins an identical request already in flight, or sends it.
+     */
+    private CompletableFuture<String> send(Map<String, String> params, Function<Map<String, String>, CompletableFuture<String>> sender) {
+        final String key = getKey(params);
+        if (key == null) {
+            return sender.apply(params);
+        }
+        final String photoId = params.get("photo_id");
+        String cached = lookup(key, photoId);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<String> sent;
+        try {
+            sent = sender.apply(params);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete(new BiConsumer<String, Throwable>() {
+            public void accept(String response, Throwable throwable) {
+                inFlight.remove(key, result);
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                    return;
+                }
+                try {
+                    store(key, photoId, response);
+                } catch (RuntimeException e) {
+                    // The response is still good, it just isn't cached
+                    logger.warn("Error caching response for {}: {}", key, e.getMessage());
+                }
+                result.complete(response);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Reads the responses saved by an earlier run, if persistence is on (flickomatic.cache.persist=true), and sets the
+     * file save() will write them to. A missing or unreadable file leaves the cache empty, and a file already loaded
+     * isn't read again. The responses read can't be used until their photos are listed again.
+     */
+    public void load(File file) {
+        if (file.equals(this.file)) {
+            return;
+        }
+        this.file = file;
+        if (!persist || !file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        int loaded = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            if (in.readInt() != MAGIC) {
+                logger.warn("Ignoring response cache {}: not a cache file", file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long lastUpdate = in.readLong();
+                byte[] response = new byte[in.readInt()];
+                in.readFully(response);
+                // Skips methods no longer cached
+                if (CACHED_METHODS.contains(key.substring(0, Math.max(0, key.indexOf(' '))))) {
+                    put(key, new Entry(lastUpdate, new String(response, UTF8)));
+                    loaded++;
+                }
+            }
+            logger.info("Loaded response cache {}: {} responses", file, loaded);
+        } catch (IOException e) {
+            // Not fatal: whatever couldn't be read is just fetched again
+            logger.warn("Error reading response cache {} after {} responses: {}", file, loaded, e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Logs how well the cache did since the last save, and writes it to the file given to load() if persistence is on.
+     */
+    public void save() {
+        logger.info("Response cache: {} hits, {} misses, {} requests coalesced, {} responses cached",
+                hits.getAndSet(0), misses.getAndSet(0), coalesced.getAndSet(0), getEntryCount());
+        if (!persist || file == null) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+            synchronized (entries) {
+                out.writeInt(MAGIC);
+                out.writeInt(entries.size());
+                // Least recently used first, so loading them in order keeps the order
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    byte[] response = entry.getValue().response.getBytes(UTF8);
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().lastUpdate);
+                    out.writeInt(response.length);
+                    out.write(response);
+                }
+            }
+            out.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Not fatal: the next run just starts with an emptier cache
+            logger.error("Error writing response cache: " + e.getMessage(), e);
+            IOUtils.closeQuietly(out);
+            temp.delete();
+        }
+    }
+}
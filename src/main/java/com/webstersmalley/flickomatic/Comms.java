@@ -8,4 +8,12 @@ import java.util.Map;
  */
 public interface Comms {
     String sendGetRequest(Map<String, String> params);
+
+    /**
+     * Makes sure we're logged in (prompting for a new token if necessary). Callers should do this once, before starting
+     * any workers; requests sent before then will authenticate on demand.
+     */
+    default void authenticate() {
+        // Nothing to log in to
+    }
 }
@@ -0,0 +1,41 @@
+package com.webstersmalley.flickomatic;
+
+/**
+ * Thrown by Comms implementations when a request fails, saying whether it's worth trying again.
+ */
+public class CommsException extends RuntimeException {
+    private final int statusCode;
+    private final boolean retryable;
+    private final boolean throttled;
+    private final long retryAfterSeconds;
+
+    /**
+     * @param statusCode        the HTTP status, or -1 if the request never got a response
+     * @param retryable         true if the same request might succeed later (timeouts, 5xx, throttling)
+     * @param throttled         true if the server told us to slow down
+     * @param retryAfterSeconds the server's Retry-After, or -1 if it didn't send one
+     */
+    public CommsException(String message, Throwable cause, int statusCode, boolean retryable, boolean throttled, long retryAfterSeconds) {
+        super(message, cause);
+        this.statusCode = statusCode;
+        this.retryable = retryable;
+        this.throttled = throttled;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,235 @@
+package com.webstersmalley.flickomatic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores each distinct image once, named after the SHA-256 of its contents and sharded two levels deep by the leading
+ * hex digits (ab/cd/abcd...ef.jpg), so no folder grows past a few hundred entries however big the archive gets. Photo
+ * ids are mapped to blobs through the checksum in the manifest; re-uploads and the same photo from another account
+ * cost no extra disk.
+ *
+ * Images are downloaded (and hashed as they stream) into a staging folder under the same root, then moved into place,
+ * or dropped if the blob already exists. Staging files are named after the photo, so interrupted downloads resume.
+ *
+ * A blob stays when its photo is replaced or re-downloaded with different contents, since other photos may share it;
+ * sweep() (run by FlickrDownloader.verify()) deletes the blobs no manifest entry refers to any more. Every manifest
+ * whose photos are stored under the root is registered in its .manifests file (see register()), and a sweep that
+ * hasn't been given all of them does nothing, rather than delete another account's blobs.
+ */
+public class ContentAddressedStore implements PhotoStore {
+    private final static String STAGING = ".staging";
+    private final static String MANIFESTS = ".manifests";
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static Pattern BLOB_NAME = Pattern.compile("([0-9a-f]{64})\\.[^.]+");
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File root;
+    private final ImageTransfer imageTransfer;
+
+    public ContentAddressedStore(File root, ImageTransfer imageTransfer) {
+        this.root = root;
+        this.imageTransfer = imageTransfer;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return where the blob with the given checksum lives (whether or not it exists yet)
+     */
+    public File getBlobFile(String checksum, String format) {
+        File shard = new File(new File(root, checksum.substring(0, 2)), checksum.substring(2, 4));
+        return new File(shard, checksum + "." + format);
+    }
+
+    /**
+     * Blobs can only be found through the manifest.
+     */
+    public File getExistingFile(PhotoInfo photoInfo) {
+        return null;
+    }
+
+    public ImageTransfer.Result save(PhotoInfo photoInfo, String url) throws IOException {
+        File staging = new File(root, STAGING);
+        if (!staging.isDirectory() && !staging.mkdirs()) {
+            throw new IOException("Failed to make the directory: " + staging.getAbsolutePath());
+        }
+        File stagedFile = new File(staging, photoInfo.getId() + "." + photoInfo.getOriginalFormat());
+        ImageTransfer.Result result = imageTransfer.download(url, stagedFile);
+        File blob = store(stagedFile, result.getChecksum(), photoInfo.getOriginalFormat());
+        logger.debug("Saved {} bytes for photo {} as {}", result.getBytes(), photoInfo.getId(), blob);
+        return result;
+    }
+
+    /**
+     * Moves a downloaded file into its blob, or deletes it if the blob is already there.
+     *
+     * @return the blob
+     */
+    File store(File stagedFile, String checksum, String format) throws IOException {
+        File blob = getBlobFile(checksum, format);
+        if (blob.exists()) {
+            logger.debug("Already have {}: dropping duplicate {}", blob, stagedFile);
+            Files.delete(stagedFile.toPath());
+            touch(blob);
+            return blob;
+        }
+        File shard = blob.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+            throw new IOException("Failed to make the directory: " + shard.getAbsolutePath());
+        }
+        try {
+            Files.move(stagedFile.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(stagedFile.toPath(), blob.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // Another worker stored the same bytes first
+            Files.delete(stagedFile.toPath());
+            touch(blob);
+        }
+        return blob;
+    }
+
+    /**
+     * Makes a reused blob young again, so a sweep running before the photo is recorded doesn't take it for an old,
+     * unreferenced one.
+     */
+    private void touch(File blob) {
+        if (!blob.setLastModified(System.currentTimeMillis())) {
+            logger.warn("Failed to update the modification time of {}", blob);
+        }
+    }
+
+    /**
+     * Records that the photos in the given manifest are stored here, so a sweep knows it has to take them into
+     * account.
+     */
+    public synchronized void register(File manifestFile) {
+        try {
+            String path = manifestFile.getCanonicalPath();
+            if (getRegisteredManifests().contains(path)) {
+                return;
+            }
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IOException("Failed to make the directory: " + root.getAbsolutePath());
+            }
+            Files.write(new File(root, MANIFESTS).toPath(), (path + "\n").getBytes(UTF8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("Error registering manifest " + manifestFile + " with " + root + ": " + e.getMessage(), e);
+            throw new RuntimeException("Error registering manifest " + manifestFile + " with " + root + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the canonical paths of the manifests registered here
+     */
+    private Set<String> getRegisteredManifests() throws IOException {
+        File file = new File(root, MANIFESTS);
+        Set<String> paths = new LinkedHashSet<String>();
+        if (file.exists()) {
+            for (String line : Files.readAllLines(file.toPath(), UTF8)) {
+                if (!line.trim().isEmpty()) {
+                    paths.add(line.trim());
+                }
+            }
+        }
+        return paths;
+    }
+
+    public int sweep(PhotoManifest manifest, long minAgeMillis) {
+        return sweep(Collections.singletonList(manifest), minAgeMillis);
+    }
+
+    /**
+     * Deletes the blobs that no photo in the manifests refers to. Blobs younger than minAgeMillis are kept, since a run
+     * in progress stores its blobs before it records them. Nothing is deleted unless every manifest registered here
+     * (and still there) is among the ones given.
+     *
+     * @return the number of blobs deleted
+     */
+    public int sweep(Collection<PhotoManifest> manifests, long minAgeMillis) {
+        Set<String> referenced = new HashSet<String>();
+        try {
+            Set<String> missing = getRegisteredManifests();
+            for (PhotoManifest manifest : manifests) {
+                missing.remove(manifest.getFile().getCanonicalPath());
+                for (PhotoManifest.Entry entry : manifest.getEntries()) {
+                    if (entry.getChecksum() != null) {
+                        referenced.add(entry.getChecksum());
+                    }
+                }
+            }
+            for (String path : missing) {
+                if (new File(path).exists()) {
+                    logger.warn("Not deleting unreferenced blobs from {}: it's shared with {}, which wasn't checked", root, path);
+                    return 0;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error reading the manifests registered with " + root + ": " + e.getMessage(), e);
+            throw new RuntimeException("Error reading the manifests registered with " + root + ": " + e.getMessage(), e);
+        }
+        long cutoff = System.currentTimeMillis() - minAgeMillis;
+        int deleted = 0;
+        long bytes = 0;
+        for (File shard : listFolders(root)) {
+            for (File subShard : listFolders(shard)) {
+                File[] blobs = subShard.listFiles();
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    Matcher matcher = BLOB_NAME.matcher(blob.getName());
+                    if (!matcher.matches() || referenced.contains(matcher.group(1)) || blob.lastModified() > cutoff) {
+                        continue;
+                    }
+                    long length = blob.length();
+                    if (blob.delete()) {
+                        deleted++;
+                        bytes += length;
+                    } else {
+                        logger.warn("Failed to delete unreferenced blob {}", blob);
+                    }
+                }
+            }
+        }
+        logger.info("Deleted {} unreferenced blobs ({} MB)", deleted, bytes / (1024 * 1024));
+        return deleted;
+    }
+
+    private static File[] listFolders(File folder) {
+        File[] folders = folder.listFiles();
+        if (folders == null) {
+            return new File[0];
+        }
+        List<File> visible = new ArrayList<File>();
+        for (File child : folders) {
+            if (child.isDirectory() && !child.getName().startsWith(".")) {
+                visible.add(child);
+            }
+        }
+        return visible.toArray(new File[visible.size()]);
+    }
+}
@@ -0,0 +1,196 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Wires the application's services without starting a Spring context, for quick runs (from cron, say) where reading
+ * beans.xml and scanning the classpath takes longer than the sync itself. The services are the same classes, wired by
+ * the same annotations: @Value placeholders are filled from system properties or the properties file (in that order,
+ * as with the Spring context), and @Resource fields with the service of that name. Nothing is scanned; the services
+ * are listed below, and only the ones needed by the service asked for are created.
+ *
+ * close() runs the services' @PreDestroy methods, as closing the Spring context would, each service before the ones it
+ * uses.
+ */
+public class DirectWiring {
+    private final static Map<String, Class<?>> SERVICES = new LinkedHashMap<String, Class<?>>();
+
+    static {
+        SERVICES.put("httpTransport", HttpTransport.class);
+        SERVICES.put("imageTransfer", ImageTransfer.class);
+        SERVICES.put("oauthComms", OAuthAwareComms.class);
+        SERVICES.put("comms", ThrottlingComms.class);
+        SERVICES.put("cachingComms", CachingComms.class);
+        SERVICES.put("flickrDownloader", FlickrDownloader.class);
+        SERVICES.put("multiAccountDownloader", MultiAccountDownloader.class);
+        SERVICES.put("syncDaemon", SyncDaemon.class);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Properties properties;
+    private final Map<String, Class<?>> services;
+    private final Map<String, Object> beans = new HashMap<String, Object>();
+    // In the order they finished wiring, so a service comes after the ones it uses
+    private final List<Object> wired = new ArrayList<Object>();
+
+    public DirectWiring(Properties properties) {
+        this(properties, SERVICES);
+    }
+
+    DirectWiring(Properties properties, Map<String, Class<?>> services) {
+        this.properties = properties;
+        this.services = services;
+    }
+
+    /**
+     * @param propertiesFile the configuration; a missing file is treated as empty, like the Spring context does
+     */
+    public static DirectWiring load(File propertiesFile) {
+        Properties properties = new Properties();
+        if (propertiesFile.exists()) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(propertiesFile);
+                properties.load(is);
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading " + propertiesFile + ": " + e.getMessage(), e);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return new DirectWiring(properties);
+    }
+
+    /**
+     * @return the named service, created and wired (along with anything it needs) on first use
+     */
+    public synchronized <T> T getBean(String name, Class<T> type) {
+        Object bean = beans.get(name);
+        if (bean == null) {
+            Class<?> beanClass = services.get(name);
+            if (beanClass == null) {
+                logger.error("No service called {}", name);
+                throw new RuntimeException("No service called " + name);
+            }
+            try {
+                Constructor<?> constructor = beanClass.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                bean = constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                logger.error("Error creating " + name + ": " + e.getMessage(), e);
+                throw new RuntimeException("Error creating " + name + ": " + e.getMessage(), e);
+            }
+            // Registered before it's wired, so services that need each other get the same instances
+            beans.put(name, bean);
+            wire(bean);
+            wired.add(bean);
+        }
+        return type.cast(bean);
+    }
+
+    /**
+     * Runs the @PreDestroy methods of the services created so far, most recently wired first, and forgets them. A
+     * failing method is logged and the rest still run.
+     */
+    public synchronized void close() {
+        for (int i = wired.size() - 1; i >= 0; i--) {
+            Object bean = wired.get(i);
+            for (Class<?> c = bean.getClass(); c != Object.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.getAnnotation(PreDestroy.class) == null) {
+                        continue;
+                    }
+                    try {
+                        method.setAccessible(true);
+                        method.invoke(bean);
+                    } catch (InvocationTargetException e) {
+                        logger.error("Error closing " + bean.getClass().getSimpleName() + ": " + e.getCause().getMessage(), e.getCause());
+                    } catch (IllegalAccessException e) {
+                        logger.error("Error closing " + bean.getClass().getSimpleName() + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        wired.clear();
+        beans.clear();
+    }
+
+    private void wire(Object bean) {
+        for (Class<?> c = bean.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                Value value = field.getAnnotation(Value.class);
+                Resource resource = field.getAnnotation(Resource.class);
+                if (value == null && resource == null) {
+                    continue;
+                }
+                field.setAccessible(true);
+                try {
+                    if (value != null) {
+                        field.set(bean, convert(resolve(value.value()), field.getType()));
+                    } else {
+                        field.set(bean, getBean(resource.name(), field.getType()));
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException("Error setting " + field + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves a "${key}" or "${key:default}" placeholder.
+     */
+    String resolve(String placeholder) {
+        if (!placeholder.startsWith("${") || !placeholder.endsWith("}")) {
+            return placeholder;
+        }
+        String expression = placeholder.substring(2, placeholder.length() - 1);
+        int colon = expression.indexOf(':');
+        String key = colon < 0 ? expression : expression.substring(0, colon);
+        String result = System.getProperty(key, properties.getProperty(key));
+        if (result == null) {
+            if (colon < 0) {
+                logger.error("No value for {}", key);
+                throw new RuntimeException("No value for " + key);
+            }
+            result = expression.substring(colon + 1);
+        }
+        return result;
+    }
+
+    private static Object convert(String value, Class<?> type) {
+        if (type == String.class) {
+            return value;
+        } else if (type == int.class || type == Integer.class) {
+            return Integer.valueOf(value.trim());
+        } else if (type == long.class || type == Long.class) {
+            return Long.valueOf(value.trim());
+        } else if (type == double.class || type == Double.class) {
+            return Double.valueOf(value.trim());
+        } else if (type == boolean.class || type == Boolean.class) {
+            return Boolean.valueOf(value.trim());
+        }
+        throw new IllegalArgumentException("Can't convert a property to " + type);
+    }
+}
@@ -0,0 +1,472 @@
+package com.webstersmalley.flickomatic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work for a whole run as a pipeline of stages (metadata fetch, image transfer, disk write...), each with its
+ * own pool of workers and its own bounded queue. Photos from every set share the same stages, so the workers never sit
+ * idle waiting for a set boundary; completion is still tracked (and logged) per set. Submitting to a full stage blocks,
+ * so enumeration can't load an entire library into memory ahead of the workers.
+ *
+ * A task may queue follow-on work on another stage, as long as no stage feeds back into an earlier one (otherwise two
+ * full stages could wait on each other forever).
+ *
+ * Stages whose tasks spend nearly all their time blocked on the network can run on virtual threads instead of a pool:
+ * each task gets its own virtual thread, and a semaphore rather than the platform thread count limits how many run at
+ * once, so hundreds of requests can be in flight on a small machine.
+ *
+ * Several runs (one per account, say) can share one set of stages: each gets its own lane from newLane(), with its own
+ * progress, failure count and queue limits. The stages take tasks from the lanes in turn, so a lane with a big backlog
+ * can't starve the others, and a full lane only blocks its own submitters.
+ *
+ * Tasks can be given a cost (e.g. the expected size of a download): within a lane's queue the cheapest task runs
+ * first, so more work completes per second while a few expensive tasks wait. Tasks of equal cost run in the order they
+ * were submitted. Only what's queued can be ordered, and the queues are bounded, so a submitter with a long list of
+ * tasks should sort it by cost before submitting it.
+ */
+public class DownloadScheduler {
+    private final static String NOT_IN_SET = "(not in set)";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String lane;
+    private final DownloadScheduler parent;
+    private final List<Stage> stages;
+    private final ConcurrentMap<String, SetProgress> sets = new ConcurrentHashMap<String, SetProgress>();
+    private final AtomicInteger failures = new AtomicInteger();
+    // Tasks queued or running on any stage; guarded by this
+    private int pending = 0;
+    private volatile SetListener setListener;
+
+    /**
+     * Told as each set completes.
+     */
+    public interface SetListener {
+        /**
+         * @param setId  the set (null for photos not in a set)
+         * @param failed true if any of the set's tasks failed
+         */
+        void setComplete(String setId, boolean failed);
+    }
+
+    public DownloadScheduler() {
+        this("", null, new ArrayList<Stage>());
+    }
+
+    private DownloadScheduler(String lane, DownloadScheduler parent, List<Stage> stages) {
+        this.lane = lane;
+        this.parent = parent;
+        this.stages = stages;
+    }
+
+    /**
+     * One step of the pipeline: a fixed pool of workers with a bounded queue in front of it, or a virtual thread per
+     * task with a cap on the number running. Each lane has its own queue; a worker takes the next task from the lane
+     * whose turn it is.
+     */
+    public static class Stage {
+        private final String name;
+        private final ExecutorService executor;
+        // Tasks each lane may have queued or running on this stage
+        private final int slots;
+        // Caps the number of tasks running on a virtual thread stage; null for a pool, whose size is the cap
+        private final Semaphore running;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        // Guarded by lanes
+        private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+        // The lanes with tasks waiting, in the order they'll be served; guarded by lanes
+        private final ArrayDeque<Lane> turns = new ArrayDeque<Lane>();
+        // Orders tasks of equal cost; guarded by lanes
+        private long sequence = 0;
+
+        private Stage(String name, ExecutorService executor, int slots, Semaphore running) {
+            this.name = name;
+            this.executor = executor;
+            this.slots = slots;
+            this.running = running;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of tasks running
+         */
+        public int getActive() {
+            return active.get();
+        }
+
+        /**
+         * @return the number of tasks waiting for a worker
+         */
+        public int getQueued() {
+            return queued.get();
+        }
+
+        private Lane getLane(String name) {
+            synchronized (lanes) {
+                Lane lane = lanes.get(name);
+                if (lane == null) {
+                    lane = new Lane(slots);
+                    lanes.put(name, lane);
+                }
+                return lane;
+            }
+        }
+
+        /**
+         * Queues a task on a lane and wakes a worker for it. The worker runs whichever task is next in turn, which
+         * isn't necessarily this one.
+         */
+        private void enqueue(Lane lane, long cost, Runnable task) {
+            synchronized (lanes) {
+                if (lane.tasks.isEmpty()) {
+                    turns.add(lane);
+                }
+                lane.tasks.add(new QueuedTask(task, cost, sequence++));
+            }
+            queued.incrementAndGet();
+            executor.execute(new Runnable() {
+                public void run() {
+                    runNext();
+                }
+            });
+        }
+
+        private void runNext() {
+            if (running != null) {
+                running.acquireUninterruptibly();
+            }
+            try {
+                Runnable task;
+                synchronized (lanes) {
+                    Lane lane = turns.poll();
+                    task = lane.tasks.poll().task;
+                    if (!lane.tasks.isEmpty()) {
+                        // To the back of the line
+                        turns.add(lane);
+                    }
+                }
+                queued.decrementAndGet();
+                task.run();
+            } finally {
+                if (running != null) {
+                    running.release();
+                }
+            }
+        }
+    }
+
+    private static class Lane {
+        // Tasks queued or running
+        private final Semaphore slots;
+        // Guarded by the stage's lanes
+        private final PriorityQueue<QueuedTask> tasks = new PriorityQueue<QueuedTask>();
+
+        private Lane(int slots) {
+            this.slots = new Semaphore(slots);
+        }
+    }
+
+    private static class QueuedTask implements Comparable<QueuedTask> {
+        private final Runnable task;
+        private final long cost;
+        private final long sequence;
+
+        private QueuedTask(Runnable task, long cost, long sequence) {
+            this.task = task;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(QueuedTask other) {
+            int result = Long.compare(cost, other.cost);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Adds a stage to the pipeline.
+     *
+     * @param name      the stage's name, for logging
+     * @param threads   the number of workers
+     * @param queueSize the maximum number of tasks waiting for a worker before submit() blocks
+     */
+    public Stage addStage(String name, int threads, int queueSize) {
+        checkOwnsStages();
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count for " + name + " must be at least 1: " + threads);
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size for " + name + " must be at least 1: " + queueSize);
+        }
+        Stage stage = new Stage(name, Executors.newFixedThreadPool(threads), threads + queueSize, null);
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Adds a stage that runs each task on its own virtual thread. There's no queue: submit() blocks while the stage
+     * has as many tasks running as it's allowed. (With several lanes each may submit that many, and those over the cap
+     * wait their turn.)
+     *
+     * @param name        the stage's name, for logging
+     * @param concurrency the maximum number of tasks running at once
+     */
+    public Stage addVirtualStage(String name, int concurrency) {
+        checkOwnsStages();
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency for " + name + " must be at least 1: " + concurrency);
+        }
+        ThreadFactory factory = Thread.ofVirtual().name(name + "-", 0).factory();
+        Stage stage = new Stage(name, Executors.newThreadPerTaskExecutor(factory), concurrency, new Semaphore(concurrency));
+        stages.add(stage);
+        return stage;
+    }
+
+    private void checkOwnsStages() {
+        if (parent != null) {
+            throw new IllegalStateException("Stages can't be added to lane " + lane + ": add them to the scheduler that owns them");
+        }
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return the stage with the given name, or null if there isn't one
+     */
+    public Stage getStage(String name) {
+        for (Stage stage : stages) {
+            if (stage.name.equals(name)) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a scheduler for another run that shares this one's stages. The lane tracks its own sets, pending tasks and
+     * failures (failures are counted here too), and its awaitCompletion() waits for its own tasks only, leaving the
+     * stages running; they're shut down by this scheduler's awaitCompletion().
+     *
+     * @param name the lane's name, for logging; lanes with the same name share queues
+     */
+    public DownloadScheduler newLane(String name) {
+        checkOwnsStages();
+        return new DownloadScheduler(name, this, stages);
+    }
+
+    public void setSetListener(SetListener setListener) {
+        this.setListener = setListener;
+    }
+
+    private SetProgress getProgress(String setId) {
+        String key = setId == null ? NOT_IN_SET : setId;
+        SetProgress progress = sets.get(key);
+        if (progress == null) {
+            SetProgress newProgress = new SetProgress(key, setId);
+            progress = sets.putIfAbsent(key, newProgress);
+            if (progress == null) {
+                progress = newProgress;
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Counts a photo towards its set's total. Only used for reporting: a photo may need several tasks, or none.
+     *
+     * @param setId the set (null for photos not in a set)
+     */
+    public void photoEnumerated(String setId) {
+        getProgress(setId).photos.incrementAndGet();
+    }
+
+    /**
+     * Queues a task belonging to the given set on a stage, blocking while that stage's queue is full.
+     *
+     * @param stage the stage to run the task on
+     * @param setId the set the task belongs to (null for photos not in a set)
+     * @param task  the work to do
+     */
+    public void submit(Stage stage, String setId, Runnable task) {
+        submit(stage, setId, 0, task);
+    }
+
+    /**
+     * Queues a task belonging to the given set on a stage, ahead of any of this lane's queued tasks that cost more.
+     *
+     * @param stage the stage to run the task on
+     * @param setId the set the task belongs to (null for photos not in a set)
+     * @param cost  how expensive the task is expected to be, in whatever units suit the stage
+     * @param task  the work to do
+     */
+    public void submit(final Stage stage, String setId, long cost, final Runnable task) {
+        final SetProgress progress = getProgress(setId);
+        final Lane lane = stage.getLane(this.lane);
+        try {
+            lane.slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for a queue slot: " + e.getMessage(), e);
+        }
+        progress.taskSubmitted();
+        taskSubmitted();
+        stage.enqueue(lane, cost, new Runnable() {
+            public void run() {
+                stage.active.incrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    recordFailure();
+                    progress.failed = true;
+                    logger.error("Error in " + stage.name + " task for set " + progress.name + getLaneSuffix() + ": " + e.getMessage(), e);
+                } finally {
+                    stage.active.decrementAndGet();
+                    lane.slots.release();
+                    progress.taskCompleted();
+                    taskCompleted();
+                }
+            }
+        });
+    }
+
+    private String getLaneSuffix() {
+        return parent == null ? "" : " (" + lane + ")";
+    }
+
+    private synchronized void taskSubmitted() {
+        pending++;
+    }
+
+    private synchronized void taskCompleted() {
+        if (--pending == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks a set as fully enumerated: no more photos will be queued for it, so once its tasks (and any follow-on
+     * tasks) are done the set is complete.
+     *
+     * @param setId the set (null for photos not in a set)
+     */
+    public void setEnumerated(String setId) {
+        getProgress(setId).enumerated();
+    }
+
+    /**
+     * Counts a failure that happened outside a task (e.g. while listing a set), so the run isn't treated as complete.
+     */
+    public void recordFailure() {
+        failures.incrementAndGet();
+        if (parent != null) {
+            parent.recordFailure();
+        }
+    }
+
+    /**
+     * Counts a failure belonging to a set that happened outside a task, so the set isn't treated as complete either.
+     *
+     * @param setId the set (null for photos not in a set)
+     */
+    public void recordFailure(String setId) {
+        recordFailure();
+        getProgress(setId).failed = true;
+    }
+
+    /**
+     * @return the number of tasks that failed with an uncaught exception, plus any failures recorded directly
+     */
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Waits for every queued task, including any follow-on tasks they queue, to finish and shuts the stages down. A
+     * lane only waits for its own tasks and leaves the stages running.
+     */
+    public void awaitCompletion() {
+        try {
+            synchronized (this) {
+                while (pending > 0) {
+                    wait();
+                }
+            }
+            if (parent != null) {
+                return;
+            }
+            for (Stage stage : stages) {
+                stage.executor.shutdown();
+            }
+            for (Stage stage : stages) {
+                stage.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            for (Stage stage : stages) {
+                stage.executor.shutdownNow();
+            }
+            throw new RuntimeException("Error waiting for tasks to complete: " + e.getMessage(), e);
+        }
+    }
+
+    private class SetProgress {
+        private final String name;
+        private final String setId;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicInteger photos = new AtomicInteger();
+        // Starts at one for the enumeration itself, so the set can't look complete while photos are still being queued
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean failed = false;
+
+        private SetProgress(String name, String setId) {
+            this.name = name;
+            this.setId = setId;
+        }
+
+        private void taskSubmitted() {
+            pending.incrementAndGet();
+        }
+
+        private void taskCompleted() {
+            if (pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void enumerated() {
+            if (pending.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        private void complete() {
+            logger.info("Set {}{} complete: {} photos in {} ms", name, getLaneSuffix(), photos.get(), System.currentTimeMillis() - startTime);
+            SetListener listener = setListener;
+            if (listener != null) {
+                listener.setComplete(setId, failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.webstersmalley.flickomatic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The original layout: every image in one folder, named after the photo (<photoId>.<format>).
+ */
+public class FlatPhotoStore implements PhotoStore {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File folder;
+    private final ImageTransfer imageTransfer;
+
+    public FlatPhotoStore(File folder, ImageTransfer imageTransfer) {
+        this.folder = folder;
+        this.imageTransfer = imageTransfer;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public File getExistingFile(PhotoInfo photoInfo) {
+        return new File(folder, photoInfo.getId() + "." + photoInfo.getOriginalFormat());
+    }
+
+    public ImageTransfer.Result save(PhotoInfo photoInfo, String url) throws IOException {
+        ImageTransfer.Result result = imageTransfer.download(url, getExistingFile(photoInfo));
+        logger.debug("Saved {} bytes for photo {}", result.getBytes(), photoInfo.getId());
+        return result;
+    }
+}
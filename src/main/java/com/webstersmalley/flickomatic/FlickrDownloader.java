@@ -1,47 +1,29 @@
 package com.webstersmalley.flickomatic;
 
-import com.flickr4java.flickr.Flickr;
-import org.apache.commons.io.IOUtils;
-import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 
 import javax.annotation.Resource;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.InterruptedIOException;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by: Matthew Smalley
@@ -49,11 +31,19 @@ import java.util.concurrent.TimeUnit;
  */
 @Service("flickrDownloader")
 public class FlickrDownloader {
+    // How far before the previous run's start time a delta sync looks, to allow for clock differences with Flickr
+    private final static long DELTA_SYNC_OVERLAP_SECONDS = 600;
+    // How many listed photos are sorted by cost at a time before they're queued: a page of the listing
+    private final static int LISTING_WINDOW = PagedResponseIterator.DEFAULT_PAGE_SIZE;
+    // Unreferenced blobs younger than this may belong to a run still in progress, so they're left for the next sweep
+    private final static long SWEEP_MIN_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+    private final static String RECENTLY_UPDATED = "(recently updated)";
+    private final static String FAILED_VERIFICATION = "(failed verification)";
+    private final static String SELECTED = "(selected)";
+    // Asked for on every list call, so most photos never need a getInfo call to decide what to download
+    private final static String LIST_EXTRAS = "last_update,original_format,media,o_dims";
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private int threads = 8;
-
-    private final static String PHOTO_URL_FORMAT = "http://farm%s.staticflickr.com/%s/%s_%s_o.%s";
 
     @Value("${flickomatic.home.savedir.pictures}")
     private String picturesSaveFolder;
@@ -64,10 +54,156 @@ public class FlickrDownloader {
     @Value("${flickomatic.fulldownload}")
     private boolean fullDownload;
 
-    @Resource(name = "comms")
+    @Value("${flickomatic.threads:8}")
+    private int threads;
+
+    @Value("${flickomatic.threads.metadata:4}")
+    private int metadataThreads;
+
+    @Value("${flickomatic.threads.writer:2}")
+    private int writerThreads;
+
+    @Value("${flickomatic.threads.large:2}")
+    private int largeThreads;
+
+    // Originals expected to be at least this big go to the large transfer stage
+    @Value("${flickomatic.transfer.largesize:67108864}")
+    private long largeSize;
+
+    @Value("${flickomatic.virtualthreads:false}")
+    private boolean virtualThreads;
+
+    @Value("${flickomatic.virtualthreads.concurrency:256}")
+    private int virtualConcurrency;
+
+    @Value("${flickomatic.queue.size:1000}")
+    private int queueSize;
+
+    @Value("${flickomatic.home.manifest:}")
+    private String manifestFile;
+
+    @Value("${flickomatic.deltasync:false}")
+    private boolean deltaSync;
+
+    @Value("${flickomatic.store:flat}")
+    private String storeType;
+
+    @Value("${flickomatic.metadata.store:files}")
+    private String metadataStoreType;
+
+    @Value("${flickomatic.metadata.segmentsize:67108864}")
+    private long archiveSegmentSize;
+
+    // Only worth changing to point at a mirror or a test server
+    @Value("${flickomatic.image.urlformat:" + PhotoInfo.PHOTO_URL_FORMAT + "}")
+    private String imageUrlFormat = PhotoInfo.PHOTO_URL_FORMAT;
+
+    @Value("${flickomatic.metrics.interval:60}")
+    private long metricsInterval;
+
+    @Value("${flickomatic.metrics.report:}")
+    private String reportFile;
+
+    @Value("${flickomatic.resume:true}")
+    private boolean resume;
+
+    // Which photos to download and in what order (see Selection)
+    @Value("${flickomatic.select.from:}")
+    private String selectFrom;
+
+    @Value("${flickomatic.select.to:}")
+    private String selectTo;
+
+    @Value("${flickomatic.select.dateby:uploaded}")
+    private String selectDateBy;
+
+    @Value("${flickomatic.select.tags:}")
+    private String selectTags;
+
+    @Value("${flickomatic.select.media:all}")
+    private String selectMedia;
+
+    @Value("${flickomatic.select.sets:}")
+    private String selectSets;
+
+    @Value("${flickomatic.select.maxsize:0}")
+    private long selectMaxSize;
+
+    @Value("${flickomatic.select.order:size}")
+    private String selectOrder;
+
+    @Value("${flickomatic.verify.threads:4}")
+    private int verifyThreads;
+
+    // Bytes per second read by verify(), so it can run alongside a sync; 0 means no limit
+    @Value("${flickomatic.verify.maxrate:33554432}")
+    private long verifyMaxRate;
+
+    @Resource(name = "cachingComms")
     private Comms comms;
 
-    private Set<String> photosProcessed = Collections.synchronizedSet(new HashSet());
+    @Resource(name = "imageTransfer")
+    private ImageTransfer imageTransfer;
+
+    private PhotoManifest manifest;
+
+    private Selection selection;
+
+    private PhotoStore photoStore;
+
+    private MetadataSink metadataSink;
+
+    // Shared by the accounts, since what it learns about sizes holds for all of them
+    private SizeEstimator sizeEstimator = new SizeEstimator();
+
+    // Set when this is one of several accounts being archived at once (see forAccount())
+    private String accountName;
+    private DownloadScheduler sharedScheduler;
+
+    /**
+     * Creates a downloader for another account, with the same settings as this one but its own comms and folders. Its
+     * runs queue their work on a lane of the given scheduler rather than on stages of their own, and leave the metrics
+     * reporting to whoever owns the scheduler, writing just a report of their own account's run.
+     *
+     * @param name            the account's name, for logging
+     * @param accountComms    the account's comms
+     * @param picturesFolder  where the account's images go
+     * @param metadataFolder  where the account's metadata, manifest and sync state go
+     * @param sharedScheduler a scheduler made by createScheduler()
+     */
+    FlickrDownloader forAccount(String name, Comms accountComms, String picturesFolder, String metadataFolder,
+                                DownloadScheduler sharedScheduler) {
+        FlickrDownloader downloader = new FlickrDownloader();
+        downloader.picturesSaveFolder = picturesFolder;
+        downloader.metadataSaveFolder = metadataFolder;
+        downloader.fullDownload = fullDownload;
+        downloader.threads = threads;
+        downloader.metadataThreads = metadataThreads;
+        downloader.writerThreads = writerThreads;
+        downloader.largeThreads = largeThreads;
+        downloader.largeSize = largeSize;
+        downloader.virtualThreads = virtualThreads;
+        downloader.virtualConcurrency = virtualConcurrency;
+        downloader.queueSize = queueSize;
+        downloader.manifestFile = "";
+        downloader.deltaSync = deltaSync;
+        downloader.storeType = storeType;
+        downloader.metadataStoreType = metadataStoreType;
+        downloader.archiveSegmentSize = archiveSegmentSize;
+        downloader.imageUrlFormat = imageUrlFormat;
+        downloader.metricsInterval = metricsInterval;
+        downloader.reportFile = "";
+        downloader.resume = resume;
+        downloader.selection = getSelection();
+        downloader.verifyThreads = verifyThreads;
+        downloader.verifyMaxRate = verifyMaxRate;
+        downloader.comms = comms instanceof CachingComms ? ((CachingComms) comms).forAccount(accountComms) : accountComms;
+        downloader.imageTransfer = imageTransfer;
+        downloader.accountName = name;
+        downloader.sizeEstimator = sizeEstimator;
+        downloader.sharedScheduler = sharedScheduler;
+        return downloader;
+    }
 
     /**
      * Helper method to check (and create if necessary) a folder exists
@@ -77,6 +213,56 @@ public class FlickrDownloader {
         checkDirectory(new File(metadataSaveFolder));
     }
 
+    /**
+     * Makes sure the save folders exist, the manifest is loaded and we're logged in before any work is queued.
+     */
+    private void prepareRun() {
+        checkDirectories();
+        Metrics.get().register();
+        getManifest();
+        getPhotoStore();
+        getMetadataSink();
+        if (comms instanceof CachingComms) {
+            ((CachingComms) comms).load(new File(metadataSaveFolder, "flickomatic.cache"));
+        }
+        comms.authenticate();
+    }
+
+    /**
+     * The manifest is opened on first use and kept open (every record is flushed as it's written).
+     */
+    private synchronized PhotoManifest getManifest() {
+        if (manifest == null) {
+            File file = manifestFile.isEmpty() ? new File(metadataSaveFolder, "flickomatic.manifest") : new File(manifestFile);
+            manifest = new PhotoManifest(file);
+            manifest.open();
+        }
+        return manifest;
+    }
+
+    private synchronized Selection getSelection() {
+        if (selection == null) {
+            try {
+                selection = new Selection(selectFrom, selectTo, selectDateBy, selectTags, selectMedia, selectSets, selectMaxSize, selectOrder);
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid selection: " + e.getMessage());
+                throw new RuntimeException("Invalid selection: " + e.getMessage(), e);
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * @return what a run does, qualified by the selection if there is one (see RunJournal)
+     */
+    private String getRunKind(String kind) {
+        if (getSelection().isEverything()) {
+            return kind;
+        }
+        logger.info("Selecting {}", getSelection());
+        return kind + " selecting " + getSelection();
+    }
+
     private void checkDirectory(File directory) {
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
@@ -87,228 +273,801 @@ public class FlickrDownloader {
     }
 
     /**
-     * Helper method to write the binary image data to disk
-     *
-     * @param setName  name of the set (for folder naming purposes)
-     * @param photoId  name of the photo (for file naming purposes)
-     * @param format   the format (jpeg/png) (for file naming purposes)
-     * @param photoUrl the url to download
+     * Images go in one flat folder by default; with flickomatic.store=content they go in a deduplicating
+     * content-addressed store instead.
      */
-    private void savePhoto(String setName, String photoId, String format, String photoUrl, File outputFile) {
-        try {
-            URL url = new URL(photoUrl);
-            InputStream is = url.openStream();
-            OutputStream os = new FileOutputStream(outputFile);
-
-            byte[] b = new byte[2048];
-            int length;
-
-            while ((length = is.read(b)) != -1) {
-                os.write(b, 0, length);
+    private synchronized PhotoStore getPhotoStore() {
+        if (photoStore == null) {
+            if ("content".equals(storeType)) {
+                ContentAddressedStore store = new ContentAddressedStore(new File(picturesSaveFolder), imageTransfer);
+                store.register(getManifest().getFile());
+                photoStore = store;
+            } else if ("flat".equals(storeType)) {
+                photoStore = new FlatPhotoStore(new File(picturesSaveFolder), imageTransfer);
+            } else {
+                logger.error("Unknown store type: {}", storeType);
+                throw new RuntimeException("Unknown store type: " + storeType);
             }
-
-            is.close();
-            os.close();
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return photoStore;
     }
 
     /**
-     * Helper method to write a string to file
-     *
-     * @param outputFile  output file
-     * @param contents the string to write
+     * Metadata goes in one file per artifact by default; with flickomatic.metadata.store=archive it goes in a
+     * compressed, segmented archive instead.
      */
-    private void writeStringToFile(File outputFile, String contents) {
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(outputFile);
-            IOUtils.write(contents, fos);
-            IOUtils.closeQuietly(fos);
-        } catch (IOException e) {
-            logger.error("Error writing file: " + e.getMessage());
-            throw new RuntimeException("Error writing file: " + e.getMessage());
+    private synchronized MetadataSink getMetadataSink() {
+        if (metadataSink == null) {
+            if ("archive".equals(metadataStoreType)) {
+                MetadataArchive archive = new MetadataArchive(new File(metadataSaveFolder), archiveSegmentSize);
+                archive.open();
+                metadataSink = archive;
+            } else if ("files".equals(metadataStoreType)) {
+                metadataSink = new MetadataFolder(new File(metadataSaveFolder));
+            } else {
+                logger.error("Unknown metadata store type: {}", metadataStoreType);
+                throw new RuntimeException("Unknown metadata store type: " + metadataStoreType);
+            }
         }
+        return metadataSink;
     }
 
     /**
-     * Helper method to write a node of XML document to file
+     * Helper method to write a node of XML document to the metadata sink
      *
-     * @param outputFile  output file
-     * @param node    the Node to write
+     * @param name the file name
+     * @param node the Node to write
      */
-    private void writeNodeToFile(File outputFile, Node node) {
-        try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            StreamResult result = new StreamResult(new StringWriter());
-            DOMSource source = new DOMSource(node);
-            transformer.transform(source, result);
-
-            writeStringToFile(outputFile, result.getWriter().toString());
-        } catch (TransformerException e) {
-            logger.error("Error writing file: " + e.getMessage());
-            throw new RuntimeException("Error writing file: " + e.getMessage());
-        }
+    private void writeNodeToFile(String name, Node node) {
+        writeMetadata(name, XMLUtils.nodeToString(node));
     }
 
-    private DocumentBuilder builder;
-
-    public FlickrDownloader() {
+    /**
+     * Writes a metadata file, within the disk budget shared with the image transfers.
+     */
+    private void writeMetadata(String name, String contents) {
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException("Error creating document builder: " + e.getMessage(), e);
+            imageTransfer.reserveDiskWrite(contents.length());
+        } catch (InterruptedIOException e) {
+            throw new RuntimeException("Interrupted writing " + name, e);
         }
+        getMetadataSink().write(name, contents);
     }
 
-    private long getLastUpdateTime(Element element) {
-        long lastUpdateTime = Long.MAX_VALUE;
-        NodeList subElementsList = element.getElementsByTagName("dates");
-        for (int j = 0; j < subElementsList.getLength(); j++) {
-            Element datesElement = (Element) subElementsList.item(j);
-            String dateString = datesElement.getAttribute("lastupdate");
-            lastUpdateTime = ((Long.valueOf(dateString)*1000));
+    /**
+     * @return the photo's lastupdate time in milliseconds, or Long.MAX_VALUE if the server didn't give one (so the
+     * photo is always downloaded)
+     */
+    private long getLastUpdateTime(PhotoInfo photoInfo) {
+        if (photoInfo.getLastUpdate() < 0) {
+            return Long.MAX_VALUE;
         }
-        return lastUpdateTime;
+        return photoInfo.getLastUpdate() * 1000;
     }
 
-    private boolean shouldDownload(long lastUpdateTime, File outputFile) {
+    /**
+     * Decides whether an artifact needs (re)downloading. The manifest is checked first; only artifacts it doesn't know
+     * about fall back to comparing the file's modification time with the server's lastupdate time. Files found to be
+     * up to date that way are added to the manifest, so the next run doesn't need to stat them.
+     *
+     * A photo that was in flight when an earlier run stopped might have been caught part way through, so its files'
+     * timestamps aren't trusted: if the manifest doesn't have it, it's downloaded again.
+     *
+     * @param outputFile the file to check, or null if only the manifest can tell
+     */
+    private boolean shouldDownload(Pipeline pipeline, PhotoInfo photoInfo, PhotoManifest.Artifact artifact, File outputFile) {
         if (fullDownload) {
             return true;
         }
-        if (!outputFile.exists()) {
+        if (photoInfo.getLastUpdate() < 0) {
+            return true;
+        }
+        if (getManifest().isCurrent(photoInfo.getId(), photoInfo.getLastUpdate(), artifact)) {
+            logger.debug("Manifest has current {} for photo {}", artifact, photoInfo.getId());
+            Metrics.get().recordSkip(accountName, artifact);
+            return false;
+        }
+        if (outputFile == null || !outputFile.exists()) {
             return true;
         }
+        if (pipeline.untrusted.contains(photoInfo.getId())) {
+            logger.debug("Photo {} was in flight when the last run stopped: downloading {} again", photoInfo.getId(), artifact);
+            return true;
+        }
+        long lastUpdateTime = getLastUpdateTime(photoInfo);
         logger.debug("Checking date of last download vs lastupdate time for picture: {}", outputFile);
         boolean shouldDownload = outputFile.lastModified() <= lastUpdateTime;
         logger.debug("Server time: " + lastUpdateTime);
         logger.debug("File time: " + outputFile.lastModified());
         logger.debug("Should download? {}", shouldDownload);
+        if (!shouldDownload) {
+            Metrics.get().recordSkip(accountName, artifact);
+            getManifest().record(photoInfo.getId(), photoInfo.getLastUpdate(), photoInfo.getOriginalFormat(), artifact, null);
+        }
         return shouldDownload;
     }
 
+    /**
+     * @param checksum the checksum of the original image, or null for metadata
+     * @param size     the size of the original image in bytes, or -1 for metadata
+     */
+    private void recordDownload(PhotoInfo photoInfo, PhotoManifest.Artifact artifact, String checksum, long size) {
+        Metrics.get().recordDownload(accountName, artifact);
+        if (photoInfo.getLastUpdate() >= 0) {
+            getManifest().record(photoInfo.getId(), photoInfo.getLastUpdate(), photoInfo.getOriginalFormat(), artifact, checksum, size);
+        }
+    }
+
+    private File getMetadataFile(String photoId, String suffix) {
+        return getMetadataSink().getExistingFile(photoId + suffix);
+    }
+
+    /**
+     * @return true if the manifest says this artifact of this version of the photo has already been downloaded
+     */
+    private boolean isInManifest(PhotoInfo photoInfo, PhotoManifest.Artifact artifact) {
+        return !fullDownload && photoInfo.getLastUpdate() >= 0
+                && getManifest().isCurrent(photoInfo.getId(), photoInfo.getLastUpdate(), artifact);
+    }
+
+    /**
+     * @return true if the manifest has every artifact of this version of the photo
+     */
+    private boolean isComplete(String photoId, long lastUpdate) {
+        for (PhotoManifest.Artifact artifact : PhotoManifest.Artifact.values()) {
+            if (!getManifest().isCurrent(photoId, lastUpdate, artifact)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private String getPhotoResponse(String method, String photoId) {
+        return AsyncComms.await(requestPhotoResponse(method, photoId));
+    }
 
     /**
-     * Downloads everything about a given photo (ie the image itself in original format, the metadata and any comments.
+     * Sends a per-photo request without waiting for it, if the comms can (see AsyncComms.sendAsync()).
+     */
+    private CompletableFuture<String> requestPhotoResponse(String method, String photoId) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("method", method);
+        params.put("photo_id", photoId);
+        return AsyncComms.sendAsync(comms, params);
+    }
+
+    private String getPhotoInfoXML(String photoId, String secret) {
+        return AsyncComms.await(requestPhotoInfoXML(photoId, secret));
+    }
+
+    private CompletableFuture<String> requestPhotoInfoXML(String photoId, String secret) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("method", "flickr.photos.getInfo");
+        params.put("photo_id", photoId);
+        // Not needed for our own photos, so photos queued by id alone (see verify()) don't have one
+        if (secret != null) {
+            params.put("secret", secret);
+        }
+        return AsyncComms.sendAsync(comms, params);
+    }
+
+    /**
+     * The stages a run's work flows through. Enumeration (on the calling thread) queues work on the metadata and
+     * transfer stages; the metadata stage queues the files it has fetched on the writer stage. Images are streamed
+     * straight to disk by the transfer stage rather than handed to the writer, so whole originals are never held in
+     * memory.
      *
-     * @param setName   name of the set (for folder naming purposes)
-     * @param photoInfo flickr photo xml contents
+     * With flickomatic.virtualthreads the metadata and transfer stages, which spend nearly all their time waiting on
+     * the network, run each task on a virtual thread instead, up to flickomatic.virtualthreads.concurrency at a time.
+     * The API calls are still limited by ThrottlingComms, and the transfers by the HTTP connection pool, so raise
+     * flickomatic.http.maxconnections and flickomatic.http.maxperhost to match.
      */
-    private void processPhoto(String setName, String photoInfo) {
+    private class Pipeline {
+        private final DownloadScheduler scheduler = sharedScheduler == null ? createScheduler() : sharedScheduler.newLane(accountName);
+        private final DownloadScheduler.Stage metadata = scheduler.getStage("metadata");
+        private final DownloadScheduler.Stage transfer = scheduler.getStage("transfer");
+        private final DownloadScheduler.Stage large = scheduler.getStage("large");
+        private final DownloadScheduler.Stage writer = scheduler.getStage("writer");
+        private final RunJournal journal;
+        // Photos whose files can't be trusted: queued by an unfinished earlier run and not yet in the manifest in full,
+        // or found to be bad by verify()
+        private final Set<String> untrusted = new HashSet<String>();
+        // Photos listed but left out by the selection
+        private final AtomicInteger excluded = new AtomicInteger();
+        // Photos already looked at in this run, so a photo in several sets is only queued once
+        private final Set<String> processed = Collections.synchronizedSet(new HashSet<String>());
+
+        /**
+         * @param kind what the run does, to match it with an unfinished run of the same kind (see RunJournal)
+         */
+        private Pipeline(String kind) {
+            journal = new RunJournal(new File(metadataSaveFolder, "flickomatic.journal"), kind);
+            journal.open(resume && !fullDownload);
+            if (journal.isResumed()) {
+                for (Map.Entry<String, Long> photo : journal.getQueued().entrySet()) {
+                    if (!isComplete(photo.getKey(), photo.getValue())) {
+                        untrusted.add(photo.getKey());
+                    }
+                }
+                logger.info("Resuming the previous run: {} photos were in flight and will be checked again", untrusted.size());
+            }
+            scheduler.setSetListener(new DownloadScheduler.SetListener() {
+                public void setComplete(String setId, boolean failed) {
+                    if (!failed) {
+                        journal.setDone(setId);
+                    }
+                }
+            });
+            if (sharedScheduler == null) {
+                Metrics.get().startRun(scheduler);
+                Metrics.get().startReporting(metricsInterval);
+            }
+        }
+    }
+
+    /**
+     * @return a scheduler with the stages a run needs, sized by this downloader's settings
+     */
+    DownloadScheduler createScheduler() {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        if (virtualThreads) {
+            scheduler.addVirtualStage("metadata", virtualConcurrency);
+            scheduler.addVirtualStage("transfer", virtualConcurrency);
+            scheduler.addVirtualStage("large", largeThreads);
+        } else {
+            scheduler.addStage("metadata", metadataThreads, queueSize);
+            scheduler.addStage("transfer", threads, queueSize);
+            scheduler.addStage("large", largeThreads, queueSize);
+        }
+        scheduler.addStage("writer", writerThreads, queueSize);
+        return scheduler;
+    }
+
+    /**
+     * Waits for the run's work to finish, then logs the final metrics and writes the run report. On a shared scheduler
+     * that's left to its owner.
+     */
+    private void finishRun(Pipeline pipeline) {
         try {
-            Document doc = builder.parse(new InputSource(new StringReader(photoInfo)));
-
-            NodeList nodeList = doc.getElementsByTagName("photo");
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                if (nodeList.item(i) instanceof Element) {
-                    Element element = (Element) nodeList.item(i);
-                    String photoId = element.getAttribute("id");
-                    if (!photosProcessed.contains(photoId)) {
-                        photosProcessed.add(photoId);
-                        String farmId = element.getAttribute("farm");
-                        String serverId = element.getAttribute("server");
-                        String originalSecret = element.getAttribute("originalsecret");
-                        String format = element.getAttribute("originalformat");
-                        String url = String.format(PHOTO_URL_FORMAT, farmId, serverId, photoId, originalSecret, format);
-                        File photoFile = new File(picturesSaveFolder + File.separator + photoId + "." + format);
-                        File infoFile = new File(metadataSaveFolder + File.separator + photoId + ".info.xml");
-                        File commentsFile = new File(metadataSaveFolder + File.separator + photoId + ".comments.xml");
-                        File contextsFile = new File(metadataSaveFolder + File.separator + photoId + ".contexts.xml");
-                        long lastUpdateTime = getLastUpdateTime(element);
-
-                        if (shouldDownload(lastUpdateTime, photoFile)) {
-                            logger.info("Saving image for photo {}", photoId);
-                            savePhoto(setName, photoId, format, url, photoFile);
-                        }
-                        if (shouldDownload(lastUpdateTime, infoFile)) {
-                            logger.info("Saving metadata for photo {}", photoId);
-                            writeNodeToFile(infoFile, element);
-                        }
-                        if (shouldDownload(lastUpdateTime, commentsFile)) {
-                            savePhotoResponseToFile("flickr.photos.comments.getList", photoId, commentsFile);
-                        }
-                        if (shouldDownload(lastUpdateTime, contextsFile)) {
-                            savePhotoResponseToFile("flickr.photos.getAllContexts", photoId, contextsFile);
-                        }
+            pipeline.scheduler.awaitCompletion();
+            pipeline.journal.finish();
+        } finally {
+            pipeline.journal.close();
+            if (comms instanceof CachingComms) {
+                ((CachingComms) comms).save();
+            }
+            if (pipeline.excluded.get() > 0) {
+                logger.info("{} listed photos were left out by the selection", pipeline.excluded.get());
+            }
+            if (sharedScheduler != null) {
+                logger.info("Run finished for account {}: {} failures", accountName, pipeline.scheduler.getFailureCount());
+                Metrics.get().writeReport(new File(metadataSaveFolder, "flickomatic.report"), accountName,
+                        pipeline.scheduler.getFailureCount());
+            } else {
+                Metrics metrics = Metrics.get();
+                metrics.stopReporting();
+                logger.info("Run finished {}", metrics.getSummary());
+                metrics.writeReport(reportFile.isEmpty() ? new File(metadataSaveFolder, "flickomatic.report") : new File(reportFile));
+            }
+        }
+    }
+
+    /**
+     * Queues whatever is needed to bring a listed photo up to date. Photos listed with their original secret, format
+     * and lastupdate go straight to the stages that need them, and photos the manifest already has in full cost
+     * nothing more; only photos listed without those fields need a getInfo call before we know what to fetch.
+     *
+     * @param pipeline the current run's pipeline
+     * @param setId    the set the photo was listed in (for progress reporting)
+     * @param photo    the photo element's attributes from the list call
+     * @return false if there was nothing to do for the photo
+     */
+    private boolean enqueuePhoto(final Pipeline pipeline, final String setId, final Map<String, String> photo) {
+        final String photoId = photo.get("id");
+        if (!getSelection().accepts(photo)) {
+            pipeline.excluded.incrementAndGet();
+            return false;
+        }
+        if (!pipeline.processed.add(photoId)) {
+            return false;
+        }
+        if (comms instanceof CachingComms && photo.get("lastupdate") != null && photo.get("lastupdate").matches("\\d+")) {
+            ((CachingComms) comms).photoListed(photoId, Long.parseLong(photo.get("lastupdate")));
+        }
+        PhotoInfo photoInfo = PhotoInfo.fromListing(photo);
+        if (photoInfo != null && isTooLarge(pipeline, photoInfo)) {
+            return false;
+        }
+        pipeline.scheduler.photoEnumerated(setId);
+        final String secret = photo.get("secret");
+        long metadataCost = getSelection().getCost(photo, 0);
+        if (photoInfo == null) {
+            pipeline.journal.photoQueued(photoId, -1);
+            pipeline.scheduler.submit(pipeline.metadata, setId, metadataCost, new Runnable() {
+                public void run() {
+                    String photoInfoXML = getPhotoInfoXML(photoId, secret);
+                    PhotoInfo photoInfo = XMLUtils.getPhotoInfo(photoInfoXML);
+                    if (photoInfo == null) {
+                        throw new RuntimeException("No photo in getInfo response: " + photoInfoXML);
+                    }
+                    if (isTooLarge(pipeline, photoInfo)) {
+                        return;
                     }
+                    enqueueImage(pipeline, setId, photoInfo, photo);
+                    fetchMetadata(pipeline, setId, photoInfo, secret, photoInfoXML);
+                }
+            });
+            return true;
+        }
+
+        if (fullDownload || !isComplete(photoId, photoInfo.getLastUpdate())) {
+            pipeline.journal.photoQueued(photoId, photoInfo.getLastUpdate());
+        }
+        boolean queued = enqueueImage(pipeline, setId, photoInfo, photo);
+        if (!isInManifest(photoInfo, PhotoManifest.Artifact.INFO)
+                || !isInManifest(photoInfo, PhotoManifest.Artifact.COMMENTS)
+                || !isInManifest(photoInfo, PhotoManifest.Artifact.CONTEXTS)) {
+            final PhotoInfo listedInfo = photoInfo;
+            pipeline.scheduler.submit(pipeline.metadata, setId, metadataCost, new Runnable() {
+                public void run() {
+                    fetchMetadata(pipeline, setId, listedInfo, secret, null);
+                }
+            });
+            queued = true;
+        } else {
+            Metrics.get().recordSkip(accountName, PhotoManifest.Artifact.INFO);
+            Metrics.get().recordSkip(accountName, PhotoManifest.Artifact.COMMENTS);
+            Metrics.get().recordSkip(accountName, PhotoManifest.Artifact.CONTEXTS);
+        }
+        return queued;
+    }
+
+    /**
+     * @return true if the selection has a size limit and the photo's original is expected to be over it
+     */
+    private boolean isTooLarge(Pipeline pipeline, PhotoInfo photoInfo) {
+        if (getSelection().getMaxSize() <= 0
+                || getSelection().acceptsSize(sizeEstimator.estimate(photoInfo, getPhotoStore().getExistingFile(photoInfo)))) {
+            return false;
+        }
+        logger.debug("Leaving out photo {}: larger than the selection allows", photoInfo.getId());
+        pipeline.excluded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Queues the download of the original image, unless the manifest already has it. Originals expected to be large
+     * (videos, mostly) go to their own stage with a few workers, so they can't take every worker while thousands of
+     * small photos wait; within each stage the selection's order decides which go first (by default, the smallest
+     * expected downloads).
+     *
+     * @param photo the photo element's attributes from the list call
+     * @return true if a download was queued
+     */
+    private boolean enqueueImage(Pipeline pipeline, String setId, final PhotoInfo photoInfo, Map<String, String> photo) {
+        if (isInManifest(photoInfo, PhotoManifest.Artifact.IMAGE)) {
+            Metrics.get().recordSkip(accountName, PhotoManifest.Artifact.IMAGE);
+            return false;
+        }
+        final File photoFile = getPhotoStore().getExistingFile(photoInfo);
+        long expectedSize = sizeEstimator.estimate(photoInfo, photoFile);
+        DownloadScheduler.Stage stage = expectedSize >= largeSize ? pipeline.large : pipeline.transfer;
+        pipeline.scheduler.submit(stage, setId, getSelection().getCost(photo, expectedSize), new Runnable() {
+            public void run() {
+                if (!shouldDownload(pipeline, photoInfo, PhotoManifest.Artifact.IMAGE, photoFile)) {
+                    return;
+                }
+                logger.info("Saving image for photo {}", photoInfo.getId());
+                try {
+                    ImageTransfer.Result result = getPhotoStore().save(photoInfo, photoInfo.getOriginalUrl(imageUrlFormat));
+                    sizeEstimator.record(photoInfo, result.getBytes());
+                    recordDownload(photoInfo, PhotoManifest.Artifact.IMAGE, result.getChecksum(), result.getBytes());
+                } catch (IOException e) {
+                    // Logged (and counted) by the scheduler
+                    throw new RuntimeException("Error saving image for photo " + photoInfo.getId() + ": " + e.getMessage(), e);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        });
+        return true;
+    }
+
+    /**
+     * Fetches whichever of the photo's metadata files are out of date and queues them for writing. Runs on the
+     * metadata stage.
+     *
+     * @param photoInfoXML the getInfo response if we already have it, otherwise null (it's only fetched if the info
+     *                     file needs writing)
+     */
+    private void fetchMetadata(Pipeline pipeline, String setId, final PhotoInfo photoInfo, String secret, String photoInfoXML) {
+        String photoId = photoInfo.getId();
+        try {
+            // With async comms the requests are all in flight at once; otherwise they're made one after the other
+            CompletableFuture<String> info = null;
+            if (shouldDownload(pipeline, photoInfo, PhotoManifest.Artifact.INFO, getMetadataFile(photoId, ".info.xml"))) {
+                info = photoInfoXML == null ? requestPhotoInfoXML(photoId, secret) : CompletableFuture.completedFuture(photoInfoXML);
+            }
+            CompletableFuture<String> comments = null;
+            if (shouldDownload(pipeline, photoInfo, PhotoManifest.Artifact.COMMENTS, getMetadataFile(photoId, ".comments.xml"))) {
+                comments = requestPhotoResponse("flickr.photos.comments.getList", photoId);
+            }
+            CompletableFuture<String> contexts = null;
+            if (shouldDownload(pipeline, photoInfo, PhotoManifest.Artifact.CONTEXTS, getMetadataFile(photoId, ".contexts.xml"))) {
+                contexts = requestPhotoResponse("flickr.photos.getAllContexts", photoId);
+            }
+
+            if (info != null) {
+                final String infoXML = AsyncComms.await(info);
+                pipeline.scheduler.submit(pipeline.writer, setId, new Runnable() {
+                    public void run() {
+                        logger.info("Saving metadata for photo {}", photoInfo.getId());
+                        Document doc = XMLUtils.getDocumentFromString(infoXML);
+                        writeNodeToFile(photoInfo.getId() + ".info.xml", doc.getElementsByTagName("photo").item(0));
+                        recordDownload(photoInfo, PhotoManifest.Artifact.INFO, null, -1);
+                    }
+                });
+            }
+            if (comments != null) {
+                enqueueWrite(pipeline, setId, photoInfo, PhotoManifest.Artifact.COMMENTS, photoId + ".comments.xml", AsyncComms.await(comments));
+            }
+            if (contexts != null) {
+                enqueueWrite(pipeline, setId, photoInfo, PhotoManifest.Artifact.CONTEXTS, photoId + ".contexts.xml", AsyncComms.await(contexts));
+            }
+        } catch (RuntimeException e) {
+            // Logged (and counted) by the scheduler
+            throw new RuntimeException("Error fetching metadata for photo " + photoId + ": " + e.getMessage(), e);
         }
     }
-      
-    private void savePhotoResponseToFile(String method, String photoId, File outputFile) {
-        logger.info("Writing: {}", outputFile);
-        Map<String, String> params = new HashMap<String, String>();
-        params.put("method", method);
-        params.put("photo_id", photoId);
-        String comments = comms.sendGetRequest(params);
-        writeStringToFile(outputFile, comments);
+
+    private void enqueueWrite(Pipeline pipeline, String setId, final PhotoInfo photoInfo,
+                              final PhotoManifest.Artifact artifact, final String name, final String contents) {
+        pipeline.scheduler.submit(pipeline.writer, setId, new Runnable() {
+            public void run() {
+                writeMetadata(name, contents);
+                recordDownload(photoInfo, artifact, null, -1);
+            }
+        });
     }
 
     /**
-     * Downloads a specific set. Is called by downloadAllSets(), or alternatively can be used directly to specify a
-     * non-owned set.
+     * Queues the photos in a listing, cheapest first by the selection's order (see Selection.getCost()). The scheduler
+     * can only order what's in its queues, which are bounded, so the listing is read a page's worth at a time
+     * (LISTING_WINDOW photos) and each window is sorted before it's queued. The order holds within a window rather than
+     * across a whole set, and only one window is held in memory. If the listing fails part way through, what was read
+     * is still queued.
      *
-     * @param setId the id of the set to download
+     * @param setId the set the photos were listed in (for progress reporting)
+     * @return the number of photos there was nothing to do for
      */
-    public void downloadSet(String setId) {
-        checkDirectories();
-        String setContents;
+    private int enqueueListing(Pipeline pipeline, String setId, Iterator<Map<String, String>> photos) {
+        int skipped = 0;
+        List<Map<String, String>> window = new ArrayList<Map<String, String>>(LISTING_WINDOW);
+        final Map<String, Long> costs = new HashMap<String, Long>();
+        Comparator<Map<String, String>> byCost = new Comparator<Map<String, String>>() {
+            public int compare(Map<String, String> photo1, Map<String, String> photo2) {
+                return Long.compare(costs.get(photo1.get("id")), costs.get(photo2.get("id")));
+            }
+        };
+        RuntimeException listingError = null;
+        while (listingError == null) {
+            try {
+                while (window.size() < LISTING_WINDOW && photos.hasNext()) {
+                    Map<String, String> photo = photos.next();
+                    window.add(photo);
+                    costs.put(photo.get("id"), getListingCost(photo));
+                }
+            } catch (RuntimeException e) {
+                listingError = e;
+            }
+            if (window.isEmpty()) {
+                break;
+            }
+            Collections.sort(window, byCost);
+            for (Map<String, String> photo : window) {
+                if (!enqueuePhoto(pipeline, setId, photo)) {
+                    skipped++;
+                }
+            }
+            window.clear();
+            costs.clear();
+        }
+        if (listingError != null) {
+            throw listingError;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return the cost enqueuePhoto() will queue the photo's image at, or its metadata if the image is up to date or
+     * the listing doesn't say enough to estimate its size
+     */
+    private long getListingCost(Map<String, String> photo) {
+        PhotoInfo photoInfo = PhotoInfo.fromListing(photo);
+        if (photoInfo == null || isInManifest(photoInfo, PhotoManifest.Artifact.IMAGE)) {
+            return getSelection().getCost(photo, 0);
+        }
+        return getSelection().getCost(photo, sizeEstimator.estimate(photoInfo, getPhotoStore().getExistingFile(photoInfo)));
+    }
+
+    /**
+     * Queues every photo in a set, in cost order (see enqueueListing()).
+     *
+     * @param pipeline the current run's pipeline
+     * @param setId    the id of the set to download (null for photos not in any set)
+     */
+    private void enqueueSet(Pipeline pipeline, String setId) {
+        if (pipeline.journal.isDone(setId)) {
+            logger.info("Skipping set {}: completed before the last run stopped", setId);
+            return;
+        }
+        Map<String, String> params = new HashMap<String, String>();
         if (setId == null) {
             logger.info("Downloading photos not in sets");
-            Map<String, String> params = new HashMap<String, String>();
             params.put("method", "flickr.photos.getNotInSet");
-            setContents = comms.sendGetRequest(params);
         } else {
             logger.info("Downloading set: {}", setId);
-            Map<String, String> params = new HashMap<String, String>();
             params.put("method", "flickr.photosets.getPhotos");
             params.put("photoset_id", setId);
-            setContents = comms.sendGetRequest(params);
         }
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        params.put("extras", LIST_EXTRAS + getSelection().getExtras());
+        getSelection().addListParams(params, setId == null);
 
-        for (Map<String, String> photo : XMLUtils.getListOfAttributesFromElements(setContents, "//photo")) {
-            Map<String, String> photoParams = new HashMap<String, String>();
-            photoParams.put("method", "flickr.photos.getInfo");
-            photoParams.put("photo_id", photo.get("id"));
-            photoParams.put("secret", photo.get("secret"));
-            executor.execute(new Runnable() {
-                public void run() {
-                    String photoDetails = comms.sendGetRequest(photoParams);
-                    processPhoto(setId, photoDetails);
-                }
-            });
+        try {
+            enqueueListing(pipeline, setId, new PagedResponseIterator(comms, params, "photo"));
+        } catch (RuntimeException e) {
+            logger.error("Error listing set " + setId + ": " + e.getMessage(), e);
+            pipeline.scheduler.recordFailure(setId);
+        } finally {
+            pipeline.scheduler.setEnumerated(setId);
         }
-        executor.shutdown();
+    }
+
+    /**
+     * Queues the photos the selection picks out with a single search, rather than listing every set and filtering.
+     */
+    private void enqueueSearch(Pipeline pipeline) {
+        if (pipeline.journal.isDone(SELECTED)) {
+            logger.info("Skipping the selected photos: completed before the last run stopped");
+            return;
+        }
+        logger.info("Downloading photos selected by {}", getSelection());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("method", "flickr.photos.search");
+        getSelection().addSearchParams(params);
+        params.put("extras", LIST_EXTRAS + getSelection().getExtras());
         try {
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Error waiting for tasks to complete: " + e.getMessage(), e);
+            PagedResponseIterator photos = new PagedResponseIterator(comms, params, "photo");
+            enqueueListing(pipeline, SELECTED, photos);
+            if (photos.getTotal() > Selection.MAX_SEARCH_RESULTS) {
+                logger.warn("The selection matches {} photos, but Flickr only returns the first {} of a search: split it by date to get the rest",
+                        photos.getTotal(), Selection.MAX_SEARCH_RESULTS);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error searching for the selected photos: " + e.getMessage(), e);
+            pipeline.scheduler.recordFailure(SELECTED);
+        } finally {
+            pipeline.scheduler.setEnumerated(SELECTED);
+        }
+    }
+
+    /**
+     * Queues the photos created or modified since the given time.
+     *
+     * @param pipeline the current run's pipeline
+     * @param minDate  the earliest update time to include, in seconds since the epoch
+     */
+    private void enqueueRecentlyUpdated(Pipeline pipeline, long minDate) {
+        logger.info("Downloading photos updated since {}", minDate);
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("method", "flickr.photos.recentlyUpdated");
+        params.put("min_date", String.valueOf(minDate));
+        params.put("extras", LIST_EXTRAS + getSelection().getExtras());
+        int skipped = 0;
+        try {
+            skipped = enqueueListing(pipeline, RECENTLY_UPDATED, new PagedResponseIterator(comms, params, "photo"));
+        } catch (RuntimeException e) {
+            logger.error("Error listing recently updated photos: " + e.getMessage(), e);
+            pipeline.scheduler.recordFailure(RECENTLY_UPDATED);
+        } finally {
+            pipeline.scheduler.setEnumerated(RECENTLY_UPDATED);
         }
+        logger.info("Skipped {} recently updated photos already in the manifest", skipped);
+    }
 
+    /**
+     * Recreates the per-file metadata layout from the metadata archive.
+     *
+     * @param folder the folder to write the files to
+     */
+    public void exportMetadata(String folder) {
+        if (!"archive".equals(metadataStoreType)) {
+            logger.error("Metadata isn't archived (flickomatic.metadata.store={}): nothing to export", metadataStoreType);
+            throw new RuntimeException("Metadata isn't archived: nothing to export");
+        }
+        File target = new File(folder);
+        checkDirectory(target);
+        ((MetadataArchive) getMetadataSink()).export(target);
+    }
+
+    /**
+     * Checks the local copy for missing, truncated or corrupted files (see ArchiveVerifier), then downloads again just
+     * the photos that had any. The check reads every file, within flickomatic.verify.maxrate bytes per second. A
+     * content-addressed store is swept of blobs no photo refers to any more (see ContentAddressedStore.sweep()).
+     *
+     * @return the number of problems found
+     */
+    public int verify() {
+        prepareRun();
+        ArchiveVerifier verifier = new ArchiveVerifier(getManifest(), verifyThreads, verifyMaxRate);
+        List<ArchiveVerifier.Problem> problems = verifier.verify(getPhotoStore(), getMetadataSink());
+        if (getPhotoStore() instanceof ContentAddressedStore) {
+            ((ContentAddressedStore) getPhotoStore()).sweep(getManifest(), SWEEP_MIN_AGE_MILLIS);
+        }
+        Set<String> photoIds = new LinkedHashSet<String>();
+        for (ArchiveVerifier.Problem problem : problems) {
+            if (problem.getPhotoId() != null) {
+                photoIds.add(problem.getPhotoId());
+            }
+        }
+        if (photoIds.isEmpty()) {
+            return problems.size();
+        }
+        logger.info("Downloading {} photos again", photoIds.size());
+        Pipeline pipeline = new Pipeline("verify");
+        pipeline.untrusted.addAll(photoIds);
+        try {
+            for (String photoId : photoIds) {
+                // Listed by id alone, so each gets a getInfo call for its current details
+                enqueuePhoto(pipeline, FAILED_VERIFICATION, Collections.singletonMap("id", photoId));
+            }
+        } finally {
+            pipeline.scheduler.setEnumerated(FAILED_VERIFICATION);
+            finishRun(pipeline);
+        }
+        return problems.size();
+    }
+
+    private SyncState getSyncState() {
+        return new SyncState(new File(metadataSaveFolder, "flickomatic.state"));
+    }
+
+    /**
+     * Downloads a specific set. Can be used directly to specify a non-owned set.
+     *
+     * @param setId the id of the set to download
+     */
+    public void downloadSet(String setId) {
+        prepareRun();
+        Pipeline pipeline = new Pipeline(getRunKind("set " + setId));
+        try {
+            enqueueSet(pipeline, setId);
+        } finally {
+            finishRun(pipeline);
+        }
     }
 
     /**
-     * Downloads all the sets owned by the logged-in user. NB this does NOT include sets owned by other users which the
-     * logged-in user has access to. Use downloadSet(setId) if you want to download non-native sets.
+     * Downloads all the sets owned by the logged-in user, plus their photos that aren't in any set. NB this does NOT
+     * include sets owned by other users which the logged-in user has access to. Use downloadSet(setId) if you want to
+     * download non-native sets.
+     *
+     * All the sets share one pipeline, so photos from the next set are picked up as soon as a worker is free rather
+     * than waiting for the previous set to drain.
      */
     public void downloadAllSets() {
+        downloadAll();
+    }
+
+    /**
+     * @return the number of failures
+     */
+    private int downloadAll() {
         logger.info("Downloading all sets");
+        prepareRun();
 
         logger.debug("Download list of sets");
-        String photosetListXML = comms.sendGetRequest(Collections.singletonMap("method", "flickr.photosets.getList"));
-        List<Map<String, String>> setAttributeList = XMLUtils.getListOfAttributesFromElements(photosetListXML, "//photoset");
-        for (Map<String, String> setAttributes : setAttributeList) {
-            downloadSet(setAttributes.get("id"));
+        Pipeline pipeline = new Pipeline(getRunKind("all"));
+        try {
+            if (getSelection().isSearch()) {
+                enqueueSearch(pipeline);
+            } else if (!getSelection().getSets().isEmpty()) {
+                for (String setId : getSelection().getSets()) {
+                    enqueueSet(pipeline, setId);
+                }
+            } else {
+                if (pipeline.journal.isListed()) {
+                    logger.info("Using the list of sets from the last run");
+                    for (String setId : pipeline.journal.getSets()) {
+                        enqueueSet(pipeline, setId);
+                    }
+                } else {
+                    Iterator<Map<String, String>> sets = new PagedResponseIterator(comms,
+                            Collections.singletonMap("method", "flickr.photosets.getList"), "photoset");
+                    while (sets.hasNext()) {
+                        String setId = sets.next().get("id");
+                        pipeline.journal.setListed(setId);
+                        enqueueSet(pipeline, setId);
+                    }
+                    pipeline.journal.allSetsListed();
+                }
+                enqueueSet(pipeline, null);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error listing sets: " + e.getMessage(), e);
+            pipeline.scheduler.recordFailure();
+        } finally {
+            finishRun(pipeline);
+        }
+        return pipeline.scheduler.getFailureCount();
+    }
+
+    /**
+     * @return the number of failures
+     */
+    private int downloadRecentlyUpdated(long minDate) {
+        prepareRun();
+        Pipeline pipeline = new Pipeline(getRunKind("recent " + minDate));
+        try {
+            enqueueRecentlyUpdated(pipeline, minDate);
+        } finally {
+            finishRun(pipeline);
+        }
+        return pipeline.scheduler.getFailureCount();
+    }
+
+    /**
+     * Brings the local copy up to date. Without flickomatic.deltasync this is the same as downloadAllSets(). With it,
+     * only the first run enumerates everything; later runs ask flickr.photos.recentlyUpdated for what has changed since
+     * the last successful run. The high-water mark is only moved on when a run completes without failures, so anything
+     * that failed is picked up again next time.
+     *
+     * Photos changing set membership don't always update lastupdate, so an occasional full run is still worthwhile.
+     */
+    public void synchronise() {
+        if (!deltaSync) {
+            downloadAllSets();
+            return;
+        }
+        synchroniseChanges(fullDownload);
+    }
+
+    /**
+     * Downloads what has changed since the last successful sync, as synchronise() does with flickomatic.deltasync,
+     * whether or not that's set. Used by SyncDaemon, which polls with it.
+     *
+     * @param enumerateAll true to look at every photo rather than just the ones changed since the last sync
+     * @return the number of failures
+     */
+    public int synchroniseChanges(boolean enumerateAll) {
+        SyncState syncState = getSyncState();
+        long runStart = System.currentTimeMillis() / 1000;
+        long lastSync = syncState.getLastSync();
+        int failures;
+        if (lastSync < 0) {
+            logger.info("No previous sync recorded: downloading everything");
+            failures = downloadAll();
+        } else if (enumerateAll) {
+            failures = downloadAll();
+        } else {
+            failures = downloadRecentlyUpdated(lastSync - DELTA_SYNC_OVERLAP_SECONDS);
+        }
+        recordSync(syncState, runStart, failures);
+        return failures;
+    }
+
+    /**
+     * Moves the sync high-water mark on to the start of a run, if the run brought everything up to date: it had no
+     * failures, and the selection didn't leave anything out. Photos changed before then that a selection left out
+     * would otherwise never be looked at by a later delta run without it.
+     *
+     * @param runStart when the run started, in seconds since the epoch
+     */
+    void recordSync(SyncState syncState, long runStart, int failures) {
+        if (failures > 0) {
+            logger.warn("{} failures: not moving the sync high-water mark on", failures);
+        } else if (!getSelection().isEverything()) {
+            logger.info("Only some photos were selected ({}): not moving the sync high-water mark on", getSelection());
+        } else {
+            syncState.setLastSync(runStart);
         }
-        downloadSet(null);
     }
 }
@@ -0,0 +1,227 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The HTTP client shared by API calls and image downloads. Connections are pooled and kept alive, with a cap on the
+ * total and per-host number of connections, and every request has connect and read timeouts so a slow farm can't hang
+ * a worker forever.
+ *
+ * Asynchronous requests are sent through the same pool, each on a virtual thread of its own, so the connection limits
+ * hold for every request, whichever way it's sent. They aren't truly non-blocking: each runs the same blocking client
+ * as get(), which synchronizes internally, so a virtual thread can pin its carrier thread while it waits.
+ */
+@Service("httpTransport")
+public class HttpTransport {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${flickomatic.http.maxconnections:32}")
+    private int maxConnections = 32;
+
+    @Value("${flickomatic.http.maxperhost:8}")
+    private int maxConnectionsPerHost = 8;
+
+    @Value("${flickomatic.http.connecttimeout:15000}")
+    private int connectTimeout = 15000;
+
+    @Value("${flickomatic.http.readtimeout:60000}")
+    private int readTimeout = 60000;
+
+    private volatile DefaultHttpClient client;
+    private PoolingClientConnectionManager connectionManager;
+
+    private volatile ExecutorService asyncExecutor;
+
+    /**
+     * A response. Must be closed, which returns the connection to the pool.
+     */
+    public static class Response implements Closeable {
+        private final HttpGet request;
+        private final HttpResponse response;
+        private boolean consumed = false;
+
+        private Response(HttpGet request, HttpResponse response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        /**
+         * @return the value of the header, or null if it wasn't sent
+         */
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+
+        /**
+         * @return the length of the body, or -1 if not known
+         */
+        public long getContentLength() {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? -1 : entity.getContentLength();
+        }
+
+        public InputStream getBody() throws IOException {
+            consumed = true;
+            return response.getEntity().getContent();
+        }
+
+        public String getBodyAsString() throws IOException {
+            consumed = true;
+            HttpEntity entity = response.getEntity();
+            return entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+        }
+
+        /**
+         * Releases the connection. A body that has been read to the end leaves the connection reusable; one that
+         * hasn't is aborted rather than drained, since it could be a multi-gigabyte original.
+         */
+        public void close() {
+            if (consumed) {
+                try {
+                    EntityUtils.consume(response.getEntity());
+                } catch (IOException e) {
+                    request.abort();
+                }
+            } else {
+                request.abort();
+            }
+        }
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    private DefaultHttpClient getClient() {
+        DefaultHttpClient result = client;
+        if (result == null) {
+            synchronized (this) {
+                result = client;
+                if (result == null) {
+                    logger.debug("Creating http client: {} connections, {} per host", maxConnections, maxConnectionsPerHost);
+                    connectionManager = new PoolingClientConnectionManager();
+                    connectionManager.setMaxTotal(maxConnections);
+                    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+                    HttpParams params = new BasicHttpParams();
+                    HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+                    HttpConnectionParams.setSoTimeout(params, readTimeout);
+                    HttpConnectionParams.setTcpNoDelay(params, true);
+                    result = new DefaultHttpClient(connectionManager, params);
+                    client = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public Response get(String url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Sends a GET request. The caller must close the response.
+     */
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        HttpGet request = new HttpGet(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.addHeader(header.getKey(), header.getValue());
+        }
+        try {
+            return new Response(request, getClient().execute(request));
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            request.abort();
+            throw e;
+        }
+    }
+
+    private ExecutorService getAsyncExecutor() {
+        ExecutorService result = asyncExecutor;
+        if (result == null) {
+            synchronized (this) {
+                result = asyncExecutor;
+                if (result == null) {
+                    result = Executors.newVirtualThreadPerTaskExecutor();
+                    asyncExecutor = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends a GET request on a virtual thread, through the same pool as get(). It's the blocking client all the same:
+     * where the client synchronizes (e.g. waiting for a pooled connection) the virtual thread pins its carrier, so a
+     * large number of these in flight can still tie up platform threads. The future completes once the response
+     * headers have arrived; the caller must close the response.
+     */
+    public CompletableFuture<Response> getAsync(final String url, final Map<String, String> headers) {
+        final CompletableFuture<Response> result = new CompletableFuture<Response>();
+        getAsyncExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    result.complete(get(url, headers));
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (client != null) {
+            connectionManager.shutdown();
+            client = null;
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+            asyncExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Downloads images to disk. Data goes to a .part file next to the target through a FileChannel and a reusable direct
+ * buffer; when the transfer is complete the file is synced and atomically renamed into place, so a file with the final
+ * name is always complete.
+ *
+ * An interrupted transfer leaves its .part file behind, along with a small .part.meta file recording the url and the
+ * server's validator (ETag or Last-Modified). The next attempt resumes from where it stopped with an HTTP Range request.
+ * If the url or the image has changed in the meantime, the server sends the whole image and we start again.
+ *
+ * Optional budgets cap the bytes per second read from the network and written to disk by all transfers together
+ * (flickomatic.transfer.maxbandwidth and flickomatic.transfer.maxdiskrate; 0 means no limit), so a run can share a
+ * link or a disk politely. Metadata writes can draw on the disk budget through reserveDiskWrite().
+ */
+@Service("imageTransfer")
+public class ImageTransfer {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int HTTP_OK = 200;
+    private final static int HTTP_PARTIAL = 206;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${flickomatic.transfer.buffersize:262144}")
+    private int bufferSize = 262144;
+
+    @Value("${flickomatic.transfer.maxbandwidth:0}")
+    private long maxBandwidth = 0;
+
+    @Value("${flickomatic.transfer.maxdiskrate:0}")
+    private long maxDiskRate = 0;
+
+    @Resource(name = "httpTransport")
+    private HttpTransport httpTransport;
+
+    // Made from the settings on first use; null if there's no limit. Guarded by this until budgetsCreated is set
+    private TokenBucket bandwidthBudget;
+    private TokenBucket diskBudget;
+    private volatile boolean budgetsCreated = false;
+
+    // Direct buffers are expensive to allocate, so they're reused. A pool rather than one per thread, since with
+    // virtual threads every download runs on a new thread
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    public static class Result {
+        private final long bytes;
+        private final String checksum;
+
+        public Result(long bytes, String checksum) {
+            this.bytes = bytes;
+            this.checksum = checksum;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return hex SHA-256 of the whole file
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    /**
+     * @param maxBandwidth the most bytes per second to download, or 0 for no limit
+     */
+    public synchronized void setMaxBandwidth(long maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+        budgetsCreated = false;
+    }
+
+    /**
+     * @param maxDiskRate the most bytes per second to write, or 0 for no limit
+     */
+    public synchronized void setMaxDiskRate(long maxDiskRate) {
+        this.maxDiskRate = maxDiskRate;
+        budgetsCreated = false;
+    }
+
+    private void createBudgets() {
+        if (!budgetsCreated) {
+            synchronized (this) {
+                if (!budgetsCreated) {
+                    bandwidthBudget = createBudget(maxBandwidth);
+                    diskBudget = createBudget(maxDiskRate);
+                    budgetsCreated = true;
+                }
+            }
+        }
+    }
+
+    private static TokenBucket createBudget(long bytesPerSecond) {
+        // Up to a quarter of a second's worth can go in one burst
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, Math.max(1, bytesPerSecond / 4)) : null;
+    }
+
+    private static void spend(TokenBucket budget, long bytes) throws InterruptedIOException {
+        if (budget == null || bytes <= 0) {
+            return;
+        }
+        try {
+            budget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the transfer budget");
+        }
+    }
+
+    /**
+     * Waits until the disk budget allows this many bytes to be written.
+     */
+    public void reserveDiskWrite(long bytes) throws InterruptedIOException {
+        createBudgets();
+        spend(diskBudget, bytes);
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null && buffer.capacity() == bufferSize ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Error creating digest: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Downloads a url to a file, resuming a previous partial download if there is one.
+     *
+     * @param photoUrl   the url to download
+     * @param outputFile the final file name
+     * @return the size and checksum of the file
+     * @throws IOException if the transfer fails (the partial file is kept for the next attempt)
+     */
+    public Result download(String photoUrl, File outputFile) throws IOException {
+        File partFile = new File(outputFile.getPath() + ".part");
+        File metaFile = new File(outputFile.getPath() + ".part.meta");
+
+        String validator = readResumeValidator(metaFile, photoUrl);
+        long existing = validator != null && partFile.exists() ? partFile.length() : 0;
+
+        Map<String, String> headers = new HashMap<String, String>();
+        if (existing > 0) {
+            logger.debug("Resuming {} from byte {}", outputFile, existing);
+            headers.put("Range", "bytes=" + existing + "-");
+            headers.put("If-Range", validator);
+        }
+        Metrics.get().transferStarted();
+        long transferred = 0;
+        HttpTransport.Response response = null;
+        try {
+            response = httpTransport.get(photoUrl, headers);
+            int code = response.getStatusCode();
+            if (code == 416) {
+                // Our partial file is no use: throw it away and start again next time
+                deletePartial(partFile, metaFile);
+                throw new IOException("Range not satisfiable for " + photoUrl + " from byte " + existing);
+            }
+            if (code != HTTP_OK && code != HTTP_PARTIAL) {
+                throw new IOException("HTTP " + code + " downloading " + photoUrl);
+            }
+            if (code == HTTP_OK) {
+                existing = 0;
+            } else if (getRangeStart(response.getHeader("Content-Range")) != existing) {
+                // Appending this to the part file would corrupt it
+                String contentRange = response.getHeader("Content-Range");
+                deletePartial(partFile, metaFile);
+                if (existing == 0) {
+                    throw new IOException("Unexpected partial response for " + photoUrl + ": " + contentRange);
+                }
+                logger.warn("Asked for {} from byte {} but got {}: starting again", photoUrl, existing, contentRange);
+                response.close();
+                response = null;
+                return download(photoUrl, outputFile);
+            }
+            writeResumeValidator(metaFile, photoUrl, response);
+
+            long expected = response.getContentLength();
+            MessageDigest digest = createDigest();
+            long total = transfer(response.getBody(), partFile, existing, digest);
+            transferred = total - existing;
+            if (expected >= 0 && total - existing != expected) {
+                throw new IOException("Short transfer for " + photoUrl + ": expected " + expected + " bytes, got " + (total - existing));
+            }
+            commit(partFile, outputFile);
+            metaFile.delete();
+            return new Result(total, toHex(digest.digest()));
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            Metrics.get().transferFinished(transferred);
+        }
+    }
+
+    /**
+     * @param contentRange a Content-Range header, e.g. "bytes 1000-1999/2000"
+     * @return the first byte it covers, or -1 if it's missing or can't be read
+     */
+    static long getRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.trim().startsWith("bytes ")) {
+            return -1;
+        }
+        String range = contentRange.trim().substring("bytes ".length()).trim();
+        int dash = range.indexOf('-');
+        if (dash <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(0, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Copies the response into the part file, starting at offset (anything before that is already there, and is run
+     * through the digest first).
+     *
+     * @return the total size of the part file
+     */
+    private long transfer(InputStream is, File partFile, long offset, MessageDigest digest) throws IOException {
+        createBudgets();
+        ByteBuffer buffer = takeBuffer();
+        ReadableByteChannel source = Channels.newChannel(is);
+        FileChannel target = null;
+        try {
+            target = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            if (offset > 0) {
+                digestExisting(target, offset, digest, buffer);
+            }
+            target.truncate(offset);
+            target.position(offset);
+            long position = offset;
+            buffer.clear();
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                spend(bandwidthBudget, read);
+                spend(diskBudget, read);
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer);
+                }
+                buffer.clear();
+            }
+            target.force(true);
+            return position;
+        } finally {
+            IOUtils.closeQuietly(source);
+            if (target != null) {
+                target.close();
+            }
+            buffers.offer(buffer);
+        }
+    }
+
+    private void digestExisting(FileChannel channel, long length, MessageDigest digest, ByteBuffer buffer) throws IOException {
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            if (length - position < buffer.capacity()) {
+                buffer.limit((int) (length - position));
+            }
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Partial file shorter than expected");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    private void commit(File partFile, File outputFile) throws IOException {
+        try {
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void deletePartial(File partFile, File metaFile) {
+        partFile.delete();
+        metaFile.delete();
+    }
+
+    /**
+     * @return the validator to resume with, or null if there's no usable partial download for this url
+     */
+    private String readResumeValidator(File metaFile, String photoUrl) {
+        if (!metaFile.exists()) {
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(metaFile);
+            String[] lines = IOUtils.toString(is, "UTF-8").split("\n");
+            if (lines.length == 2 && lines[0].equals(photoUrl) && !lines[1].isEmpty()) {
+                return lines[1];
+            }
+        } catch (IOException e) {
+            logger.debug("Error reading {}: {}", metaFile, e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return null;
+    }
+
+    private void writeResumeValidator(File metaFile, String photoUrl, HttpTransport.Response response) throws IOException {
+        String validator = response.getHeader("ETag");
+        if (validator == null) {
+            validator = response.getHeader("Last-Modified");
+        }
+        if (validator == null || response.getHeader("Accept-Ranges") == null && response.getStatusCode() != HTTP_PARTIAL) {
+            // Can't resume safely
+            metaFile.delete();
+            return;
+        }
+        OutputStream os = new FileOutputStream(metaFile);
+        try {
+            os.write((photoUrl + "\n" + validator).getBytes(UTF8));
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.webstersmalley.flickomatic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with power-of-two microsecond buckets (under 1us, 1-2us, 2-4us ... up to about
+ * 40 minutes). Percentiles are reported as the upper bound of the bucket they fall in, so they're accurate to within a
+ * factor of two, which is plenty for telling a 50 ms API call from a 5 s one.
+ */
+public class LatencyHistogram {
+    private final static int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param percentile e.g. 99 for the 99th percentile
+     * @return the upper bound of the bucket holding that percentile, in milliseconds (0 if nothing has been recorded)
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min((1L << bucket) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * @return a one-line summary, e.g. "n=120 mean=85.2ms p50=65.5ms p99=524.3ms max=611.0ms"
+     */
+    public String summary() {
+        return String.format("n=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms", getCount(), getMeanMillis(),
+                getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+}
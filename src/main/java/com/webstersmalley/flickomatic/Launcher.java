@@ -2,25 +2,107 @@ package com.webstersmalley.flickomatic;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Created by: Matthew Smalley
  * Date: 05/10/13
  */
 public class Launcher {
+    // Options that choose which photos to download, e.g. --from 2020-01-01 (see Selection)
+    private final static List<String> SELECT_OPTIONS = Arrays.asList("from", "to", "dateby", "tags", "media", "sets", "maxsize", "order");
+
     private static Logger logger = LoggerFactory.getLogger(Launcher.class);
+
+    /**
+     * Turns --<option> <value> pairs for the selection options into flickomatic.select.<option> system properties,
+     * which override the properties file, and removes them from the arguments.
+     */
+    private static void applySelectOptions(List<String> arguments) {
+        for (int i = 0; i < arguments.size() - 1; ) {
+            String argument = arguments.get(i);
+            if (argument.startsWith("--") && SELECT_OPTIONS.contains(argument.substring(2))) {
+                System.setProperty("flickomatic.select." + argument.substring(2), arguments.get(i + 1));
+                arguments.subList(i, i + 2).clear();
+            } else {
+                i++;
+            }
+        }
+    }
+
     public static void main(String[] args) {
-        ApplicationContext applicationContext = new ClassPathXmlApplicationContext("beans.xml");
-        FlickrDownloader fd = applicationContext.getBean("flickrDownloader", FlickrDownloader.class);
-        if (args.length > 0) {
-            logger.info("Starting download of set: {}", args[0]);
-            fd.downloadSet(args[0]);
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        // --light wires the services directly instead of starting Spring, which is much quicker to start
+        boolean light = arguments.remove("--light");
+        // --daemon keeps running, polling for changes (see SyncDaemon)
+        boolean daemon = arguments.remove("--daemon");
+        applySelectOptions(arguments);
+        if (daemon && !arguments.isEmpty()) {
+            logger.error("--daemon syncs the account in flickomatic.properties and takes no other arguments: {}", arguments);
+            throw new RuntimeException("--daemon takes no other arguments: " + arguments);
+        }
+        boolean accounts = arguments.contains("--accounts");
+        FlickrDownloader fd;
+        MultiAccountDownloader multiAccountDownloader;
+        SyncDaemon syncDaemon;
+        DirectWiring wiring = null;
+        ClassPathXmlApplicationContext applicationContext = null;
+        if (light) {
+            wiring = DirectWiring.load(new File("flickomatic.properties"));
+            fd = wiring.getBean("flickrDownloader", FlickrDownloader.class);
+            multiAccountDownloader = accounts ? wiring.getBean("multiAccountDownloader", MultiAccountDownloader.class) : null;
+            syncDaemon = daemon ? wiring.getBean("syncDaemon", SyncDaemon.class) : null;
         } else {
-            logger.info("Starting download of all sets");
-            fd.downloadAllSets();
+            applicationContext = new ClassPathXmlApplicationContext("beans.xml");
+            fd = applicationContext.getBean("flickrDownloader", FlickrDownloader.class);
+            multiAccountDownloader = accounts ? applicationContext.getBean("multiAccountDownloader", MultiAccountDownloader.class) : null;
+            syncDaemon = daemon ? applicationContext.getBean("syncDaemon", SyncDaemon.class) : null;
+        }
+        try {
+            run(arguments, daemon, fd, multiAccountDownloader, syncDaemon);
+        } finally {
+            // Shuts down the connection pools and the like
+            if (wiring != null) {
+                wiring.close();
+            }
+            if (applicationContext != null) {
+                applicationContext.close();
+            }
         }
         logger.info("Download complete");
     }
+
+    private static void run(List<String> arguments, boolean daemon, FlickrDownloader fd,
+                            MultiAccountDownloader multiAccountDownloader, SyncDaemon syncDaemon) {
+        if (daemon) {
+            logger.info("Starting daemon");
+            final SyncDaemon stoppable = syncDaemon;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    stoppable.stop();
+                }
+            }, "daemon-shutdown"));
+            syncDaemon.run();
+        } else if (arguments.size() == 2 && "--accounts".equals(arguments.get(0))) {
+            logger.info("Starting download of the accounts in {}", arguments.get(1));
+            multiAccountDownloader.synchronise(arguments.get(1));
+        } else if (arguments.size() == 2 && "--export-metadata".equals(arguments.get(0))) {
+            logger.info("Exporting metadata to {}", arguments.get(1));
+            fd.exportMetadata(arguments.get(1));
+        } else if (arguments.size() == 1 && "--verify".equals(arguments.get(0))) {
+            logger.info("Verifying the local copy");
+            fd.verify();
+        } else if (arguments.size() > 0) {
+            logger.info("Starting download of set: {}", arguments.get(0));
+            fd.downloadSet(arguments.get(0));
+        } else {
+            logger.info("Starting download of all sets");
+            fd.synchronise();
+        }
+    }
 }
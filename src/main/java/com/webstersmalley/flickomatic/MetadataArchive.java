@@ -0,0 +1,472 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the metadata files in a handful of large archive files rather than three small files per photo. Records are
+ * appended to numbered segment files (metadata-000001.seg and so on, a new one started once the current one passes
+ * the segment size), each record being its name followed by its compressed contents, length-prefixed. An index file
+ * maps each name to the segment and offset of its latest record, so any one file can still be read without scanning.
+ *
+ * A metadata file is only a couple of KB, too little for compression to find much repetition in on its own, but the
+ * files are mostly the same XML elements and attributes over and over. So each record is deflated against a preset
+ * dictionary of that XML (DICTIONARY), which roughly halves what gzipping each file on its own gave, while keeping
+ * every record readable by itself. Records written by earlier versions, gzipped, are still read.
+ *
+ * Like the manifest, the index is an append-only log (name, segment, offset, length) where the last line for a name
+ * wins. A record is only indexed once it's fully written, so a crash can at worst leave an unindexed record behind. The
+ * segment is forced to disk before it's rolled over or closed, so a power cut can't leave a finished segment shorter
+ * than its index; for the current segment, index lines pointing past its end are dropped on opening. If the index is
+ * lost it's rebuilt by scanning the segments.
+ *
+ * Superseded records stay in their segments; export() and a fresh archive reclaim the space.
+ */
+public class MetadataArchive implements MetadataSink {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    // Gzipped records, as written by earlier versions
+    private final static int RECORD_MAGIC_GZIP = 0x464d4131;
+    private final static int RECORD_MAGIC = 0x464d4132;
+    private final static String INDEX_NAME = "metadata.index";
+    private final static String SEGMENT_PREFIX = "metadata-";
+    private final static String SEGMENT_SUFFIX = ".seg";
+
+    /*
+     * Fragments of the flickr.photos.getInfo, flickr.photos.comments.getList and flickr.photos.getAllContexts
+     * responses, for deflate to refer back to. Deflate finds the end of the dictionary cheapest to refer to, so the
+     * commonest fragments come last. Changing this makes existing records unreadable: add a new RECORD_MAGIC instead.
+     */
+    private final static byte[] DICTIONARY = (
+            "<pool id=\"\" title=\"\" url=\"/groups/\" iconserver=\"\" iconfarm=\"\" members=\"\" pool_count=\"\" />\n"
+            + "<set id=\"\" title=\"\" primary=\"\" view_count=\"\" comment_count=\"\" count_photo=\"\" count_video=\"\" />\n"
+            + "<prevphoto id=\"\" /><nextphoto id=\"\" />"
+            + "\t<comment id=\"\" author=\"\" author_is_deleted=\"0\" authorname=\"\" iconserver=\"\" iconfarm=\"\""
+            + " datecreate=\"\" permalink=\"https://www.flickr.com/photos//#comment\" path_alias=\"\" realname=\"\">"
+            + "</comment>\n<comments photo_id=\"\">\n</comments>\n"
+            + "\t<people haspeople=\"0\" />\n"
+            + "\t<permissions permcomment=\"3\" permaddmeta=\"2\" />\n"
+            + "\t<editability cancomment=\"1\" canaddmeta=\"1\" />\n"
+            + "\t<publiceditability cancomment=\"1\" canaddmeta=\"0\" />\n"
+            + "\t<usage candownload=\"1\" canblog=\"1\" canprint=\"1\" canshare=\"1\" />\n"
+            + "\t<notes>\n\t\t<note id=\"\" author=\"\" authorname=\"\" x=\"\" y=\"\" w=\"\" h=\"\"></note>\n\t</notes>\n"
+            + "\t<location latitude=\"\" longitude=\"\" accuracy=\"\" context=\"0\">"
+            + "<neighbourhood></neighbourhood><locality></locality><county></county><region></region><country></country></location>\n"
+            + "<geoperms ispublic=\"\" iscontact=\"\" isfriend=\"\" isfamily=\"\" />\n"
+            + "<video ready=\"\" failed=\"\" pending=\"\" duration=\"\" width=\"\" height=\"\" />\n"
+            + "\t<visibility ispublic=\"0\" isfriend=\"0\" isfamily=\"0\" />\n"
+            + "\t<dates posted=\"\" taken=\"\" takengranularity=\"0\" takenunknown=\"0\" lastupdate=\"\" />\n"
+            + "\t<views></views>\n\t<comments>0</comments>\n"
+            + "\t<owner nsid=\"@N00\" username=\"\" realname=\"\" location=\"\" iconserver=\"\" iconfarm=\"\" path_alias=\"\" />\n"
+            + "\t<title></title>\n\t<description></description>\n"
+            + "<photo id=\"\" secret=\"\" server=\"\" farm=\"\" dateuploaded=\"\" isfavorite=\"0\" license=\"0\""
+            + " safety_level=\"0\" rotation=\"0\" originalsecret=\"\" originalformat=\"jpg\" views=\"\" media=\"photo\">\n"
+            + "\t<urls>\n\t\t<url type=\"photopage\">https://www.flickr.com/photos//</url>\n\t</urls>\n</photo>\n"
+            + "\t<tags>\n\t\t<tag id=\"\" author=\"@N00\" authorname=\"\" raw=\"\" machine_tag=\"0\"></tag>\n\t</tags>\n"
+            + "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n</rsp>\n").getBytes(UTF8);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File folder;
+    private final long segmentSize;
+    private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+    private Writer indexWriter;
+    private FileChannel segment;
+    private int segmentNumber;
+
+    private static class Location {
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        private Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param folder      the folder holding the segments and index
+     * @param segmentSize the size past which a new segment is started
+     */
+    public MetadataArchive(File folder, long segmentSize) {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+    }
+
+    private File getIndexFile() {
+        return new File(folder, INDEX_NAME);
+    }
+
+    private File getSegmentFile(int number) {
+        return new File(folder, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return the numbers of the existing segments, in order
+     */
+    private List<Integer> listSegments() {
+        String[] names = folder.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Integer> numbers = new ArrayList<Integer>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected file in metadata archive: {}", name);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Loads the index (rebuilding it if necessary) and opens the latest segment for appending.
+     */
+    public synchronized void open() {
+        List<Integer> segments = listSegments();
+        try {
+            if (getIndexFile().exists()) {
+                loadIndex();
+            } else if (!segments.isEmpty()) {
+                rebuildIndex(segments);
+            }
+            logger.info("Opened metadata archive {}: {} files in {} segments", folder, index.size(), segments.size());
+            indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getIndexFile(), true), UTF8));
+            // Don't let the first new line run on from one left incomplete by a crash
+            indexWriter.write('\n');
+            indexWriter.flush();
+            openSegment(segments.isEmpty() ? 1 : segments.get(segments.size() - 1));
+            trimSegment();
+        } catch (IOException e) {
+            logger.error("Error opening metadata archive: " + e.getMessage(), e);
+            throw new RuntimeException("Error opening metadata archive: " + e.getMessage(), e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (segment != null) {
+                segment.force(false);
+            }
+        } catch (IOException e) {
+            logger.error("Error flushing metadata segment " + segmentNumber + ": " + e.getMessage(), e);
+        }
+        IOUtils.closeQuietly(indexWriter);
+        IOUtils.closeQuietly(segment);
+        indexWriter = null;
+        segment = null;
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (segment != null) {
+            // The index is about to point into the next segment: this one has to be complete on disk first
+            segment.force(false);
+            IOUtils.closeQuietly(segment);
+        }
+        segmentNumber = number;
+        segment = FileChannel.open(getSegmentFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Cuts anything after the last indexed record off the current segment, i.e. a record left unfinished (or
+     * unindexed) by a crash, so that later records don't end up after it where a rebuild couldn't find them. Index
+     * entries for records that never made it to disk, which a power cut can leave behind, are dropped; the manifest
+     * still lists them, so verify finds them missing and they're fetched again.
+     */
+    private void trimSegment() throws IOException {
+        long size = segment.size();
+        long end = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (location.segment != segmentNumber) {
+                continue;
+            }
+            if (location.offset + location.length > size) {
+                logger.warn("Dropping {} from the metadata index: it's past the end of segment {}", entry.getKey(), segmentNumber);
+                index.remove(entry.getKey());
+            } else {
+                end = Math.max(end, location.offset + location.length);
+            }
+        }
+        if (segment.size() > end) {
+            logger.warn("Discarding {} unindexed bytes at the end of metadata segment {}", segment.size() - end, segmentNumber);
+            segment.truncate(end);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(getIndexFile()), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) {
+                    if (!line.isEmpty()) {
+                        logger.warn("Ignoring malformed metadata index line: {}", line);
+                    }
+                    continue;
+                }
+                try {
+                    index.put(fields[0], new Location(Integer.parseInt(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring malformed metadata index line: {}", line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Recreates the index from the records in the segments. A record cut short by a crash ends the scan of its segment.
+     */
+    private void rebuildIndex(List<Integer> segments) throws IOException {
+        logger.warn("No metadata index in {}: rebuilding it from {} segments", folder, segments.size());
+        for (int number : segments) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getSegmentFile(number))));
+            try {
+                long offset = 0;
+                while (true) {
+                    int magic = in.readInt();
+                    if (magic != RECORD_MAGIC && magic != RECORD_MAGIC_GZIP) {
+                        logger.warn("Bad record in segment {} at offset {}", number, offset);
+                        break;
+                    }
+                    byte[] nameBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(nameBytes);
+                    String name = new String(nameBytes, UTF8);
+                    int length = in.readInt();
+                    long dataOffset = offset + getHeaderLength(nameBytes);
+                    in.readFully(new byte[length]);
+                    index.put(name, new Location(number, dataOffset, length));
+                    offset = dataOffset + length;
+                }
+            } catch (EOFException e) {
+                // End of the segment (possibly mid-record)
+            } finally {
+                in.close();
+            }
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getIndexFile()), UTF8));
+        try {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                writer.write(toIndexLine(entry.getKey(), entry.getValue()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String toIndexLine(String name, Location location) {
+        return name + '\t' + location.segment + '\t' + location.offset + '\t' + location.length + '\n';
+    }
+
+    /**
+     * No per-file stat to fall back on: only the manifest knows what's archived.
+     */
+    public File getExistingFile(String name) {
+        return null;
+    }
+
+    /**
+     * Appends a record, replacing any earlier one with the same name.
+     */
+    public void write(String name, String contents) {
+        byte[] record = toRecord(name, contents);
+        synchronized (this) {
+            if (segment == null) {
+                throw new IllegalStateException("Metadata archive is not open: " + folder);
+            }
+            try {
+                long position = segment.size();
+                if (position > 0 && position + record.length > segmentSize) {
+                    openSegment(segmentNumber + 1);
+                    position = 0;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer, position + buffer.position());
+                }
+                int headerLength = getHeaderLength(name.getBytes(UTF8));
+                Location location = new Location(segmentNumber, position + headerLength, record.length - headerLength);
+                indexWriter.write(toIndexLine(name, location));
+                indexWriter.flush();
+                index.put(name, location);
+            } catch (IOException e) {
+                logger.error("Error writing to metadata archive: " + e.getMessage(), e);
+                throw new RuntimeException("Error writing to metadata archive: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the size of a record's header: magic number, name length, name and data length
+     */
+    private static int getHeaderLength(byte[] nameBytes) {
+        return 4 + 2 + nameBytes.length + 4;
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 3 + 64);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        // Gzipped records start with the gzip magic number, which can't start a zlib stream
+        if (data.length > 1 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b) {
+            return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(data)));
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count > 0) {
+                    out.write(buffer, 0, count);
+                } else if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (inflater.needsInput()) {
+                    throw new EOFException("Record is cut short");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt record: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] toRecord(String name, String contents) {
+        try {
+            byte[] compressed = compress(contents.getBytes(UTF8));
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(compressed.length + name.length() + 16);
+            DataOutputStream out = new DataOutputStream(record);
+            byte[] nameBytes = name.getBytes(UTF8);
+            out.writeInt(RECORD_MAGIC);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+            out.close();
+            return record.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Error compressing " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the latest contents stored under the name, or null if there aren't any
+     */
+    public String read(String name) {
+        Location location = index.get(name);
+        if (location == null) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(getSegmentFile(location.segment).toPath(), StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new IOException("Segment " + location.segment + " is shorter than its index says");
+                }
+            }
+            return new String(decompress(buffer.array()), UTF8);
+        } catch (IOException e) {
+            logger.error("Error reading " + name + " from metadata archive: " + e.getMessage(), e);
+            throw new RuntimeException("Error reading " + name + " from metadata archive: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @return the names of everything in the archive, sorted
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<String>(index.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Writes the latest version of every record out as a separate file, recreating the per-file layout.
+     *
+     * @param target the folder to write to
+     * @return the number of files written
+     */
+    public int export(File target) {
+        MetadataFolder files = new MetadataFolder(target);
+        int count = 0;
+        for (String name : getNames()) {
+            files.write(name, read(name));
+            count++;
+        }
+        logger.info("Exported {} metadata files to {}", count, target);
+        return count;
+    }
+
+    /**
+     * @return the total size of the segments, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (int number : listSegments()) {
+            size += getSegmentFile(number).length();
+        }
+        return size;
+    }
+}
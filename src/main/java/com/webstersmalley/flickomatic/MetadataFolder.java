@@ -0,0 +1,63 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The original layout: one file per artifact in the metadata folder.
+ */
+public class MetadataFolder implements MetadataSink {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File folder;
+
+    public MetadataFolder(File folder) {
+        this.folder = folder;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public File getExistingFile(String name) {
+        return new File(folder, name);
+    }
+
+    /**
+     * Helper method to write a string to file. The contents go to a temporary file that's then moved into place, so a
+     * crash part way through never leaves a truncated file behind with a fresh timestamp.
+     *
+     * @param name     the file name
+     * @param contents the string to write
+     */
+    public void write(String name, String contents) {
+        File outputFile = new File(folder, name);
+        File tempFile = new File(folder, name + ".tmp");
+        logger.info("Writing: {}", outputFile);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            IOUtils.write(contents, fos);
+            fos.close();
+            try {
+                Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            logger.error("Error writing file: " + e.getMessage(), e);
+            throw new RuntimeException("Error writing file: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.webstersmalley.flickomatic;
+
+import java.io.File;
+
+/**
+ * Where the metadata files (getInfo, comments and contexts responses) are kept. Each is identified by the file name it
+ * has in the per-file layout, e.g. 1234.info.xml.
+ */
+public interface MetadataSink {
+    /**
+     * @return the file this metadata would already be in, or null if the sink can't tell without the manifest
+     */
+    File getExistingFile(String name);
+
+    void write(String name, String contents);
+}
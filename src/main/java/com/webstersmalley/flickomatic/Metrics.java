@@ -0,0 +1,415 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings from the hot paths of a run: API latency per method, image bytes and transfers in flight, what
+ * was downloaded or skipped, XML parse time, and the depth and activity of each pipeline stage. Everything is lock-free
+ * so recording costs next to nothing.
+ *
+ * One instance per process, since XMLUtils is static. It's published over JMX, logged as a summary line every so often
+ * while a run is going, and written out as a report when the run finishes. When several accounts are archived at once
+ * the downloads and skips are also counted per account, for each account's own report.
+ */
+public class Metrics implements MetricsMXBean {
+    private final static Metrics INSTANCE = new Metrics();
+    private final static String OBJECT_NAME = "com.webstersmalley.flickomatic:type=Metrics";
+    private final static double MB = 1024 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AtomicBoolean registered = new AtomicBoolean();
+
+    private volatile long runStart = System.nanoTime();
+    private volatile ConcurrentMap<String, LatencyHistogram> apiLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+    private volatile LatencyHistogram xmlParse = new LatencyHistogram();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicInteger transfersInFlight = new AtomicInteger();
+    private final Map<PhotoManifest.Artifact, AtomicLong> downloaded = createCounters();
+    private final Map<PhotoManifest.Artifact, AtomicLong> skipped = createCounters();
+    private final ConcurrentMap<String, Map<PhotoManifest.Artifact, AtomicLong>> accountDownloaded = new ConcurrentHashMap<String, Map<PhotoManifest.Artifact, AtomicLong>>();
+    private final ConcurrentMap<String, Map<PhotoManifest.Artifact, AtomicLong>> accountSkipped = new ConcurrentHashMap<String, Map<PhotoManifest.Artifact, AtomicLong>>();
+    private volatile DownloadScheduler scheduler;
+    // When anything was last recorded, so a long run can be told from a stuck one
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+
+    private ScheduledExecutorService reporter;
+    // For the rate over the last interval in the summary line; guarded by this
+    private long lastSummaryTime;
+    private long lastSummaryBytes;
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    private static Map<PhotoManifest.Artifact, AtomicLong> createCounters() {
+        Map<PhotoManifest.Artifact, AtomicLong> counters = new EnumMap<PhotoManifest.Artifact, AtomicLong>(PhotoManifest.Artifact.class);
+        for (PhotoManifest.Artifact artifact : PhotoManifest.Artifact.values()) {
+            counters.put(artifact, new AtomicLong());
+        }
+        return counters;
+    }
+
+    /**
+     * Clears the counts ready for a new run and starts watching its scheduler.
+     */
+    public void startRun(DownloadScheduler scheduler) {
+        runStart = System.nanoTime();
+        apiLatency = new ConcurrentHashMap<String, LatencyHistogram>();
+        xmlParse = new LatencyHistogram();
+        bytesTransferred.set(0);
+        for (PhotoManifest.Artifact artifact : PhotoManifest.Artifact.values()) {
+            downloaded.get(artifact).set(0);
+            skipped.get(artifact).set(0);
+        }
+        accountDownloaded.clear();
+        accountSkipped.clear();
+        this.scheduler = scheduler;
+        synchronized (this) {
+            lastSummaryTime = runStart;
+            lastSummaryBytes = 0;
+        }
+    }
+
+    public void recordApiCall(String method, long nanos) {
+        String key = method == null ? "(none)" : method;
+        ConcurrentMap<String, LatencyHistogram> histograms = apiLatency;
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos);
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    public void transferStarted() {
+        transfersInFlight.incrementAndGet();
+    }
+
+    /**
+     * @param bytes the number of bytes actually transferred (not counting any that were already there from a previous
+     *              attempt)
+     */
+    public void transferFinished(long bytes) {
+        transfersInFlight.decrementAndGet();
+        bytesTransferred.addAndGet(bytes);
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    public void recordDownload(PhotoManifest.Artifact artifact) {
+        downloaded.get(artifact).incrementAndGet();
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    public void recordSkip(PhotoManifest.Artifact artifact) {
+        skipped.get(artifact).incrementAndGet();
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param account the account the download was for, or null if there's only the one
+     */
+    public void recordDownload(String account, PhotoManifest.Artifact artifact) {
+        recordDownload(artifact);
+        if (account != null) {
+            getAccountCounters(accountDownloaded, account).get(artifact).incrementAndGet();
+        }
+    }
+
+    /**
+     * @param account the account the skip was for, or null if there's only the one
+     */
+    public void recordSkip(String account, PhotoManifest.Artifact artifact) {
+        recordSkip(artifact);
+        if (account != null) {
+            getAccountCounters(accountSkipped, account).get(artifact).incrementAndGet();
+        }
+    }
+
+    private static Map<PhotoManifest.Artifact, AtomicLong> getAccountCounters(
+            ConcurrentMap<String, Map<PhotoManifest.Artifact, AtomicLong>> accounts, String account) {
+        Map<PhotoManifest.Artifact, AtomicLong> counters = accounts.get(account);
+        if (counters == null) {
+            Map<PhotoManifest.Artifact, AtomicLong> newCounters = createCounters();
+            counters = accounts.putIfAbsent(account, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    public void recordParse(long nanos) {
+        xmlParse.record(nanos);
+    }
+
+    /**
+     * @return when an API call, transfer, download or skip was last recorded, in milliseconds since the epoch
+     */
+    public long getLastActivityMillis() {
+        return lastActivityMillis;
+    }
+
+    public long getRunSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - runStart);
+    }
+
+    public Map<String, Long> getApiCalls() {
+        Map<String, Long> calls = new TreeMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : apiLatency.entrySet()) {
+            calls.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return calls;
+    }
+
+    private Map<String, Double> getApiLatencyPercentile(double percentile) {
+        Map<String, Double> latencies = new TreeMap<String, Double>();
+        for (Map.Entry<String, LatencyHistogram> entry : apiLatency.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().getPercentileMillis(percentile));
+        }
+        return latencies;
+    }
+
+    public Map<String, Double> getApiLatencyP50Millis() {
+        return getApiLatencyPercentile(50);
+    }
+
+    public Map<String, Double> getApiLatencyP99Millis() {
+        return getApiLatencyPercentile(99);
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * @return the average image transfer rate over the run so far
+     */
+    public double getBytesPerSecond() {
+        double seconds = (System.nanoTime() - runStart) / 1e9;
+        return seconds <= 0 ? 0 : bytesTransferred.get() / seconds;
+    }
+
+    public int getTransfersInFlight() {
+        return transfersInFlight.get();
+    }
+
+    private static Map<String, Long> toNamedCounts(Map<PhotoManifest.Artifact, AtomicLong> counters) {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<PhotoManifest.Artifact, AtomicLong> entry : counters.entrySet()) {
+            counts.put(entry.getKey().name().toLowerCase(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    private static long total(Map<PhotoManifest.Artifact, AtomicLong> counters) {
+        long total = 0;
+        for (AtomicLong counter : counters.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    public Map<String, Long> getDownloaded() {
+        return toNamedCounts(downloaded);
+    }
+
+    public Map<String, Long> getSkipped() {
+        return toNamedCounts(skipped);
+    }
+
+    public long getFailed() {
+        DownloadScheduler current = scheduler;
+        return current == null ? 0 : current.getFailureCount();
+    }
+
+    public long getXmlParses() {
+        return xmlParse.getCount();
+    }
+
+    public double getXmlParseMeanMillis() {
+        return xmlParse.getMeanMillis();
+    }
+
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<String, Integer>();
+        DownloadScheduler current = scheduler;
+        if (current != null) {
+            for (DownloadScheduler.Stage stage : current.getStages()) {
+                depths.put(stage.getName(), stage.getQueued());
+            }
+        }
+        return depths;
+    }
+
+    public Map<String, Integer> getActiveWorkers() {
+        Map<String, Integer> active = new TreeMap<String, Integer>();
+        DownloadScheduler current = scheduler;
+        if (current != null) {
+            for (DownloadScheduler.Stage stage : current.getStages()) {
+                active.put(stage.getName(), stage.getActive());
+            }
+        }
+        return active;
+    }
+
+    private String getStageSummary() {
+        StringBuilder sb = new StringBuilder();
+        DownloadScheduler current = scheduler;
+        if (current != null) {
+            for (DownloadScheduler.Stage stage : current.getStages()) {
+                sb.append(' ').append(stage.getName()).append('=').append(stage.getActive()).append('+').append(stage.getQueued());
+            }
+        }
+        return sb.toString();
+    }
+
+    private long getApiCallCount() {
+        long calls = 0;
+        for (LatencyHistogram histogram : apiLatency.values()) {
+            calls += histogram.getCount();
+        }
+        return calls;
+    }
+
+    public String getSummary() {
+        return String.format("%ds: %d downloaded, %d skipped, %d failed; %d api calls; %.1f MB images at %.2f MB/s, %d in flight; stages (active+queued):%s",
+                getRunSeconds(), total(downloaded), total(skipped), getFailed(), getApiCallCount(),
+                bytesTransferred.get() / MB, getBytesPerSecond() / MB, transfersInFlight.get(), getStageSummary());
+    }
+
+    /**
+     * Publishes the metrics over JMX (once per process).
+     */
+    public void register() {
+        if (!registered.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            // Not worth failing a run over
+            logger.warn("Error registering metrics with JMX: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Logs a summary line at the given interval until stopReporting() is called.
+     */
+    public synchronized void startReporting(long intervalSeconds) {
+        stopReporting();
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                logSummary();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    private synchronized void logSummary() {
+        long now = System.nanoTime();
+        long bytes = bytesTransferred.get();
+        double seconds = (now - lastSummaryTime) / 1e9;
+        double recentRate = seconds <= 0 ? 0 : (bytes - lastSummaryBytes) / seconds / MB;
+        lastSummaryTime = now;
+        lastSummaryBytes = bytes;
+        logger.info("Progress {}; last interval {} MB/s", getSummary(), String.format("%.2f", recentRate));
+    }
+
+    /**
+     * Writes a report of the run so far.
+     */
+    public void writeReport(File file) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("flickomatic run report, ").append(new Date()).append('\n');
+        sb.append("Duration: ").append(getRunSeconds()).append(" s\n");
+        sb.append("Downloaded: ").append(getDownloaded()).append('\n');
+        sb.append("Skipped: ").append(getSkipped()).append('\n');
+        sb.append("Failed: ").append(getFailed()).append('\n');
+        sb.append(String.format("Images: %.1f MB at %.2f MB/s%n", bytesTransferred.get() / MB, getBytesPerSecond() / MB));
+        sb.append("API latency:\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(apiLatency).entrySet()) {
+            sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue().summary()).append('\n');
+        }
+        sb.append("XML parsing: ").append(xmlParse.summary()).append('\n');
+        write(file, sb.toString());
+    }
+
+    /**
+     * Writes a report of one account's part of the run so far. Only the downloads, skips and failures are the
+     * account's own; the rest is only kept for the run as a whole, so it's labelled as covering every account.
+     *
+     * @param failures the account's failures
+     */
+    public void writeReport(File file, String account, long failures) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("flickomatic run report for account ").append(account).append(", ").append(new Date()).append('\n');
+        sb.append("Downloaded: ").append(toNamedCounts(getAccountCounters(accountDownloaded, account))).append('\n');
+        sb.append("Skipped: ").append(toNamedCounts(getAccountCounters(accountSkipped, account))).append('\n');
+        sb.append("Failed: ").append(failures).append('\n');
+        sb.append("All accounts together:\n");
+        sb.append("  Duration: ").append(getRunSeconds()).append(" s\n");
+        sb.append(String.format("  Images: %.1f MB at %.2f MB/s%n", bytesTransferred.get() / MB, getBytesPerSecond() / MB));
+        write(file, sb.toString());
+    }
+
+    private void write(File file, String report) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(report);
+            writer.close();
+            logger.info("Wrote run report to {}", file);
+        } catch (IOException e) {
+            // The run itself is done; losing the report isn't worth failing it over
+            logger.error("Error writing run report: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.webstersmalley.flickomatic;
+
+import java.util.Map;
+
+/**
+ * What's exposed over JMX, as com.webstersmalley.flickomatic:type=Metrics. Counts are for the current (or most recent)
+ * run.
+ */
+public interface MetricsMXBean {
+    long getRunSeconds();
+
+    Map<String, Long> getApiCalls();
+
+    Map<String, Double> getApiLatencyP50Millis();
+
+    Map<String, Double> getApiLatencyP99Millis();
+
+    long getBytesTransferred();
+
+    double getBytesPerSecond();
+
+    int getTransfersInFlight();
+
+    Map<String, Long> getDownloaded();
+
+    Map<String, Long> getSkipped();
+
+    long getFailed();
+
+    long getXmlParses();
+
+    double getXmlParseMeanMillis();
+
+    Map<String, Integer> getQueueDepths();
+
+    Map<String, Integer> getActiveWorkers();
+
+    String getSummary();
+}
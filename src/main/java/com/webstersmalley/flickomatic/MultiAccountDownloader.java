@@ -0,0 +1,171 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Archives several accounts in one process. The accounts are listed in a properties file:
+ *
+ *   accounts=mum,dad
+ *   mum.authfile=/home/me/.flickomatic/mum.auth
+ *   mum.savedir.pictures=/archive/mum/pictures
+ *   mum.savedir.metadata=/archive/mum/metadata
+ *   mum.maxrate=2
+ *   dad.authfile=...
+ *
+ * maxrate is optional, defaulting to flickomatic.api.maxrate; everything else comes from the usual configuration.
+ *
+ * Each account is synchronised on its own thread, with its own token, folders, manifest and rate limit. They all share
+ * the worker stages, which take the accounts' tasks in turn so one big account can't starve the others, and the http
+ * connection pool. Flickr's limits are per API key, so flickomatic.api.maxrate also caps the accounts' requests as a
+ * whole. Likewise flickomatic.api.maxconcurrent is split between the accounts, so together they don't have more
+ * requests in flight than the connection pool has connections to Flickr.
+ *
+ * Each account gets its own run report, flickomatic.report in its metadata folder.
+ */
+@Service("multiAccountDownloader")
+public class MultiAccountDownloader {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${flickomatic.api.maxrate:10}")
+    private double maxRate;
+
+    @Value("${flickomatic.metrics.interval:60}")
+    private long metricsInterval;
+
+    @Resource(name = "flickrDownloader")
+    private FlickrDownloader flickrDownloader;
+
+    @Resource(name = "oauthComms")
+    private OAuthAwareComms oauthComms;
+
+    @Resource(name = "comms")
+    private ThrottlingComms comms;
+
+    private static class Account {
+        private final String name;
+        private final String authfile;
+        private final String picturesFolder;
+        private final String metadataFolder;
+        private final double maxRate;
+
+        private Account(String name, String authfile, String picturesFolder, String metadataFolder, double maxRate) {
+            this.name = name;
+            this.authfile = authfile;
+            this.picturesFolder = picturesFolder;
+            this.metadataFolder = metadataFolder;
+            this.maxRate = maxRate;
+        }
+    }
+
+    private String getRequiredProperty(Properties properties, String account, String name) {
+        String value = properties.getProperty(account + "." + name);
+        if (value == null || value.trim().isEmpty()) {
+            logger.error("Account {} has no {}", account, name);
+            throw new RuntimeException("Account " + account + " has no " + name);
+        }
+        return value.trim();
+    }
+
+    private List<Account> loadAccounts(String accountsFile) {
+        Properties properties = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(accountsFile);
+            properties.load(is);
+        } catch (IOException e) {
+            logger.error("Error reading accounts file: " + e.getMessage(), e);
+            throw new RuntimeException("Error reading accounts file: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        List<Account> accounts = new ArrayList<Account>();
+        for (String name : properties.getProperty("accounts", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String accountMaxRate = properties.getProperty(name + ".maxrate");
+            accounts.add(new Account(name,
+                    getRequiredProperty(properties, name, "authfile"),
+                    getRequiredProperty(properties, name, "savedir.pictures"),
+                    getRequiredProperty(properties, name, "savedir.metadata"),
+                    accountMaxRate == null ? maxRate : Double.parseDouble(accountMaxRate.trim())));
+        }
+        if (accounts.isEmpty()) {
+            logger.error("No accounts listed in {}", accountsFile);
+            throw new RuntimeException("No accounts listed in " + accountsFile);
+        }
+        return accounts;
+    }
+
+    /**
+     * Brings every account's local copy up to date (see FlickrDownloader.synchronise()).
+     *
+     * @param accountsFile the properties file listing the accounts
+     * @return the number of failures across all the accounts
+     */
+    public int synchronise(String accountsFile) {
+        List<Account> accounts = loadAccounts(accountsFile);
+        TokenBucket keyBucket = new TokenBucket(maxRate, Math.max(1, maxRate));
+        final DownloadScheduler scheduler = flickrDownloader.createScheduler();
+        int accountMaxConcurrent = Math.max(1, comms.getMaxConcurrent() / accounts.size());
+
+        // One at a time, since a missing token means asking at the console
+        List<FlickrDownloader> downloaders = new ArrayList<FlickrDownloader>();
+        for (Account account : accounts) {
+            logger.info("Logging in account {}", account.name);
+            OAuthAwareComms accountComms = oauthComms.forAccount(account.authfile);
+            accountComms.authenticate();
+            downloaders.add(flickrDownloader.forAccount(account.name, comms.forAccount(accountComms, account.maxRate, accountMaxConcurrent, keyBucket),
+                    account.picturesFolder, account.metadataFolder, scheduler));
+        }
+
+        Metrics metrics = Metrics.get();
+        metrics.register();
+        metrics.startRun(scheduler);
+        metrics.startReporting(metricsInterval);
+        try {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < accounts.size(); i++) {
+                final String name = accounts.get(i).name;
+                final FlickrDownloader downloader = downloaders.get(i);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            downloader.synchronise();
+                        } catch (RuntimeException e) {
+                            logger.error("Error synchronising account " + name + ": " + e.getMessage(), e);
+                            scheduler.recordFailure();
+                        }
+                    }
+                }, "account-" + name);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for accounts to finish: " + e.getMessage(), e);
+        } finally {
+            scheduler.awaitCompletion();
+            metrics.stopReporting();
+            logger.info("All accounts finished {}", metrics.getSummary());
+        }
+        return scheduler.getFailureCount();
+    }
+}
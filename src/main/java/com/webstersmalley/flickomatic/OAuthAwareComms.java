@@ -4,7 +4,6 @@ import org.apache.commons.io.IOUtils;
 import org.scribe.builder.ServiceBuilder;
 import org.scribe.builder.api.FlickrApi;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
 import org.scribe.model.Token;
 import org.scribe.model.Verb;
 import org.scribe.model.Verifier;
@@ -14,6 +13,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -22,16 +23,29 @@ import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
 
 /**
+ * Signs requests with the account's OAuth token, logging in first if need be. Requests go through the pooled http
+ * transport; asynchronous ones on a virtual thread, with the body parsed as it arrives.
+ *
  * Created by: Matthew Smalley
  * Date: 12/10/13
  */
-@Service("comms")
-public class OAuthAwareComms implements Comms {
+@Service("oauthComms")
+public class OAuthAwareComms implements AsyncComms {
+    private final static BodyParser<String> STRING_PARSER = new BodyParser<String>() {
+        public String parse(InputStream body) throws IOException {
+            return IOUtils.toString(body, "UTF-8");
+        }
+    };
+
     private Logger logger = LoggerFactory.getLogger(getClass());
 
-    private boolean loggedIn = false;
+    // Written once, at the end of authenticate(); everything it sets up is safely published by this write
+    private volatile boolean loggedIn = false;
 
     @Value("${flickomatic.api.key}")
     private String apiKey;
@@ -48,6 +62,24 @@ public class OAuthAwareComms implements Comms {
     @Value("${flickomatic.home.authfile}")
     private String authfile;
 
+    @Resource(name = "httpTransport")
+    private HttpTransport httpTransport;
+
+    /**
+     * Creates comms for another account: the same API key and http transport, but the account's own token.
+     *
+     * @param accountAuthfile where the account's token is (or will be) saved
+     */
+    public OAuthAwareComms forAccount(String accountAuthfile) {
+        OAuthAwareComms comms = new OAuthAwareComms();
+        comms.apiKey = apiKey;
+        comms.apiSecret = apiSecret;
+        comms.protectedUrl = protectedUrl;
+        comms.httpTransport = httpTransport;
+        comms.authfile = accountAuthfile;
+        return comms;
+    }
+
     private void getTokenFromAuthFile() {
         InputStream is = null;
         try {
@@ -75,14 +107,25 @@ public class OAuthAwareComms implements Comms {
         }
     }
 
+    /**
+     * Logs in exactly once, however many threads call it: the first caller builds the service and validates (or asks
+     * for) the token while any others wait; after that it's a single volatile read.
+     */
+    public void authenticate() {
+        if (loggedIn) {
+            return;
+        }
+        synchronized (this) {
+            if (!loggedIn) {
+                checkAuthentication();
+            }
+        }
+    }
+
     private void checkAuthentication() {
         // If we've got a token, let's try it
         // If not, or if the token didn't work, we'll need to ask for a new one
         logger.debug("Checking authentication");
-        if (loggedIn) {
-            logger.debug("Already logged in");
-            return;
-        }
 
         if (service == null) {
             logger.debug("Creating service");
@@ -132,22 +175,104 @@ public class OAuthAwareComms implements Comms {
     }
 
 
-    public String sendRequest(Map<String, String> parameters) {
+    private long getRetryAfter(String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Long.parseLong(retryAfter.trim());
+            } catch (NumberFormatException e) {
+                logger.debug("Ignoring non-numeric Retry-After: {}", retryAfter);
+            }
+        }
+        return -1;
+    }
+
+    private OAuthRequest sign(Map<String, String> parameters) {
         logger.debug("Sending request {}", parameters.get("method"));
         OAuthRequest request = new OAuthRequest(Verb.GET, protectedUrl);
-        request.setConnectionKeepAlive(true);
         for (String param: parameters.keySet()) {
             request.addQuerystringParameter(param, parameters.get(param));
         }
         service.signRequest(accessToken, request);
-        Response response = request.send();
+        return request;
+    }
+
+    /**
+     * Signs the request with scribe, but sends it through the shared, pooled http transport rather than scribe's own
+     * one-connection-per-request HttpURLConnection.
+     */
+    public String sendRequest(Map<String, String> parameters) {
+        OAuthRequest request = sign(parameters);
 
-        return response.getBody();
+        HttpTransport.Response response = null;
+        long start = System.nanoTime();
+        try {
+            response = httpTransport.get(request.getCompleteUrl(), request.getHeaders());
+            int status = response.getStatusCode();
+            if (status != 200) {
+                String message = "HTTP " + status + " from " + parameters.get("method");
+                boolean throttled = status == 429 || status == 503;
+                throw new CommsException(message, null, status, throttled || status >= 500, throttled, getRetryAfter(response.getHeader("Retry-After")));
+            }
+            return response.getBodyAsString();
+        } catch (IOException e) {
+            // Timeouts, resets etc: worth another go
+            throw new CommsException("Error sending request " + parameters.get("method") + ": " + e.getMessage(), e, -1, true, false, -1);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            Metrics.get().recordApiCall(parameters.get("method"), System.nanoTime() - start);
+        }
     }
 
 
     public String sendGetRequest(Map<String, String> params) {
-        checkAuthentication();
+        if (!loggedIn) {
+            authenticate();
+        }
         return sendRequest(params);
     }
+
+    public CompletableFuture<String> sendGetRequestAsync(Map<String, String> params) {
+        return sendGetRequestAsync(params, STRING_PARSER);
+    }
+
+    /**
+     * Signs the request and sends it through the transport without blocking. Logging in (if we haven't yet) still
+     * happens on the calling thread.
+     */
+    public <T> CompletableFuture<T> sendGetRequestAsync(Map<String, String> params, final BodyParser<T> parser) {
+        if (!loggedIn) {
+            authenticate();
+        }
+        final String method = params.get("method");
+        OAuthRequest request = sign(params);
+        final long start = System.nanoTime();
+        return httpTransport.getAsync(request.getCompleteUrl(), request.getHeaders()).handle(new BiFunction<HttpTransport.Response, Throwable, T>() {
+            public T apply(HttpTransport.Response response, Throwable error) {
+                try {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                        // Timeouts, resets etc: worth another go
+                        throw new CommsException("Error sending request " + method + ": " + cause.getMessage(), cause, -1, true, false, -1);
+                    }
+                    try {
+                        int status = response.getStatusCode();
+                        if (status != 200) {
+                            boolean throttled = status == 429 || status == 503;
+                            throw new CommsException("HTTP " + status + " from " + method, null, status, throttled || status >= 500, throttled,
+                                    getRetryAfter(response.getHeader("Retry-After")));
+                        }
+                        return parser.parse(response.getBody());
+                    } catch (IOException e) {
+                        throw new CommsException("Error reading response to " + method + ": " + e.getMessage(), e, -1, true, false, -1);
+                    } finally {
+                        response.close();
+                    }
+                } finally {
+                    Metrics.get().recordApiCall(method, System.nanoTime() - start);
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,206 @@
+package com.webstersmalley.flickomatic;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+/**
+ * Iterates over the items of a paged Flickr list method (flickr.photosets.getList, flickr.photosets.getPhotos,
+ * flickr.photos.getNotInSet etc.), one page at a time. Only the current page is held in memory, and the following
+ * page is fetched in the background while the current one is being consumed. Each page is read in a single streaming
+ * pass rather than as a DOM. With AsyncComms the prefetch needs no thread of its own, and the page is parsed as it
+ * arrives instead of being buffered into a String first.
+ */
+public class PagedResponseIterator implements Iterator<Map<String, String>> {
+    public final static int DEFAULT_PAGE_SIZE = 500;
+    // Flickr's "Service currently unavailable" error code
+    private final static String SERVICE_UNAVAILABLE = "105";
+
+    // Runs prefetches for comms that can only send synchronously; shared by every listing, with idle threads reused
+    private final static ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "page-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Comms comms;
+    private final Map<String, String> params;
+    private final String itemElement;
+    private final int pageSize;
+
+    private int page = 0;
+    private int pages = 1;
+    private long total = -1;
+    private Iterator<Map<String, String>> currentPage = Collections.<Map<String, String>>emptyIterator();
+    private CompletableFuture<Page> nextPage;
+
+    private static class Page {
+        private final List<Map<String, String>> items;
+        private final int pages;
+        private final long total;
+
+        private Page(List<Map<String, String>> items, int pages, long total) {
+            this.items = items;
+            this.pages = pages;
+            this.total = total;
+        }
+    }
+
+    /**
+     * @param comms       comms to send the requests with
+     * @param params      the request parameters (method etc.), without any paging parameters
+     * @param itemElement name of the elements to return, e.g. photo
+     * @param pageSize    the number of items to request per page
+     */
+    public PagedResponseIterator(Comms comms, Map<String, String> params, String itemElement, int pageSize) {
+        this.comms = comms;
+        this.params = params;
+        this.itemElement = itemElement;
+        this.pageSize = pageSize;
+    }
+
+    public PagedResponseIterator(Comms comms, Map<String, String> params, String itemElement) {
+        this(comms, params, itemElement, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Requests a page.
+     *
+     * @param background true to fetch it in the background; otherwise the future may already be complete when it's
+     *                   returned
+     */
+    private CompletableFuture<Page> requestPage(final int pageNumber, boolean background) {
+        final Map<String, String> pageParams = new HashMap<String, String>(params);
+        pageParams.put("page", String.valueOf(pageNumber));
+        pageParams.put("per_page", String.valueOf(pageSize));
+        logger.debug("Fetching page {} of {}", pageNumber, params.get("method"));
+        if (comms instanceof AsyncComms) {
+            return ((AsyncComms) comms).sendGetRequestAsync(pageParams, new AsyncComms.BodyParser<Page>() {
+                public Page parse(InputStream body) {
+                    return parsePage(pageNumber, XMLUtils.createStreamReader(body));
+                }
+            });
+        }
+        Supplier<Page> fetch = new Supplier<Page>() {
+            public Page get() {
+                return parsePage(pageNumber, XMLUtils.createStreamReader(comms.sendGetRequest(pageParams)));
+            }
+        };
+        return background ? CompletableFuture.supplyAsync(fetch, PREFETCH_EXECUTOR) : CompletableFuture.completedFuture(fetch.get());
+    }
+
+    private void loadNextPage() {
+        CompletableFuture<Page> request = nextPage != null ? nextPage : requestPage(page + 1, false);
+        nextPage = null;
+        Page next = AsyncComms.await(request);
+        page++;
+        pages = next.pages;
+        total = next.total;
+        currentPage = next.items.iterator();
+        if (page < pages) {
+            nextPage = requestPage(page + 1, true);
+        }
+    }
+
+    /**
+     * Reads the items out of a page, checking the response status and picking up the page and item counts from the list
+     * element (the child of rsp) on the way. May run on a background thread, so it only touches what it returns.
+     */
+    private Page parsePage(int pageNumber, XMLStreamReader reader) {
+        long start = System.nanoTime();
+        try {
+            List<Map<String, String>> items = new ArrayList<Map<String, String>>();
+            int pageCount = 1;
+            long itemCount = -1;
+            String status = null;
+            String errorCode = null;
+            String errorMessage = null;
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 1) {
+                        status = reader.getAttributeValue(null, "stat");
+                    } else if ("err".equals(name)) {
+                        errorCode = reader.getAttributeValue(null, "code");
+                        errorMessage = reader.getAttributeValue(null, "msg");
+                    } else if (itemElement.equals(name)) {
+                        items.add(XMLUtils.getAttributes(reader));
+                    } else if (depth == 2) {
+                        String pagesAttribute = reader.getAttributeValue(null, "pages");
+                        if (pagesAttribute != null && !pagesAttribute.isEmpty()) {
+                            pageCount = Integer.parseInt(pagesAttribute);
+                        }
+                        String totalAttribute = reader.getAttributeValue(null, "total");
+                        if (totalAttribute != null && totalAttribute.matches("\\d+")) {
+                            itemCount = Long.parseLong(totalAttribute);
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            if (SERVICE_UNAVAILABLE.equals(errorCode)) {
+                // Transient: worth another go
+                throw new CommsException("Flickr service unavailable for " + params.get("method") + " page " + pageNumber, null, 200, true, true, -1);
+            }
+            if (!"ok".equals(status)) {
+                throw new RuntimeException("Error response for " + params.get("method") + " page " + pageNumber + ": " + errorMessage);
+            }
+            return new Page(items, pageCount, itemCount);
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("Error parsing page " + pageNumber + " of " + params.get("method") + ": " + e.getMessage(), e);
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                logger.debug("Error closing reader: " + e.getMessage());
+            }
+            Metrics.get().recordParse(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the number of items the list method says there are in all (which may be more than it will return), or
+     * -1 if no page has been read yet or it doesn't say
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public boolean hasNext() {
+        while (!currentPage.hasNext() && page < pages) {
+            loadNextPage();
+        }
+        return currentPage.hasNext();
+    }
+
+    public Map<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+}
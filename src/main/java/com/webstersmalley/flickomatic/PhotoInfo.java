@@ -0,0 +1,124 @@
+package com.webstersmalley.flickomatic;
+
+import java.util.Map;
+
+/**
+ * The handful of fields from a flickr.photos.getInfo response that the downloader actually uses. List calls made with
+ * extras=last_update,original_format return the same fields as attributes, which saves a getInfo call per photo.
+ */
+public class PhotoInfo {
+    public final static String PHOTO_URL_FORMAT = "http://farm%s.staticflickr.com/%s/%s_%s_o.%s";
+
+    private final String id;
+    private final String farm;
+    private final String server;
+    private final String originalSecret;
+    private final String originalFormat;
+    private long lastUpdate = -1;
+    private String media = "photo";
+    private long pixels = -1;
+
+    public PhotoInfo(String id, String farm, String server, String originalSecret, String originalFormat) {
+        this.id = id;
+        this.farm = farm;
+        this.server = server;
+        this.originalSecret = originalSecret;
+        this.originalFormat = originalFormat;
+    }
+
+    /**
+     * Builds a PhotoInfo from a photo element of a list call (getPhotos, getNotInSet, recentlyUpdated...) made with
+     * extras=last_update,original_format (and optionally media,o_dims).
+     *
+     * @param photo the photo element's attributes
+     * @return the photo info, or null if the listing didn't include everything needed to download the original (e.g.
+     * the owner doesn't allow downloads), in which case getInfo is needed
+     */
+    public static PhotoInfo fromListing(Map<String, String> photo) {
+        String originalSecret = photo.get("originalsecret");
+        String originalFormat = photo.get("originalformat");
+        String lastUpdate = photo.get("lastupdate");
+        if (originalSecret == null || originalFormat == null || lastUpdate == null) {
+            return null;
+        }
+        PhotoInfo photoInfo = new PhotoInfo(photo.get("id"), photo.get("farm"), photo.get("server"), originalSecret, originalFormat);
+        photoInfo.setLastUpdate(Long.parseLong(lastUpdate));
+        if (photo.get("media") != null) {
+            photoInfo.setMedia(photo.get("media"));
+        }
+        String width = photo.get("o_width");
+        String height = photo.get("o_height");
+        if (width != null && height != null && width.matches("\\d+") && height.matches("\\d+")) {
+            photoInfo.setPixels(Long.parseLong(width) * Long.parseLong(height));
+        }
+        return photoInfo;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFarm() {
+        return farm;
+    }
+
+    public String getServer() {
+        return server;
+    }
+
+    public String getOriginalSecret() {
+        return originalSecret;
+    }
+
+    public String getOriginalFormat() {
+        return originalFormat;
+    }
+
+    /**
+     * @return the lastupdate time in seconds since the epoch, or -1 if the response didn't include one
+     */
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    public void setLastUpdate(long lastUpdate) {
+        this.lastUpdate = lastUpdate;
+    }
+
+    /**
+     * @return "photo" or "video"
+     */
+    public String getMedia() {
+        return media;
+    }
+
+    public void setMedia(String media) {
+        this.media = media;
+    }
+
+    /**
+     * @return the size of the original in pixels, or -1 if the response didn't say
+     */
+    public long getPixels() {
+        return pixels;
+    }
+
+    public void setPixels(long pixels) {
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return the url of the original image
+     */
+    public String getOriginalUrl() {
+        return getOriginalUrl(PHOTO_URL_FORMAT);
+    }
+
+    /**
+     * @param urlFormat a format taking the farm, server, id, original secret and original format, in that order
+     * @return the url of the original image
+     */
+    public String getOriginalUrl(String urlFormat) {
+        return String.format(urlFormat, farm, server, id, originalSecret, originalFormat);
+    }
+}
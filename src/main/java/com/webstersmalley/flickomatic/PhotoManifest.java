@@ -0,0 +1,336 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local index of everything downloaded so far: for each photo, the lastupdate time it was downloaded at, its format,
+ * the checksum and size of the original and which artifacts have been written. Lets incremental runs decide what to
+ * skip with a map lookup instead of statting four files per photo, and lets ArchiveVerifier check the originals.
+ *
+ * The file is an append-only log of tab-separated lines (id, lastupdate, format, checksum, artifacts, size); the last
+ * line for a photo wins. Lines written before sizes were recorded have no size field. It is read into memory on open
+ * and compacted when most of its lines have been superseded, whether that's found on open or while it's being written
+ * to (a daemon keeps it open indefinitely).
+ */
+public class PhotoManifest {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int MIN_LINES_TO_COMPACT = 1000;
+
+    public enum Artifact {
+        IMAGE, INFO, COMMENTS, CONTEXTS
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private Writer writer;
+    // Lines in the file, superseded ones included
+    private int lines;
+
+    public PhotoManifest(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Loads the manifest (if there is one) and opens it for appending.
+     */
+    public synchronized void open() {
+        lines = 0;
+        if (file.exists()) {
+            lines = load();
+            logger.info("Loaded manifest {}: {} photos", file, entries.size());
+        }
+        if (isWorthCompacting()) {
+            compact();
+        }
+        openWriter();
+    }
+
+    private void openWriter() {
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+            if (!endsWithNewline()) {
+                // Don't let the first new record run on from a line left incomplete by a crash
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            logger.error("Error opening manifest: " + e.getMessage(), e);
+            throw new RuntimeException("Error opening manifest: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        if (file.length() == 0) {
+            return true;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(file.length() - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int load() {
+        BufferedReader reader = null;
+        int lines = 0;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                Entry entry = Entry.parse(line);
+                if (entry == null) {
+                    // Most likely a line cut short by a crash mid-write
+                    logger.warn("Ignoring malformed manifest line {}: {}", lines, line);
+                } else {
+                    entries.put(entry.photoId, entry);
+                }
+            }
+            return lines;
+        } catch (IOException e) {
+            logger.error("Error reading manifest: " + e.getMessage(), e);
+            throw new RuntimeException("Error reading manifest: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private boolean isWorthCompacting() {
+        return lines > MIN_LINES_TO_COMPACT && lines > entries.size() * 2;
+    }
+
+    /**
+     * Rewrites the file with just the latest line for each photo. If that fails the log is left as it was, and lines is
+     * reset anyway so it isn't tried again until as many lines again have been superseded.
+     */
+    private void compact() {
+        lines = entries.size();
+        logger.info("Compacting manifest {}", file);
+        File compacted = new File(file.getPath() + ".tmp");
+        Writer compactedWriter = null;
+        try {
+            compactedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), UTF8));
+            for (Entry entry : entries.values()) {
+                compactedWriter.write(entry.toLine());
+            }
+            compactedWriter.close();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Not fatal: the uncompacted log is still valid
+            logger.error("Error compacting manifest: " + e.getMessage(), e);
+            IOUtils.closeQuietly(compactedWriter);
+            compacted.delete();
+        }
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(writer);
+        writer = null;
+    }
+
+    public Entry get(String photoId) {
+        return entries.get(photoId);
+    }
+
+    /**
+     * @return true if the artifact has already been written for this version (or a later one) of the photo
+     */
+    public boolean isCurrent(String photoId, long lastUpdate, Artifact artifact) {
+        Entry entry = entries.get(photoId);
+        return entry != null && entry.lastUpdate >= lastUpdate && entry.artifacts.contains(artifact);
+    }
+
+    /**
+     * Records an artifact without the size of the original.
+     */
+    public void record(String photoId, long lastUpdate, String format, Artifact artifact, String checksum) {
+        record(photoId, lastUpdate, format, artifact, checksum, -1);
+    }
+
+    /**
+     * Records that an artifact has been written for the given version of a photo. Artifacts recorded against an older
+     * version are dropped. A record for a version older than the one the manifest already has is ignored: it comes from
+     * a fetch that was overtaken (a verify re-fetch racing a sync, say), and would make the newer files look stale.
+     *
+     * @param checksum the checksum of the original image, or null if not known
+     * @param size     the size of the original image in bytes, or -1 if not known
+     */
+    public synchronized void record(String photoId, long lastUpdate, String format, Artifact artifact, String checksum, long size) {
+        Entry existing = entries.get(photoId);
+        if (existing != null && lastUpdate < existing.lastUpdate) {
+            logger.debug("Ignoring {} of photo {} at {}: the manifest already has {}", artifact, photoId, lastUpdate, existing.lastUpdate);
+            return;
+        }
+        Set<Artifact> artifacts = EnumSet.of(artifact);
+        if (existing != null && existing.lastUpdate == lastUpdate) {
+            artifacts.addAll(existing.artifacts);
+            if (checksum == null) {
+                checksum = existing.checksum;
+                size = existing.size;
+            }
+        }
+        append(new Entry(photoId, lastUpdate, format, checksum, artifacts, size));
+    }
+
+    private void append(Entry entry) {
+        if (writer == null) {
+            throw new IllegalStateException("Manifest is not open: " + file);
+        }
+        entries.put(entry.photoId, entry);
+        try {
+            writer.write(entry.toLine());
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Error writing to manifest: " + e.getMessage(), e);
+            throw new RuntimeException("Error writing to manifest: " + e.getMessage(), e);
+        }
+        lines++;
+        if (isWorthCompacting()) {
+            IOUtils.closeQuietly(writer);
+            writer = null;
+            compact();
+            openWriter();
+        }
+    }
+
+    /**
+     * Forgets that an artifact has been written, so the next run fetches it again (its file, if there is one, has to be
+     * moved out of the way too, or the run will find it and trust its timestamp).
+     *
+     * @return false if the manifest didn't have the artifact
+     */
+    public synchronized boolean invalidate(String photoId, Artifact artifact) {
+        Entry existing = entries.get(photoId);
+        if (existing == null || !existing.artifacts.contains(artifact)) {
+            return false;
+        }
+        Set<Artifact> artifacts = EnumSet.noneOf(Artifact.class);
+        artifacts.addAll(existing.artifacts);
+        artifacts.remove(artifact);
+        // The checksum and size stay, so a content-addressed blob can still be found for the other photos sharing it
+        append(new Entry(photoId, existing.lastUpdate, existing.format, existing.checksum, artifacts, existing.size));
+        return true;
+    }
+
+    /**
+     * @return a snapshot of every photo's latest entry
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public static class Entry {
+        private final String photoId;
+        private final long lastUpdate;
+        private final String format;
+        private final String checksum;
+        private final Set<Artifact> artifacts;
+        private final long size;
+
+        public Entry(String photoId, long lastUpdate, String format, String checksum, Set<Artifact> artifacts, long size) {
+            this.photoId = photoId;
+            this.lastUpdate = lastUpdate;
+            this.format = format;
+            this.checksum = checksum;
+            this.artifacts = artifacts;
+            this.size = size;
+        }
+
+        public String getPhotoId() {
+            return photoId;
+        }
+
+        public long getLastUpdate() {
+            return lastUpdate;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public Set<Artifact> getArtifacts() {
+            return artifacts;
+        }
+
+        /**
+         * @return the size of the original image in bytes, or -1 if not known
+         */
+        public long getSize() {
+            return size;
+        }
+
+        private String toLine() {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append(photoId).append('\t').append(lastUpdate).append('\t').append(format == null ? "" : format)
+                    .append('\t').append(checksum == null ? "" : checksum).append('\t');
+            boolean first = true;
+            for (Artifact artifact : artifacts) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(artifact.name().toLowerCase());
+                first = false;
+            }
+            if (size >= 0) {
+                sb.append('\t').append(size);
+            }
+            return sb.append('\n').toString();
+        }
+
+        private static Entry parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 5 && fields.length != 6) {
+                return null;
+            }
+            try {
+                Set<Artifact> artifacts = EnumSet.noneOf(Artifact.class);
+                for (String artifact : fields[4].split(",")) {
+                    if (!artifact.isEmpty()) {
+                        artifacts.add(Artifact.valueOf(artifact.toUpperCase()));
+                    }
+                }
+                return new Entry(fields[0], Long.parseLong(fields[1]), fields[2].isEmpty() ? null : fields[2],
+                        fields[3].isEmpty() ? null : fields[3], artifacts, fields.length == 6 ? Long.parseLong(fields[5]) : -1);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
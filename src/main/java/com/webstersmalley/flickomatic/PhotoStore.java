@@ -0,0 +1,23 @@
+package com.webstersmalley.flickomatic;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where original images are kept.
+ */
+public interface PhotoStore {
+    /**
+     * @return the file this photo's image would already be in, or null if the store can't tell without the manifest
+     * (in which case anything the manifest doesn't have is downloaded)
+     */
+    File getExistingFile(PhotoInfo photoInfo);
+
+    /**
+     * Downloads the photo's original image into the store.
+     *
+     * @param url the url of the original image
+     * @return the size and SHA-256 of the image
+     */
+    ImageTransfer.Result save(PhotoInfo photoInfo, String url) throws IOException;
+}
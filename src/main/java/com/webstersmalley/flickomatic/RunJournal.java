@@ -0,0 +1,254 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-ahead log of a run in progress, so that a run which dies part way through can be picked up where it stopped
+ * instead of starting again from the list of sets. One record per line:
+ *
+ *   run <kind>                      what the run is doing: "all", "set <setId>" or "recent <minDate>"
+ *   set <setId>                     a set returned by flickr.photosets.getList
+ *   listed                          the list of sets is complete
+ *   queued <photoId> <lastUpdate>  work for a photo has been queued
+ *   done <setId>                    everything in the set has been downloaded without errors
+ *
+ * Every record is flushed as it's written, so nothing is lost if the JVM dies, and the records that mark whole sets
+ * are synced to disk too. A run that gets to the end deletes its journal (however it went), so only a run that never
+ * finished is resumed, and only by a run of the same kind.
+ *
+ * What actually got written for each photo is the manifest's business; the journal only says what was going on.
+ */
+public class RunJournal {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    // Photos not in any set
+    private final static String NOT_IN_SET = "-";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+    private final String kind;
+
+    private boolean resumed = false;
+    private boolean listed = false;
+    private final Set<String> sets = new LinkedHashSet<String>();
+    private final Set<String> done = new HashSet<String>();
+    private final Map<String, Long> queued = new HashMap<String, Long>();
+
+    private FileOutputStream stream;
+    private Writer writer;
+
+    /**
+     * @param file the journal file
+     * @param kind what the run is doing; an unfinished run is only resumed by a run of the same kind
+     */
+    public RunJournal(File file, String kind) {
+        this.file = file;
+        this.kind = kind;
+    }
+
+    /**
+     * Loads the journal of an unfinished run of the same kind, if there is one, and opens the journal for writing.
+     *
+     * @param resume false to start afresh even if there's a run to resume
+     */
+    public synchronized void open(boolean resume) {
+        if (file.exists()) {
+            if (resume && load()) {
+                resumed = true;
+                logger.info("Resuming unfinished run ({}): {} sets done, {} photos queued", kind, done.size(), queued.size());
+            } else {
+                logger.info("Not resuming the unfinished run in {}", file);
+                clear();
+            }
+        }
+        try {
+            stream = new FileOutputStream(file, resumed);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, UTF8));
+            if (resumed) {
+                // Don't let the first new record run on from a line left incomplete by a crash
+                writer.write('\n');
+            } else {
+                writer.write("run " + kind + "\n");
+            }
+            sync();
+        } catch (IOException e) {
+            logger.error("Error opening run journal: " + e.getMessage(), e);
+            throw new RuntimeException("Error opening run journal: " + e.getMessage(), e);
+        }
+    }
+
+    private void clear() {
+        listed = false;
+        sets.clear();
+        done.clear();
+        queued.clear();
+    }
+
+    /**
+     * @return true if the file is the journal of a run of this kind
+     */
+    private boolean load() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            String line = reader.readLine();
+            if (line == null || !line.equals("run " + kind)) {
+                return false;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 2);
+                if (fields.length == 1 && "listed".equals(fields[0])) {
+                    listed = true;
+                } else if (fields.length == 2 && "set".equals(fields[0])) {
+                    sets.add(fields[1]);
+                } else if (fields.length == 2 && "done".equals(fields[0])) {
+                    done.add(fields[1]);
+                } else if (fields.length == 2 && "queued".equals(fields[0]) && fields[1].matches("\\S+ -?\\d+")) {
+                    String[] photo = fields[1].split(" ");
+                    queued.put(photo[0], Long.parseLong(photo[1]));
+                } else if (!line.isEmpty()) {
+                    // Most likely a line cut short by a crash mid-write
+                    logger.warn("Ignoring malformed journal line: {}", line);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Error reading run journal: " + e.getMessage(), e);
+            throw new RuntimeException("Error reading run journal: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private static String toKey(String setId) {
+        return setId == null ? NOT_IN_SET : setId;
+    }
+
+    private synchronized void append(String record, boolean sync) {
+        if (writer == null) {
+            throw new IllegalStateException("Run journal is not open: " + file);
+        }
+        try {
+            writer.write(record);
+            writer.write('\n');
+            if (sync) {
+                sync();
+            } else {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            logger.error("Error writing to run journal: " + e.getMessage(), e);
+            throw new RuntimeException("Error writing to run journal: " + e.getMessage(), e);
+        }
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        stream.getFD().sync();
+    }
+
+    /**
+     * @return true if this is picking up an unfinished run
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return true if the list of sets was completed before the run stopped
+     */
+    public synchronized boolean isListed() {
+        return listed;
+    }
+
+    /**
+     * @return the sets listed so far, in the order they were listed
+     */
+    public synchronized List<String> getSets() {
+        return new ArrayList<String>(sets);
+    }
+
+    /**
+     * @param setId the set (null for photos not in a set)
+     * @return true if the set was finished before the run stopped
+     */
+    public synchronized boolean isDone(String setId) {
+        return done.contains(toKey(setId));
+    }
+
+    /**
+     * @return the photos queued before the run stopped, with the lastupdate time they were queued for
+     */
+    public synchronized Map<String, Long> getQueued() {
+        return Collections.unmodifiableMap(new HashMap<String, Long>(queued));
+    }
+
+    public void setListed(String setId) {
+        synchronized (this) {
+            if (!sets.add(setId)) {
+                return;
+            }
+        }
+        append("set " + setId, false);
+    }
+
+    public void allSetsListed() {
+        synchronized (this) {
+            listed = true;
+        }
+        append("listed", true);
+    }
+
+    /**
+     * @param lastUpdate the photo's lastupdate time, or -1 if not known yet
+     */
+    public void photoQueued(String photoId, long lastUpdate) {
+        append("queued " + photoId + " " + lastUpdate, false);
+    }
+
+    /**
+     * @param setId the set (null for photos not in a set)
+     */
+    public void setDone(String setId) {
+        synchronized (this) {
+            done.add(toKey(setId));
+        }
+        append("done " + toKey(setId), true);
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(writer);
+        writer = null;
+    }
+
+    /**
+     * Closes and deletes the journal: the run has got to the end, so there's nothing to resume.
+     */
+    public synchronized void finish() {
+        close();
+        if (!file.delete() && file.exists()) {
+            logger.warn("Couldn't delete run journal {}", file);
+        }
+    }
+}
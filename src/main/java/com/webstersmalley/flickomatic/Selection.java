@@ -0,0 +1,309 @@
+package com.webstersmalley.flickomatic;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which photos a run downloads, and which it gets to first. Photos can be selected by date (uploaded or taken), tags
+ * (any of them), media type, set and expected size, and queued smallest, newest or most favourited first.
+ *
+ * As much of the selection as possible goes into the list calls themselves, so photos left out never cost a getInfo
+ * call or any bandwidth: a date or tag selection without sets is listed with one flickr.photos.search call instead of
+ * set by set, sorted the way the queue will be where Flickr can sort that way; media goes to every list call, and dates
+ * to flickr.photos.getNotInSet. Whatever a list call can't filter on is asked for as an extra and checked here, and the
+ * size, which Flickr doesn't give, is checked against SizeEstimator's guess.
+ *
+ * Flickr only returns the first 4,000 results of a search (MAX_SEARCH_RESULTS), so very large selections are better
+ * split by date.
+ */
+public class Selection {
+    public final static int MAX_SEARCH_RESULTS = 4000;
+
+    public enum Order {
+        // Cheapest transfers first (the default)
+        SIZE,
+        NEWEST,
+        // Most favourited first. Flickr can't sort a search by favourites, so this is done as photos are queued
+        FAVORITES
+    }
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private final boolean byTakenDate;
+    private final Set<String> tags;
+    private final String media;
+    private final List<String> sets;
+    private final long maxSize;
+    private final Order order;
+
+    /**
+     * @param from    the earliest date to include (yyyy-MM-dd), or empty for no limit
+     * @param to      the latest date to include (yyyy-MM-dd), or empty for no limit
+     * @param dateBy  which date from and to apply to: uploaded or taken
+     * @param tags    comma-separated tags, any of which a photo must have, or empty for any photo
+     * @param media   all, photos or videos
+     * @param sets    comma-separated ids of the sets to include, or empty for everything
+     * @param maxSize the largest expected original to download, in bytes, or 0 for no limit
+     * @param order   size, newest or favorites
+     */
+    public Selection(String from, String to, String dateBy, String tags, String media, String sets, long maxSize, String order) {
+        this.from = parseDate(from);
+        this.to = parseDate(to);
+        if (!"uploaded".equals(dateBy) && !"taken".equals(dateBy)) {
+            throw new IllegalArgumentException("Selection dates can be by uploaded or taken, not " + dateBy);
+        }
+        this.byTakenDate = "taken".equals(dateBy);
+        this.tags = new LinkedHashSet<String>();
+        for (String tag : split(tags)) {
+            // Flickr lists tags in their "clean" form
+            this.tags.add(tag.toLowerCase().replace(" ", ""));
+        }
+        if (!"all".equals(media) && !"photos".equals(media) && !"videos".equals(media)) {
+            throw new IllegalArgumentException("Selection media can be all, photos or videos, not " + media);
+        }
+        this.media = media;
+        this.sets = split(sets);
+        this.maxSize = maxSize;
+        try {
+            this.order = Order.valueOf(order.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Selection order can be size, newest or favorites, not " + order);
+        }
+    }
+
+    /**
+     * @return a selection of everything, smallest first
+     */
+    public static Selection all() {
+        return new Selection("", "", "uploaded", "", "all", "", 0, "size");
+    }
+
+    private static LocalDate parseDate(String date) {
+        if (date == null || date.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(date.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Selection dates must be yyyy-MM-dd: " + date, e);
+        }
+    }
+
+    private static List<String> split(String list) {
+        List<String> items = new ArrayList<String>();
+        if (list != null) {
+            for (String item : list.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    items.add(item.trim());
+                }
+            }
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * @return true if everything is selected (the order doesn't matter)
+     */
+    public boolean isEverything() {
+        return from == null && to == null && tags.isEmpty() && "all".equals(media) && sets.isEmpty() && maxSize <= 0;
+    }
+
+    /**
+     * @return true if the photos are best listed with flickr.photos.search rather than set by set
+     */
+    public boolean isSearch() {
+        return sets.isEmpty() && (from != null || to != null || !tags.isEmpty());
+    }
+
+    /**
+     * @return the sets to list, or empty for all of them
+     */
+    public List<String> getSets() {
+        return sets;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the largest expected original to download, in bytes, or 0 for no limit
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the extras (beyond the usual ones) that list calls need to ask for, starting with a comma, or empty
+     */
+    public String getExtras() {
+        StringBuilder extras = new StringBuilder();
+        if (from != null || to != null || order == Order.NEWEST) {
+            extras.append(byTakenDate ? ",date_taken" : ",date_upload");
+        }
+        if (!tags.isEmpty()) {
+            extras.append(",tags");
+        }
+        if (order == Order.FAVORITES) {
+            extras.append(",count_faves");
+        }
+        return extras.toString();
+    }
+
+    /**
+     * Adds the parameters for a flickr.photos.search of the logged-in user's photos.
+     */
+    public void addSearchParams(Map<String, String> params) {
+        params.put("user_id", "me");
+        if (!tags.isEmpty()) {
+            params.put("tags", String.join(",", tags));
+            params.put("tag_mode", "any");
+        }
+        addDateParams(params);
+        addMediaParam(params);
+        // There's no sort by favourites (interestingness isn't the same thing), so those are left in Flickr's order
+        if (order == Order.NEWEST) {
+            params.put("sort", byTakenDate ? "date-taken-desc" : "date-posted-desc");
+        }
+    }
+
+    /**
+     * Adds whatever a set listing can filter on.
+     *
+     * @param notInSet true for flickr.photos.getNotInSet, which can filter by date too
+     */
+    public void addListParams(Map<String, String> params, boolean notInSet) {
+        if (notInSet) {
+            addDateParams(params);
+        }
+        addMediaParam(params);
+    }
+
+    private void addDateParams(Map<String, String> params) {
+        if (byTakenDate) {
+            // Taken dates have no time zone, so they're compared as they're written
+            if (from != null) {
+                params.put("min_taken_date", from + " 00:00:00");
+            }
+            if (to != null) {
+                params.put("max_taken_date", to + " 23:59:59");
+            }
+        } else {
+            if (from != null) {
+                params.put("min_upload_date", String.valueOf(getStartSeconds()));
+            }
+            if (to != null) {
+                params.put("max_upload_date", String.valueOf(getEndSeconds()));
+            }
+        }
+    }
+
+    private void addMediaParam(Map<String, String> params) {
+        if (!"all".equals(media)) {
+            params.put("media", media);
+        }
+    }
+
+    private long getStartSeconds() {
+        return from.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    private long getEndSeconds() {
+        return to.plusDays(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond() - 1;
+    }
+
+    /**
+     * Checks a listed photo against everything but its size. Anything the listing doesn't say is given the benefit of
+     * the doubt.
+     *
+     * @param photo the photo element's attributes
+     */
+    public boolean accepts(Map<String, String> photo) {
+        String photoMedia = photo.get("media");
+        if (photoMedia != null && !"all".equals(media) && !media.equals(photoMedia + "s")) {
+            return false;
+        }
+        if (from != null || to != null) {
+            if (byTakenDate) {
+                String taken = photo.get("datetaken");
+                if (taken != null && (from != null && taken.compareTo(from.toString()) < 0
+                        || to != null && taken.compareTo(to.plusDays(1).toString()) >= 0)) {
+                    return false;
+                }
+            } else {
+                long uploaded = getLong(photo, "dateupload", -1);
+                if (uploaded >= 0 && (from != null && uploaded < getStartSeconds() || to != null && uploaded > getEndSeconds())) {
+                    return false;
+                }
+            }
+        }
+        if (!tags.isEmpty() && photo.get("tags") != null) {
+            if (Collections.disjoint(tags, Arrays.asList(photo.get("tags").split(" ")))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param expectedSize the expected size of the photo's original (see SizeEstimator)
+     */
+    public boolean acceptsSize(long expectedSize) {
+        return maxSize <= 0 || expectedSize <= maxSize;
+    }
+
+    /**
+     * @param photo        the photo element's attributes
+     * @param expectedSize the expected size of the photo's original, or 0 for a metadata task
+     * @return the cost to queue the photo's tasks at (see DownloadScheduler): the lower, the sooner it's downloaded
+     */
+    public long getCost(Map<String, String> photo, long expectedSize) {
+        if (order == Order.NEWEST) {
+            if (byTakenDate) {
+                // yyyy-MM-dd hh:mm:ss as a number, which sorts the same way
+                String taken = photo.get("datetaken");
+                return taken != null && taken.matches("\\d{4}-\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d") ? -Long.parseLong(taken.replaceAll("\\D", "")) : 0;
+            }
+            return -getLong(photo, "dateupload", 0);
+        } else if (order == Order.FAVORITES) {
+            return -getLong(photo, "count_faves", 0);
+        }
+        return expectedSize;
+    }
+
+    private static long getLong(Map<String, String> photo, String name, long defaultValue) {
+        String value = photo.get(name);
+        return value != null && value.matches("\\d+") ? Long.parseLong(value) : defaultValue;
+    }
+
+    /**
+     * Describes the selection, for logging and to tell runs with different selections apart (see RunJournal).
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (from != null || to != null) {
+            sb.append(byTakenDate ? " taken " : " uploaded ").append(from == null ? "" : from).append("..").append(to == null ? "" : to);
+        }
+        if (!tags.isEmpty()) {
+            sb.append(" tags ").append(String.join(",", tags));
+        }
+        if (!"all".equals(media)) {
+            sb.append(' ').append(media);
+        }
+        if (!sets.isEmpty()) {
+            sb.append(" sets ").append(String.join(",", sets));
+        }
+        if (maxSize > 0) {
+            sb.append(" up to ").append(maxSize).append(" bytes");
+        }
+        return sb.length() == 0 ? "everything" : sb.substring(1);
+    }
+}
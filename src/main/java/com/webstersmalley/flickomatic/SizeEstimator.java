@@ -0,0 +1,69 @@
+package com.webstersmalley.flickomatic;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Guesses how big a photo's original is before downloading it, so big transfers can be kept apart from small ones and
+ * the small ones run first. Flickr doesn't say how many bytes an original is, so the estimate comes from, in order of
+ * preference:
+ *
+ *   - the size of the copy we already have, if this is an update
+ *   - the original's pixel count (from the o_dims extra) times the bytes per pixel seen so far for that format
+ *   - the average size seen so far for that kind of media (photo or video)
+ *   - a fixed guess for that kind of media
+ *
+ * The averages are learned from completed downloads as the run goes, weighting recent ones more heavily.
+ */
+public class SizeEstimator {
+    private final static long DEFAULT_PHOTO_SIZE = 4L * 1024 * 1024;
+    private final static long DEFAULT_VIDEO_SIZE = 256L * 1024 * 1024;
+    // How much each download moves the averages
+    private final static double WEIGHT = 0.1;
+
+    // Guarded by this
+    private final Map<String, Double> bytesPerPixel = new HashMap<String, Double>();
+    private final Map<String, Double> averageSize = new HashMap<String, Double>();
+
+    /**
+     * @param existingFile the copy we already have, or null if the store can't tell
+     * @return the expected size of the original in bytes
+     */
+    public long estimate(PhotoInfo photoInfo, File existingFile) {
+        if (existingFile != null) {
+            long length = existingFile.length();
+            if (length > 0) {
+                return length;
+            }
+        }
+        synchronized (this) {
+            Double perPixel = bytesPerPixel.get(photoInfo.getOriginalFormat());
+            if (perPixel != null && photoInfo.getPixels() > 0) {
+                return (long) (perPixel * photoInfo.getPixels());
+            }
+            Double average = averageSize.get(photoInfo.getMedia());
+            if (average != null) {
+                return average.longValue();
+            }
+        }
+        return "video".equals(photoInfo.getMedia()) ? DEFAULT_VIDEO_SIZE : DEFAULT_PHOTO_SIZE;
+    }
+
+    /**
+     * Learns from a completed download.
+     *
+     * @param bytes the size of the original
+     */
+    public synchronized void record(PhotoInfo photoInfo, long bytes) {
+        if (photoInfo.getPixels() > 0) {
+            update(bytesPerPixel, photoInfo.getOriginalFormat(), (double) bytes / photoInfo.getPixels());
+        }
+        update(averageSize, photoInfo.getMedia(), bytes);
+    }
+
+    private static void update(Map<String, Double> averages, String key, double value) {
+        Double average = averages.get(key);
+        averages.put(key, average == null ? value : average + WEIGHT * (value - average));
+    }
+}
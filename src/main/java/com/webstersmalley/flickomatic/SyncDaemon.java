@@ -0,0 +1,322 @@
+package com.webstersmalley.flickomatic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the local copy up to date from one long-running process, instead of a fresh run from cron each time. Between
+ * polls everything stays warm: the login, the http connection pool, the manifest and the response cache are all kept,
+ * so a poll costs little more than the flickr.photos.recentlyUpdated calls that find what changed.
+ *
+ * Polls come every flickomatic.daemon.interval seconds, give or take flickomatic.daemon.jitter of that at random, so
+ * daemons started together don't all call Flickr at once. Each downloads just the changes since the last successful
+ * poll (see FlickrDownloader.synchroniseChanges()); every flickomatic.daemon.fullinterval seconds one looks at every
+ * photo instead, to catch the set changes that don't update lastupdate. A failed poll is tried again at the next one.
+ *
+ * Health and progress are served as JSON on flickomatic.daemon.port, on the loopback address only:
+ *
+ *   /health   200 while polls are succeeding, 503 once none has for three intervals or a poll has made no progress
+ *             (no API call, transfer, download or skip) for that long
+ *   /progress the daemon's state, the last and next polls, and the current or last poll's metrics
+ */
+@Service("syncDaemon")
+public class SyncDaemon {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    // Polls that can go without a success, or a poll without progress, before the daemon is unhealthy
+    private final static int UNHEALTHY_AFTER_INTERVALS = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Random random = new Random();
+
+    @Resource(name = "flickrDownloader")
+    private FlickrDownloader flickrDownloader;
+
+    @Value("${flickomatic.daemon.interval:900}")
+    private long interval = 900;
+
+    @Value("${flickomatic.daemon.jitter:0.1}")
+    private double jitter = 0.1;
+
+    // 0 means never
+    @Value("${flickomatic.daemon.fullinterval:604800}")
+    private long fullInterval = 604800;
+
+    // 0 means no endpoint
+    @Value("${flickomatic.daemon.port:8086}")
+    private int port = 8086;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private HttpServer server;
+
+    // Written by the polling thread, read by the endpoint's
+    private volatile String state = "starting";
+    private volatile int polls = 0;
+    private volatile int consecutiveFailures = 0;
+    private volatile Instant started = Instant.now();
+    private volatile Instant lastPollStarted;
+    private volatile Instant lastPollFinished;
+    private volatile Instant lastSuccess;
+    private volatile Instant lastFullPoll = Instant.now();
+    private volatile Instant nextPoll;
+    private volatile String lastError;
+
+    public SyncDaemon() {
+        // For Spring, which injects the fields
+    }
+
+    public SyncDaemon(FlickrDownloader flickrDownloader, long interval, double jitter, long fullInterval, int port) {
+        this.flickrDownloader = flickrDownloader;
+        this.interval = interval;
+        this.jitter = jitter;
+        this.fullInterval = fullInterval;
+        this.port = port;
+    }
+
+    /**
+     * Polls until stop() is called. The first poll starts straight away.
+     */
+    public void run() {
+        started = Instant.now();
+        lastFullPoll = started;
+        startEndpoint();
+        logger.info("Polling for changes every {}s (+/- {}%)", interval, Math.round(jitter * 100));
+        try {
+            while (stopped.getCount() > 0) {
+                poll();
+                long delay = getNextDelayMillis();
+                nextPoll = Instant.now().plusMillis(delay);
+                state = "idle";
+                logger.info("Next poll at {}", nextPoll);
+                if (stopped.await(delay, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            state = "stopped";
+            stopEndpoint();
+        }
+    }
+
+    /**
+     * Stops polling once the current poll (if any) is finished, and stops the endpoint. An unfinished poll left behind
+     * by the process exiting is resumed by the next one (see RunJournal).
+     */
+    public void stop() {
+        stopped.countDown();
+        stopEndpoint();
+    }
+
+    void poll() {
+        Instant now = Instant.now();
+        boolean enumerateAll = fullInterval > 0 && !now.isBefore(lastFullPoll.plusSeconds(fullInterval));
+        state = enumerateAll ? "syncing everything" : "syncing changes";
+        lastPollStarted = now;
+        polls++;
+        try {
+            int failures = flickrDownloader.synchroniseChanges(enumerateAll);
+            if (failures == 0) {
+                consecutiveFailures = 0;
+                // When it finished, so a long poll doesn't count against the daemon once it's done
+                lastSuccess = Instant.now();
+                lastError = null;
+                if (enumerateAll) {
+                    lastFullPoll = now;
+                }
+            } else {
+                consecutiveFailures++;
+                lastError = failures + " failures";
+            }
+        } catch (RuntimeException e) {
+            // Most likely Flickr or the network being unavailable; the next poll tries again
+            logger.error("Error polling for changes: " + e.getMessage(), e);
+            consecutiveFailures++;
+            lastError = e.getMessage();
+        } finally {
+            lastPollFinished = Instant.now();
+        }
+    }
+
+    /**
+     * @return the interval, jittered
+     */
+    long getNextDelayMillis() {
+        double factor = 1 + jitter * (2 * random.nextDouble() - 1);
+        return Math.max(0, Math.round(interval * 1000 * factor));
+    }
+
+    /**
+     * @return null if the daemon is healthy, otherwise why not
+     */
+    String getProblem() {
+        return getProblem(Instant.now());
+    }
+
+    /**
+     * A poll that's still making progress is healthy however long it takes (the first poll, or one that looks at every
+     * photo, can take hours); one that has made none for three intervals is taken to be stuck.
+     *
+     * @param now the time to judge the daemon's health at
+     * @return null if the daemon is healthy, otherwise why not
+     */
+    String getProblem(Instant now) {
+        if ("stopped".equals(state)) {
+            return "stopped";
+        }
+        long allowed = interval * UNHEALTHY_AFTER_INTERVALS;
+        Instant pollStarted = lastPollStarted;
+        Instant pollFinished = lastPollFinished;
+        boolean running = pollStarted != null && (pollFinished == null || pollFinished.isBefore(pollStarted));
+        if (running) {
+            Instant lastProgress = Instant.ofEpochMilli(Metrics.get().getLastActivityMillis());
+            if (lastProgress.isBefore(pollStarted)) {
+                lastProgress = pollStarted;
+            }
+            if (now.isAfter(lastProgress.plusSeconds(allowed))) {
+                return "poll running since " + pollStarted + " with no progress since " + lastProgress;
+            }
+        }
+        // A poll in progress can't have succeeded yet, so it's judged by whether the daemon was healthy when it started
+        Instant since = lastSuccess == null ? started : lastSuccess;
+        Instant judgedAt = running && pollStarted.isBefore(now) ? pollStarted : now;
+        if (judgedAt.isAfter(since.plusSeconds(allowed))) {
+            return "no successful poll since " + since + (lastError == null ? "" : ": " + lastError);
+        }
+        return null;
+    }
+
+    String getHealthJson() {
+        String problem = getProblem();
+        StringBuilder json = new StringBuilder("{");
+        appendField(json, "status", problem == null ? "ok" : "unhealthy");
+        if (problem != null) {
+            appendField(json, "problem", problem);
+        }
+        return json.append('}').toString();
+    }
+
+    String getProgressJson() {
+        Metrics metrics = Metrics.get();
+        StringBuilder json = new StringBuilder("{");
+        appendField(json, "state", state);
+        appendField(json, "polls", polls);
+        appendField(json, "consecutiveFailures", consecutiveFailures);
+        appendField(json, "started", started);
+        appendField(json, "lastPollStarted", lastPollStarted);
+        appendField(json, "lastPollFinished", lastPollFinished);
+        appendField(json, "lastSuccess", lastSuccess);
+        appendField(json, "nextPoll", nextPoll);
+        appendField(json, "lastError", lastError);
+        appendField(json, "runSeconds", metrics.getRunSeconds());
+        appendField(json, "downloaded", metrics.getDownloaded());
+        appendField(json, "skipped", metrics.getSkipped());
+        appendField(json, "failed", metrics.getFailed());
+        appendField(json, "apiCalls", metrics.getApiCalls());
+        appendField(json, "bytesTransferred", metrics.getBytesTransferred());
+        appendField(json, "queueDepths", metrics.getQueueDepths());
+        appendField(json, "activeWorkers", metrics.getActiveWorkers());
+        return json.append('}').toString();
+    }
+
+    private static void appendField(StringBuilder json, String name, Object value) {
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        json.append('"').append(name).append("\":");
+        appendValue(json, value);
+    }
+
+    private static void appendValue(StringBuilder json, Object value) {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof Number) {
+            json.append(value);
+        } else if (value instanceof Map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                appendValue(json, String.valueOf(entry.getKey()));
+                json.append(':');
+                appendValue(json, entry.getValue());
+            }
+            json.append('}');
+        } else {
+            json.append('"');
+            for (char c : value.toString().toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+    }
+
+    private synchronized void startEndpoint() {
+        if (port <= 0 || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            logger.error("Error starting the health endpoint on port " + port + ": " + e.getMessage(), e);
+            throw new RuntimeException("Error starting the health endpoint on port " + port + ": " + e.getMessage(), e);
+        }
+        server.createContext("/health", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, getProblem() == null ? 200 : 503, getHealthJson());
+            }
+        });
+        server.createContext("/progress", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, getProgressJson());
+            }
+        });
+        server.start();
+        logger.info("Serving health and progress on http://localhost:{}/", port);
+    }
+
+    private synchronized void stopEndpoint() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(body);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Small properties file holding state carried between runs, currently the high-water mark for delta syncs: the time
+ * (in seconds since the epoch) up to which every update is known to have been downloaded.
+ */
+public class SyncState {
+    private final static String LAST_SYNC = "lastsync";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File file;
+
+    public SyncState(File file) {
+        this.file = file;
+    }
+
+    private Properties load() {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                properties.load(is);
+            } catch (IOException e) {
+                logger.error("Error reading sync state: " + e.getMessage(), e);
+                throw new RuntimeException("Error reading sync state: " + e.getMessage(), e);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @return the high-water mark in seconds since the epoch, or -1 if there hasn't been a successful sync yet
+     */
+    public long getLastSync() {
+        String lastSync = load().getProperty(LAST_SYNC);
+        return lastSync == null ? -1 : Long.parseLong(lastSync.trim());
+    }
+
+    public void setLastSync(long lastSync) {
+        Properties properties = load();
+        properties.setProperty(LAST_SYNC, String.valueOf(lastSync));
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            properties.store(os, "flickomatic sync state");
+            os.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Error writing sync state: " + e.getMessage(), e);
+            throw new RuntimeException("Error writing sync state: " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+    }
+}
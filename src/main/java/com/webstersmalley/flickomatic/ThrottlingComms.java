@@ -0,0 +1,415 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decorator around the real Comms that keeps us within Flickr's limits. Requests are paced by a token bucket and the
+ * number in flight is capped; retryable failures are retried with exponential backoff and full jitter.
+ *
+ * Both the rate and the concurrency cap adapt: when Flickr throttles us they're halved, and after a run of successes
+ * they creep back up towards the configured maximums.
+ *
+ * Asynchronous requests get the same treatment without holding a thread: a request waiting for a slot is queued, and
+ * one waiting for the rate limit or a retry is scheduled for later. They go to the delegate asynchronously if it can
+ * do that, synchronously otherwise.
+ */
+@Service("comms")
+public class ThrottlingComms implements AsyncComms {
+    // Successes needed before stepping the rate and concurrency back up
+    private final static int INCREASE_AFTER = 50;
+    // Throttling responses arriving within this long of a decrease are part of the same burst, so don't decrease again
+    private final static long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // Flickr's "Service currently unavailable" error code
+    private final static String SERVICE_UNAVAILABLE = "105";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Random random = new Random();
+
+    @Resource(name = "oauthComms")
+    private Comms delegate;
+
+    @Value("${flickomatic.api.maxrate:10}")
+    private double maxRate = 10;
+
+    @Value("${flickomatic.api.minrate:0.2}")
+    private double minRate = 0.2;
+
+    @Value("${flickomatic.api.maxconcurrent:8}")
+    private int maxConcurrent = 8;
+
+    @Value("${flickomatic.api.retries:5}")
+    private int maxRetries = 5;
+
+    @Value("${flickomatic.api.backoff.base:500}")
+    private long baseDelay = 500;
+
+    @Value("${flickomatic.api.backoff.max:60000}")
+    private long maxDelay = 60000;
+
+    private volatile TokenBucket bucket;
+
+    // A budget shared with other accounts' throttlers, since Flickr's limits are per API key; null if there are none
+    private TokenBucket sharedBucket;
+
+    // Adaptive concurrency cap; guarded by lock. A lock rather than a monitor, so callers waiting for a slot on virtual
+    // threads don't pin their carrier threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+    private int concurrencyLimit = -1;
+    private int inFlight = 0;
+    // Asynchronous requests waiting for a slot
+    private final ArrayDeque<Runnable> slotWaiters = new ArrayDeque<Runnable>();
+    private int successes = 0;
+    private long lastDecrease = System.nanoTime() - DECREASE_COOLDOWN_NANOS;
+
+    public ThrottlingComms() {
+        // For Spring, which injects the fields
+    }
+
+    public ThrottlingComms(Comms delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setMaxRate(double maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setBaseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * Creates a throttler for another account's requests, with the same settings as this one but its own rate limit
+     * and concurrency cap.
+     *
+     * @param accountDelegate      the account's comms
+     * @param accountMaxRate       the most requests per second for this account
+     * @param accountMaxConcurrent the most requests in flight at once for this account
+     * @param sharedBucket         a rate limit shared by all the accounts using the same API key
+     */
+    public ThrottlingComms forAccount(Comms accountDelegate, double accountMaxRate, int accountMaxConcurrent,
+                                      TokenBucket sharedBucket) {
+        ThrottlingComms throttlingComms = new ThrottlingComms(accountDelegate);
+        throttlingComms.maxRate = accountMaxRate;
+        throttlingComms.minRate = Math.min(minRate, accountMaxRate);
+        throttlingComms.maxConcurrent = accountMaxConcurrent;
+        throttlingComms.maxRetries = maxRetries;
+        throttlingComms.baseDelay = baseDelay;
+        throttlingComms.maxDelay = maxDelay;
+        throttlingComms.sharedBucket = sharedBucket;
+        return throttlingComms;
+    }
+
+    private TokenBucket getBucket() {
+        TokenBucket result = bucket;
+        if (result == null) {
+            synchronized (this) {
+                result = bucket;
+                if (result == null) {
+                    result = new TokenBucket(maxRate, Math.max(1, maxRate));
+                    bucket = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    public double getCurrentRate() {
+        return getBucket().getRate();
+    }
+
+    public int getConcurrencyLimit() {
+        lock.lock();
+        try {
+            return concurrencyLimit < 0 ? maxConcurrent : concurrencyLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquireSlot() throws InterruptedException {
+        lock.lock();
+        try {
+            if (concurrencyLimit < 0) {
+                concurrencyLimit = maxConcurrent;
+            }
+            while (inFlight >= concurrencyLimit) {
+                slotFreed.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the given task once a slot is free: straight away if there is one, otherwise when one is released.
+     */
+    private void acquireSlotAsync(Runnable onAcquired) {
+        lock.lock();
+        try {
+            if (concurrencyLimit < 0) {
+                concurrencyLimit = maxConcurrent;
+            }
+            if (inFlight >= concurrencyLimit) {
+                slotWaiters.add(onAcquired);
+                return;
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        onAcquired.run();
+    }
+
+    /**
+     * Hands a free slot to the next queued asynchronous request, if any. Must hold lock; run what's returned after
+     * releasing it.
+     */
+    private Runnable takeSlotForWaiter() {
+        if (slotWaiters.isEmpty() || inFlight >= concurrencyLimit) {
+            return null;
+        }
+        inFlight++;
+        return slotWaiters.poll();
+    }
+
+    /**
+     * Starts a queued request on a virtual thread of its own rather than the releasing thread, so a long chain of
+     * waiters can't grow the stack.
+     */
+    private static void startWaiter(Runnable waiter) {
+        Thread.ofVirtual().name("comms-waiter").start(waiter);
+    }
+
+    private void releaseSlot() {
+        Runnable waiter;
+        lock.lock();
+        try {
+            inFlight--;
+            slotFreed.signalAll();
+            waiter = takeSlotForWaiter();
+        } finally {
+            lock.unlock();
+        }
+        if (waiter != null) {
+            startWaiter(waiter);
+        }
+    }
+
+    private void onSuccess() {
+        Runnable waiter = null;
+        lock.lock();
+        try {
+            if (++successes < INCREASE_AFTER) {
+                return;
+            }
+            successes = 0;
+            TokenBucket tokenBucket = getBucket();
+            if (tokenBucket.getRate() < maxRate) {
+                tokenBucket.setRate(Math.min(maxRate, tokenBucket.getRate() + Math.max(minRate, maxRate / 20)));
+            }
+            if (concurrencyLimit < maxConcurrent) {
+                concurrencyLimit++;
+                slotFreed.signalAll();
+                waiter = takeSlotForWaiter();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (waiter != null) {
+            startWaiter(waiter);
+        }
+    }
+
+    private void onThrottled() {
+        lock.lock();
+        try {
+            successes = 0;
+            long now = System.nanoTime();
+            if (now - lastDecrease < DECREASE_COOLDOWN_NANOS) {
+                return;
+            }
+            lastDecrease = now;
+            TokenBucket tokenBucket = getBucket();
+            tokenBucket.setRate(Math.max(minRate, tokenBucket.getRate() / 2));
+            concurrencyLimit = Math.max(1, getConcurrencyLimit() / 2);
+            logger.warn("Throttled by Flickr: slowing down to {} requests/s, {} concurrent", tokenBucket.getRate(), concurrencyLimit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how long to wait before the given retry: a random time up to the exponential backoff (full jitter), or
+     * the server's Retry-After if that's longer
+     */
+    long getBackoff(int attempt, long retryAfterSeconds) {
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        long delay = (long) (random.nextDouble() * ceiling);
+        return Math.max(delay, TimeUnit.SECONDS.toMillis(retryAfterSeconds));
+    }
+
+    /**
+     * Flickr reports some transient failures as an ordinary 200 response with an error code.
+     */
+    private void checkForTransientError(String response, Map<String, String> params) {
+        if (response != null && response.contains("stat=\"fail\"")) {
+            List<Map<String, String>> errors = XMLUtils.getAttributesOfElements(response, "err");
+            if (!errors.isEmpty() && SERVICE_UNAVAILABLE.equals(errors.get(0).get("code"))) {
+                throw new CommsException("Flickr service unavailable for " + params.get("method"), null, 200, true, true, -1);
+            }
+        }
+    }
+
+    public void authenticate() {
+        delegate.authenticate();
+    }
+
+    public String sendGetRequest(Map<String, String> params) {
+        for (int attempt = 0; ; attempt++) {
+            long delay;
+            try {
+                acquireSlot();
+                try {
+                    getBucket().acquire();
+                    if (sharedBucket != null) {
+                        sharedBucket.acquire();
+                    }
+                    String response = delegate.sendGetRequest(params);
+                    checkForTransientError(response, params);
+                    onSuccess();
+                    return response;
+                } catch (CommsException e) {
+                    if (e.isThrottled()) {
+                        onThrottled();
+                    }
+                    if (!e.isRetryable() || attempt >= maxRetries) {
+                        throw e;
+                    }
+                    delay = getBackoff(attempt, e.getRetryAfterSeconds());
+                    logger.warn("Request {} failed ({}), retrying in {} ms", params.get("method"), e.getMessage(), delay);
+                } finally {
+                    releaseSlot();
+                }
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CommsException("Interrupted sending " + params.get("method"), e, -1, false, false, -1);
+            }
+        }
+    }
+
+    public CompletableFuture<String> sendGetRequestAsync(final Map<String, String> params) {
+        return sendGetRequestAsync(params, new BodyParser<String>() {
+            public String parse(InputStream body) throws IOException {
+                String response = IOUtils.toString(body, "UTF-8");
+                checkForTransientError(response, params);
+                return response;
+            }
+        });
+    }
+
+    public <T> CompletableFuture<T> sendGetRequestAsync(Map<String, String> params, BodyParser<T> parser) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        attemptAsync(params, parser, 0, result);
+        return result;
+    }
+
+    private <T> void attemptAsync(final Map<String, String> params, final BodyParser<T> parser, final int attempt,
+                                  final CompletableFuture<T> result) {
+        acquireSlotAsync(new Runnable() {
+            public void run() {
+                long wait = getBucket().reserve();
+                if (sharedBucket != null) {
+                    wait = Math.max(wait, sharedBucket.reserve());
+                }
+                Runnable send = new Runnable() {
+                    public void run() {
+                        CompletableFuture<T> response;
+                        try {
+                            response = AsyncComms.sendAsync(delegate, params, parser);
+                        } catch (RuntimeException e) {
+                            // Failed before it was sent (signing it, say), so there's no future to wait for
+                            releaseSlot();
+                            onFailure(params, parser, attempt, result, e);
+                            return;
+                        }
+                        response.whenComplete(new BiConsumer<T, Throwable>() {
+                            public void accept(T response, Throwable error) {
+                                releaseSlot();
+                                if (error == null) {
+                                    onSuccess();
+                                    result.complete(response);
+                                } else {
+                                    onFailure(params, parser, attempt, result, error);
+                                }
+                            }
+                        });
+                    }
+                };
+                if (wait > 0) {
+                    CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(send);
+                } else {
+                    send.run();
+                }
+            }
+        });
+    }
+
+    private <T> void onFailure(final Map<String, String> params, final BodyParser<T> parser, final int attempt,
+                               final CompletableFuture<T> result, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (!(cause instanceof CommsException)) {
+            result.completeExceptionally(cause);
+            return;
+        }
+        CommsException e = (CommsException) cause;
+        if (e.isThrottled()) {
+            onThrottled();
+        }
+        if (!e.isRetryable() || attempt >= maxRetries) {
+            result.completeExceptionally(e);
+            return;
+        }
+        long delay = getBackoff(attempt, e.getRetryAfterSeconds());
+        logger.warn("Request {} failed ({}), retrying in {} ms", params.get("method"), e.getMessage(), delay);
+        Executor later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+        later.execute(new Runnable() {
+            public void run() {
+                attemptAsync(params, parser, attempt + 1, result);
+            }
+        });
+    }
+}
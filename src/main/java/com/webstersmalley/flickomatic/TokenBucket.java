@@ -0,0 +1,85 @@
+package com.webstersmalley.flickomatic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens accumulate at the current rate up to the burst size; each acquire() takes one (or,
+ * for a byte budget, one per byte), waiting if the bucket is empty. The rate can be changed on the fly.
+ */
+public class TokenBucket {
+    private final double burst;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate  tokens per second
+     * @param burst the most tokens that can be saved up
+     */
+    public TokenBucket(double rate, double burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1: " + rate + ", " + burst);
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * Takes a token, going into debt if there isn't one.
+     *
+     * @return how long the caller has to wait before using it, in nanoseconds
+     */
+    synchronized long reserve() {
+        return reserve(1);
+    }
+
+    /**
+     * Takes some tokens, going into debt if there aren't enough.
+     *
+     * @return how long the caller has to wait before using them, in nanoseconds
+     */
+    synchronized long reserve(long amount) {
+        refill(System.nanoTime());
+        tokens -= amount;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Takes a token, blocking until one is available.
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Takes some tokens, blocking until they're available.
+     */
+    public void acquire(long amount) throws InterruptedException {
+        long wait = reserve(amount);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + rate);
+        }
+        refill(System.nanoTime());
+        this.rate = rate;
+    }
+}
@@ -8,40 +8,202 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
-import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
+ * Static XML helpers. All methods are safe to call from multiple threads: DOM builders, transformers and compiled
+ * XPath expressions (none of which are thread-safe) are cached per thread, and the StAX factory is shared.
+ *
  * Created by: Matthew Smalley
  * Date: 12/10/13
  */
 public class XMLUtils {
     private final static Logger logger = LoggerFactory.getLogger(XMLUtils.class);
+
+    // xpaths of the form //name can be answered by a single streaming pass, without building a DOM
+    private final static Pattern DESCENDANT_ELEMENT_XPATH = Pattern.compile("//[A-Za-z_][\\w.-]*");
+
+    private final static XMLInputFactory inputFactory = createInputFactory();
+
+    private final static ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException("Error creating document builder: " + e.getMessage(), e);
+            }
+        }
+    };
+
+    private final static ThreadLocal<XPath> xPath = new ThreadLocal<XPath>() {
+        @Override
+        protected XPath initialValue() {
+            return XPathFactory.newInstance().newXPath();
+        }
+    };
+
+    // Looking up a TransformerFactory is far more expensive than the transform itself, so keep one transformer per thread
+    private final static ThreadLocal<Transformer> indentingTransformer = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            try {
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+                return transformer;
+            } catch (TransformerConfigurationException e) {
+                throw new RuntimeException("Error creating transformer: " + e.getMessage(), e);
+            }
+        }
+    };
+
+    private final static ThreadLocal<Map<String, XPathExpression>> compiledExpressions = new ThreadLocal<Map<String, XPathExpression>>() {
+        @Override
+        protected Map<String, XPathExpression> initialValue() {
+            return new HashMap<String, XPathExpression>();
+        }
+    };
+
     private XMLUtils() {
 
     }
 
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        return factory;
+    }
+
+    private static XPathExpression getExpression(String expression) throws XPathExpressionException {
+        Map<String, XPathExpression> cache = compiledExpressions.get();
+        XPathExpression xPathExpression = cache.get(expression);
+        if (xPathExpression == null) {
+            xPathExpression = xPath.get().compile(expression);
+            cache.put(expression, xPathExpression);
+        }
+        return xPathExpression;
+    }
+
     public static Document getDocumentFromString(String contents) {
+        long start = System.nanoTime();
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
+            DocumentBuilder builder = documentBuilder.get();
+            builder.reset();
             return builder.parse(new InputSource(new StringReader(contents)));
         } catch (Exception e) {
             logger.error("Error parsing contents: " + e.getMessage(), e);
             throw new RuntimeException("Error parsing contents: " + e.getMessage(), e);
+        } finally {
+            Metrics.get().recordParse(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the node (and everything under it) as an indented XML document
+     */
+    public static String nodeToString(Node node) {
+        try {
+            StringWriter writer = new StringWriter();
+            indentingTransformer.get().transform(new DOMSource(node), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            logger.error("Error formatting node: " + e.getMessage(), e);
+            throw new RuntimeException("Error formatting node: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a streaming reader over a document. The caller is responsible for closing it.
+     */
+    public static XMLStreamReader createStreamReader(String contents) {
+        try {
+            return inputFactory.createXMLStreamReader(new StringReader(contents));
+        } catch (XMLStreamException e) {
+            logger.error("Error parsing contents: " + e.getMessage(), e);
+            throw new RuntimeException("Error parsing contents: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a streaming reader over a document as it arrives, e.g. an http response body. The caller is responsible
+     * for closing both.
+     */
+    public static XMLStreamReader createStreamReader(InputStream contents) {
+        try {
+            return inputFactory.createXMLStreamReader(contents);
+        } catch (XMLStreamException e) {
+            logger.error("Error parsing contents: " + e.getMessage(), e);
+            throw new RuntimeException("Error parsing contents: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads a document through to the end without keeping any of it. The caller is responsible for closing the stream.
+     *
+     * @return null if the document is well-formed, otherwise what's wrong with it
+     */
+    public static String checkWellFormed(InputStream contents) {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(contents);
+            while (reader.hasNext()) {
+                reader.next();
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            return e.getMessage();
+        } finally {
+            if (reader != null) {
+                closeQuietly(reader);
+            }
+        }
+    }
+
+    /**
+     * @return the attributes of the element the reader is currently positioned on
+     */
+    public static Map<String, String> getAttributes(XMLStreamReader reader) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        return attributes;
+    }
+
+    private static void closeQuietly(XMLStreamReader reader) {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            logger.debug("Error closing reader: " + e.getMessage());
         }
     }
 
@@ -51,8 +213,7 @@ public class XMLUtils {
 
     public static String getAttributeValue(Document document, String xpath, String attribute) {
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            XPathExpression xPathExpression = xPath.compile(xpath + "/@" + attribute);
+            XPathExpression xPathExpression = getExpression(xpath + "/@" + attribute);
             String attributeValue = "" + xPathExpression.evaluate(document, XPathConstants.STRING);
             return attributeValue;
         } catch (Exception e) {
@@ -62,13 +223,15 @@ public class XMLUtils {
     }
 
     public static List<Map<String, String>> getListOfAttributesFromElements(String document, String xpath) {
+        if (DESCENDANT_ELEMENT_XPATH.matcher(xpath).matches()) {
+            return getAttributesOfElements(document, xpath.substring(2));
+        }
         return getListOfAttributesFromElements(getDocumentFromString(document), xpath);
     }
 
     public static List<Map<String, String>> getListOfAttributesFromElements(Document document, String xpath) {
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            XPathExpression xPathExpression = xPath.compile(xpath);
+            XPathExpression xPathExpression = getExpression(xpath);
             NodeList nodeList = (NodeList)xPathExpression.evaluate(document, XPathConstants.NODESET);
             List<Map<String, String>> list = new ArrayList<Map<String, String>>();
             for (int i = 0; i < nodeList.getLength(); i++) {
@@ -88,4 +251,70 @@ public class XMLUtils {
             throw new RuntimeException("Error parsing contents: " + e.getMessage(), e);
         }
     }
+
+    /**
+     * Streaming equivalent of getListOfAttributesFromElements(document, "//" + elementName): returns the attributes
+     * of every element with the given name, in document order, without building a DOM.
+     */
+    public static List<Map<String, String>> getAttributesOfElements(String document, String elementName) {
+        long start = System.nanoTime();
+        XMLStreamReader reader = createStreamReader(document);
+        try {
+            List<Map<String, String>> list = new ArrayList<Map<String, String>>();
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && elementName.equals(reader.getLocalName())) {
+                    list.add(getAttributes(reader));
+                }
+            }
+            return list;
+        } catch (XMLStreamException e) {
+            logger.error("Error parsing contents: " + e.getMessage(), e);
+            throw new RuntimeException("Error parsing contents: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+            Metrics.get().recordParse(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Pulls the fields the downloader needs out of a flickr.photos.getInfo response in a single streaming pass.
+     *
+     * @param document the getInfo response
+     * @return the photo info, or null if the response doesn't contain a photo
+     */
+    public static PhotoInfo getPhotoInfo(String document) {
+        long start = System.nanoTime();
+        XMLStreamReader reader = createStreamReader(document);
+        try {
+            PhotoInfo photoInfo = null;
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (photoInfo == null && "photo".equals(name)) {
+                        photoInfo = new PhotoInfo(reader.getAttributeValue(null, "id"),
+                                reader.getAttributeValue(null, "farm"),
+                                reader.getAttributeValue(null, "server"),
+                                reader.getAttributeValue(null, "originalsecret"),
+                                reader.getAttributeValue(null, "originalformat"));
+                        if (reader.getAttributeValue(null, "media") != null) {
+                            photoInfo.setMedia(reader.getAttributeValue(null, "media"));
+                        }
+                    } else if (photoInfo != null && "dates".equals(name)) {
+                        String lastUpdate = reader.getAttributeValue(null, "lastupdate");
+                        if (lastUpdate != null) {
+                            photoInfo.setLastUpdate(Long.parseLong(lastUpdate));
+                        }
+                        break;
+                    }
+                }
+            }
+            return photoInfo;
+        } catch (XMLStreamException e) {
+            logger.error("Error parsing contents: " + e.getMessage(), e);
+            throw new RuntimeException("Error parsing contents: " + e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+            Metrics.get().recordParse(System.nanoTime() - start);
+        }
+    }
 }
@@ -0,0 +1,123 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestArchiveVerifier {
+    private File home;
+    private File pictures;
+    private File metadata;
+    private PhotoManifest manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        home = Files.createTempDirectory("flickomatic").toFile();
+        pictures = new File(home, "pictures");
+        metadata = new File(home, "metadata");
+        pictures.mkdirs();
+        metadata.mkdirs();
+        manifest = new PhotoManifest(new File(home, "flickomatic.manifest"));
+        manifest.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manifest.close();
+        FileUtils.deleteDirectory(home);
+    }
+
+    private static String checksum(byte[] contents) {
+        return ImageTransfer.toHex(ImageTransfer.createDigest().digest(contents));
+    }
+
+    /**
+     * Writes an image and records it as downloaded.
+     */
+    private File saveImage(String photoId, String contents) throws IOException {
+        byte[] bytes = contents.getBytes("UTF-8");
+        File file = new File(pictures, photoId + ".jpg");
+        Files.write(file.toPath(), bytes);
+        manifest.record(photoId, 1000L, "jpg", PhotoManifest.Artifact.IMAGE, checksum(bytes), bytes.length);
+        return file;
+    }
+
+    private File saveMetadata(String photoId, String contents) throws IOException {
+        File file = new File(metadata, photoId + ".info.xml");
+        Files.write(file.toPath(), contents.getBytes("UTF-8"));
+        manifest.record(photoId, 1000L, "jpg", PhotoManifest.Artifact.INFO, null);
+        return file;
+    }
+
+    private Map<String, ArchiveVerifier.Problem> verify(PhotoStore photoStore) {
+        ArchiveVerifier verifier = new ArchiveVerifier(manifest, 2, 0);
+        List<ArchiveVerifier.Problem> problems = verifier.verify(photoStore, new MetadataFolder(metadata));
+        Map<String, ArchiveVerifier.Problem> byPhoto = new HashMap<String, ArchiveVerifier.Problem>();
+        for (ArchiveVerifier.Problem problem : problems) {
+            byPhoto.put(problem.getPhotoId() + " " + problem.getArtifact(), problem);
+        }
+        return byPhoto;
+    }
+
+    @Test
+    public void testFindsAndSetsAsideBadFiles() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            saveImage(String.valueOf(i), "image " + i);
+            saveMetadata(String.valueOf(i), "<photo id=\"" + i + "\"/>");
+        }
+        File truncated = saveImage("200", "a whole image");
+        Files.write(truncated.toPath(), "a whole".getBytes("UTF-8"));
+        File flipped = saveImage("201", "a whole image");
+        Files.write(flipped.toPath(), "a whale image".getBytes("UTF-8"));
+        saveImage("202", "an image").delete();
+        File badXml = saveMetadata("203", "<photo id=\"203\">");
+
+        Map<String, ArchiveVerifier.Problem> problems = verify(new FlatPhotoStore(pictures, null));
+
+        assertEquals(4, problems.size());
+        assertTrue(problems.get("200 IMAGE").getReason().startsWith("size"));
+        assertTrue(problems.get("201 IMAGE").getReason().startsWith("checksum"));
+        assertEquals("missing", problems.get("202 IMAGE").getReason());
+        assertNotNull(problems.get("203 INFO"));
+
+        assertFalse(truncated.exists());
+        assertTrue(new File(truncated.getPath() + ".corrupt").exists());
+        assertFalse(badXml.exists());
+        assertFalse(manifest.isCurrent("200", 1000L, PhotoManifest.Artifact.IMAGE));
+        assertFalse(manifest.isCurrent("203", 1000L, PhotoManifest.Artifact.INFO));
+        assertTrue(manifest.isCurrent("0", 1000L, PhotoManifest.Artifact.INFO));
+        assertTrue(manifest.isCurrent("0", 1000L, PhotoManifest.Artifact.IMAGE));
+
+        // Once set aside, the problems aren't found again
+        assertTrue(verify(new FlatPhotoStore(pictures, null)).isEmpty());
+    }
+
+    @Test
+    public void testChecksBlobsAgainstTheirNames() throws IOException {
+        ContentAddressedStore store = new ContentAddressedStore(pictures, null);
+        byte[] contents = "an image".getBytes("UTF-8");
+        String checksum = checksum(contents);
+        File blob = store.getBlobFile(checksum, "jpg");
+        blob.getParentFile().mkdirs();
+        Files.write(blob.toPath(), "an imago".getBytes("UTF-8"));
+        manifest.record("1", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, checksum, contents.length);
+        manifest.record("2", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, checksum, contents.length);
+
+        Map<String, ArchiveVerifier.Problem> problems = verify(store);
+
+        assertEquals(2, problems.size());
+        assertFalse(blob.exists());
+        assertFalse(manifest.isCurrent("1", 1000L, PhotoManifest.Artifact.IMAGE));
+        assertFalse(manifest.isCurrent("2", 1000L, PhotoManifest.Artifact.IMAGE));
+    }
+}
@@ -0,0 +1,174 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestCachingComms {
+    private final AtomicInteger calls = new AtomicInteger();
+    private File home;
+
+    // Answers with the request's method and photo, and how many calls have been made
+    private final Comms countingComms = new Comms() {
+        public String sendGetRequest(Map<String, String> params) {
+            return "<rsp stat=\"ok\" method=\"" + params.get("method") + "\" photo=\"" + params.get("photo_id")
+                    + "\" call=\"" + calls.incrementAndGet() + "\"/>";
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        home = Files.createTempDirectory("flickomatic").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        new File(home, "flickomatic.cache").delete();
+        home.delete();
+    }
+
+    private static Map<String, String> params(String method, String photoId) {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("method", method);
+        if (photoId != null) {
+            params.put("photo_id", photoId);
+        }
+        return params;
+    }
+
+    @Test
+    public void testCachesUntilLastUpdateChanges() {
+        CachingComms comms = new CachingComms(countingComms, 100, 100000);
+        Map<String, String> comments = params("flickr.photos.comments.getList", "1");
+
+        // Not listed yet, so not cached
+        comms.sendGetRequest(comments);
+        comms.sendGetRequest(comments);
+        assertEquals(2, calls.get());
+
+        comms.photoListed("1", 1000L);
+        String first = comms.sendGetRequest(comments);
+        assertEquals(first, comms.sendGetRequest(comments));
+        assertEquals(3, calls.get());
+
+        comms.photoListed("1", 1000L);
+        comms.sendGetRequest(comments);
+        assertEquals(3, calls.get());
+
+        comms.photoListed("1", 2000L);
+        assertFalse(first.equals(comms.sendGetRequest(comments)));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testListCallsAndFailuresAreNotCached() {
+        Comms failing = new Comms() {
+            public String sendGetRequest(Map<String, String> params) {
+                calls.incrementAndGet();
+                return "<rsp stat=\"fail\"><err code=\"1\" msg=\"Photo not found\"/></rsp>";
+            }
+        };
+        CachingComms comms = new CachingComms(failing, 100, 100000);
+        comms.photoListed("1", 1000L);
+        comms.sendGetRequest(params("flickr.photos.getInfo", "1"));
+        comms.sendGetRequest(params("flickr.photos.getInfo", "1"));
+        comms.sendGetRequest(params("flickr.photosets.getList", null));
+        comms.sendGetRequest(params("flickr.photosets.getList", null));
+        assertEquals(4, calls.get());
+        assertEquals(0, comms.getEntryCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        CachingComms comms = new CachingComms(countingComms, 2, 100000);
+        for (String photoId : new String[]{"1", "2", "3"}) {
+            comms.photoListed(photoId, 1000L);
+        }
+        comms.sendGetRequest(params("flickr.photos.getInfo", "1"));
+        comms.sendGetRequest(params("flickr.photos.getInfo", "2"));
+        comms.sendGetRequest(params("flickr.photos.getInfo", "1"));
+        comms.sendGetRequest(params("flickr.photos.getInfo", "3"));
+        assertEquals(3, calls.get());
+        assertEquals(2, comms.getEntryCount());
+
+        // 2 was the least recently used
+        comms.sendGetRequest(params("flickr.photos.getInfo", "1"));
+        assertEquals(3, calls.get());
+        comms.sendGetRequest(params("flickr.photos.getInfo", "2"));
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testContextsAreNotCached() {
+        CachingComms comms = new CachingComms(countingComms, 100, 100000);
+        comms.photoListed("1", 1000L);
+        comms.sendGetRequest(params("flickr.photos.getAllContexts", "1"));
+        comms.sendGetRequest(params("flickr.photos.getAllContexts", "1"));
+        assertEquals(2, calls.get());
+        assertEquals(0, comms.getEntryCount());
+    }
+
+    @Test
+    public void testCoalescesRequestsInFlight() {
+        final CompletableFuture<String> response = new CompletableFuture<String>();
+        AsyncComms slow = new AsyncComms() {
+            public String sendGetRequest(Map<String, String> params) {
+                return AsyncComms.await(sendGetRequestAsync(params));
+            }
+
+            public CompletableFuture<String> sendGetRequestAsync(Map<String, String> params) {
+                calls.incrementAndGet();
+                return response;
+            }
+
+            public <T> CompletableFuture<T> sendGetRequestAsync(Map<String, String> params, BodyParser<T> parser) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        CachingComms comms = new CachingComms(slow, 0, 0);
+        CompletableFuture<String> first = comms.sendGetRequestAsync(params("flickr.photos.getInfo", "1"));
+        CompletableFuture<String> second = comms.sendGetRequestAsync(params("flickr.photos.getInfo", "1"));
+        assertEquals(1, calls.get());
+        response.complete("<rsp stat=\"ok\"/>");
+        assertEquals("<rsp stat=\"ok\"/>", first.join());
+        assertEquals("<rsp stat=\"ok\"/>", second.join());
+
+        comms.sendGetRequestAsync(params("flickr.photos.getInfo", "1"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testPersistsBetweenRuns() {
+        File file = new File(home, "flickomatic.cache");
+        CachingComms comms = new CachingComms(countingComms, 100, 100000);
+        comms.setPersist(true);
+        comms.load(file);
+        comms.photoListed("1", 1000L);
+        comms.photoListed("2", 1000L);
+        String info = comms.sendGetRequest(params("flickr.photos.getInfo", "1"));
+        comms.sendGetRequest(params("flickr.photos.getInfo", "2"));
+        comms.save();
+        assertTrue(file.exists());
+
+        CachingComms nextRun = new CachingComms(countingComms, 100, 100000);
+        nextRun.setPersist(true);
+        nextRun.load(file);
+        assertEquals(2, nextRun.getEntryCount());
+        nextRun.photoListed("1", 1000L);
+        nextRun.photoListed("2", 3000L);
+        assertEquals(info, nextRun.sendGetRequest(params("flickr.photos.getInfo", "1")));
+        assertEquals(2, calls.get());
+        nextRun.sendGetRequest(params("flickr.photos.getInfo", "2"));
+        assertEquals(3, calls.get());
+    }
+}
@@ -0,0 +1,122 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestContentAddressedStore {
+    private final static String CHECKSUM = "ab12cd34ef56ab12cd34ef56ab12cd34ef56ab12cd34ef56ab12cd34ef56ab12";
+
+    private File root;
+    private ContentAddressedStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("flickomatic").toFile();
+        store = new ContentAddressedStore(root, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    private File stage(String name, String contents) throws IOException {
+        File file = new File(root, name);
+        Files.write(file.toPath(), contents.getBytes("UTF-8"));
+        return file;
+    }
+
+    @Test
+    public void testBlobLayout() {
+        File blob = store.getBlobFile(CHECKSUM, "jpg");
+        assertEquals(new File(new File(new File(root, "ab"), "12"), CHECKSUM + ".jpg"), blob);
+    }
+
+    @Test
+    public void testDuplicateIsStoredOnce() throws IOException {
+        File first = store.store(stage("1.jpg", "image"), CHECKSUM, "jpg");
+        File staged = stage("2.jpg", "image");
+        File second = store.store(staged, CHECKSUM, "jpg");
+
+        assertEquals(first, second);
+        assertFalse(staged.exists());
+        assertEquals("image", new String(Files.readAllBytes(first.toPath()), "UTF-8"));
+        assertEquals(1, first.getParentFile().list().length);
+    }
+
+    @Test
+    public void testDuplicateRefreshesBlob() throws IOException {
+        File blob = store.store(stage("1.jpg", "image"), CHECKSUM, "jpg");
+        long old = System.currentTimeMillis() - 3600000;
+        blob.setLastModified(old);
+
+        store.store(stage("2.jpg", "image"), CHECKSUM, "jpg");
+
+        assertTrue(blob.lastModified() > old + 60000);
+    }
+
+    @Test
+    public void testSweepLeavesSharedRootAlone() throws IOException {
+        String other = CHECKSUM.replace('a', 'f');
+        File unreferenced = store.store(stage("1.jpg", "image"), other, "jpg");
+        unreferenced.setLastModified(System.currentTimeMillis() - 3600000);
+
+        PhotoManifest mine = new PhotoManifest(new File(root, "mine.manifest"));
+        PhotoManifest theirs = new PhotoManifest(new File(root, "theirs.manifest"));
+        mine.open();
+        theirs.open();
+        try {
+            store.register(mine.getFile());
+            store.register(theirs.getFile());
+            theirs.record("1", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, other);
+            // Registering again doesn't add it twice
+            store.register(mine.getFile());
+
+            assertEquals(0, store.sweep(mine, 60000));
+            assertTrue(unreferenced.exists());
+            theirs.record("1", 2000L, "jpg", PhotoManifest.Artifact.IMAGE, CHECKSUM);
+            assertEquals(1, store.sweep(Arrays.asList(mine, theirs), 60000));
+            assertFalse(unreferenced.exists());
+        } finally {
+            mine.close();
+            theirs.close();
+        }
+    }
+
+    @Test
+    public void testSweepDeletesUnreferencedBlobs() throws IOException {
+        String other = CHECKSUM.replace('a', 'f');
+        String young = CHECKSUM.replace('b', 'e');
+        File kept = store.store(stage("1.jpg", "image"), CHECKSUM, "jpg");
+        File unreferenced = store.store(stage("2.jpg", "old image"), other, "jpg");
+        File recent = store.store(stage("3.jpg", "new image"), young, "jpg");
+        long old = System.currentTimeMillis() - 3600000;
+        kept.setLastModified(old);
+        unreferenced.setLastModified(old);
+
+        PhotoManifest manifest = new PhotoManifest(new File(root, "flickomatic.manifest"));
+        manifest.open();
+        try {
+            manifest.record("1", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, CHECKSUM);
+            // Replaced since: its old blob isn't referenced any more
+            manifest.record("2", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, other);
+            manifest.record("2", 2000L, "jpg", PhotoManifest.Artifact.IMAGE, CHECKSUM);
+
+            assertEquals(1, store.sweep(manifest, 60000));
+        } finally {
+            manifest.close();
+        }
+        assertTrue(kept.exists());
+        assertFalse(unreferenced.exists());
+        assertTrue(recent.exists());
+    }
+}
@@ -0,0 +1,94 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class TestDirectWiring {
+    private final static List<String> closed = new ArrayList<String>();
+
+    static class Pool {
+        @PreDestroy
+        void shutdown() {
+            closed.add("pool");
+        }
+    }
+
+    static class Client {
+        @Resource(name = "pool")
+        private Pool pool;
+
+        @PreDestroy
+        public void close() {
+            closed.add("client");
+        }
+    }
+
+    private static Properties properties() {
+        Properties properties = new Properties();
+        properties.setProperty("flickomatic.api.key", "key");
+        properties.setProperty("flickomatic.api.secret", "secret");
+        properties.setProperty("flickomatic.api.url", "https://api.flickr.com/services/rest");
+        properties.setProperty("flickomatic.home.authfile", "auth");
+        properties.setProperty("flickomatic.home.savedir.pictures", "pictures");
+        properties.setProperty("flickomatic.home.savedir.metadata", "metadata");
+        properties.setProperty("flickomatic.fulldownload", "false");
+        return properties;
+    }
+
+    @Test
+    public void testResolve() {
+        Properties properties = properties();
+        properties.setProperty("flickomatic.threads", "3");
+        DirectWiring wiring = new DirectWiring(properties);
+        assertEquals("3", wiring.resolve("${flickomatic.threads:8}"));
+        assertEquals("8", wiring.resolve("${flickomatic.threads.unset:8}"));
+        assertEquals("http://farm%s/%s", wiring.resolve("${flickomatic.unset:http://farm%s/%s}"));
+        assertEquals("key", wiring.resolve("${flickomatic.api.key}"));
+        System.setProperty("flickomatic.test.override", "system");
+        try {
+            properties.setProperty("flickomatic.test.override", "file");
+            assertEquals("system", wiring.resolve("${flickomatic.test.override}"));
+        } finally {
+            System.clearProperty("flickomatic.test.override");
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMissingRequiredProperty() {
+        new DirectWiring(new Properties()).resolve("${flickomatic.api.key}");
+    }
+
+    @Test
+    public void testServicesAreShared() {
+        DirectWiring wiring = new DirectWiring(properties());
+        FlickrDownloader downloader = wiring.getBean("flickrDownloader", FlickrDownloader.class);
+        assertNotNull(downloader);
+        assertSame(downloader, wiring.getBean("flickrDownloader", FlickrDownloader.class));
+        assertSame(wiring.getBean("httpTransport", HttpTransport.class), wiring.getBean("httpTransport", HttpTransport.class));
+    }
+
+    @Test
+    public void testCloseRunsPreDestroyMethods() {
+        Map<String, Class<?>> services = new HashMap<String, Class<?>>();
+        services.put("pool", Pool.class);
+        services.put("client", Client.class);
+        DirectWiring wiring = new DirectWiring(new Properties(), services);
+        Client client = wiring.getBean("client", Client.class);
+        closed.clear();
+        wiring.close();
+        // The client first, since it uses the pool
+        assertEquals(2, closed.size());
+        assertEquals("client", closed.get(0));
+        assertEquals("pool", closed.get(1));
+        assertFalse(client == wiring.getBean("client", Client.class));
+    }
+}
@@ -0,0 +1,158 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestDownloadScheduler {
+    @Test
+    public void testFollowOnTasksCompleteBeforeAwaitReturns() {
+        final DownloadScheduler scheduler = new DownloadScheduler();
+        final DownloadScheduler.Stage first = scheduler.addStage("first", 2, 1);
+        final DownloadScheduler.Stage second = scheduler.addStage("second", 1, 1);
+        final AtomicInteger written = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            scheduler.submit(first, "set", new Runnable() {
+                public void run() {
+                    scheduler.submit(second, "set", new Runnable() {
+                        public void run() {
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                            written.incrementAndGet();
+                        }
+                    });
+                }
+            });
+        }
+        scheduler.setEnumerated("set");
+        scheduler.awaitCompletion();
+        assertEquals(20, written.get());
+        assertEquals(0, scheduler.getFailureCount());
+    }
+
+    @Test
+    public void testFailuresAreCounted() {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        DownloadScheduler.Stage stage = scheduler.addStage("stage", 1, 1);
+        scheduler.submit(stage, null, new Runnable() {
+            public void run() {
+                throw new RuntimeException("failed");
+            }
+        });
+        scheduler.recordFailure();
+        scheduler.setEnumerated(null);
+        scheduler.awaitCompletion();
+        assertEquals(2, scheduler.getFailureCount());
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testLanesAreServedInTurn() throws InterruptedException {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        DownloadScheduler.Stage stage = scheduler.addStage("stage", 1, 20);
+        DownloadScheduler big = scheduler.newLane("big");
+        DownloadScheduler small = scheduler.newLane("small");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        // Hold the only worker until everything is queued
+        big.submit(stage, null, new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        started.await();
+        for (int i = 0; i < 10; i++) {
+            big.submit(stage, null, record(order, "big"));
+        }
+        small.submit(stage, null, record(order, "small"));
+        small.submit(stage, null, record(order, "small"));
+        release.countDown();
+        big.setEnumerated(null);
+        small.setEnumerated(null);
+        small.awaitCompletion();
+        big.awaitCompletion();
+
+        assertEquals(12, order.size());
+        // Not stuck behind the big lane's backlog
+        assertEquals("small", order.get(1));
+        assertEquals("small", order.get(3));
+        scheduler.awaitCompletion();
+    }
+
+    @Test
+    public void testLaneFailuresCountTowardsTheWhole() {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        DownloadScheduler.Stage stage = scheduler.addStage("stage", 1, 1);
+        DownloadScheduler lane = scheduler.newLane("lane");
+        lane.submit(stage, null, new Runnable() {
+            public void run() {
+                throw new RuntimeException("failed");
+            }
+        });
+        lane.setEnumerated(null);
+        lane.awaitCompletion();
+        // The lane's finished, but the stages are still there for the others
+        lane.submit(stage, null, new Runnable() {
+            public void run() {
+            }
+        });
+        lane.awaitCompletion();
+        scheduler.awaitCompletion();
+        assertEquals(1, lane.getFailureCount());
+        assertEquals(1, scheduler.getFailureCount());
+    }
+
+    @Test
+    public void testCheaperTasksRunFirst() throws InterruptedException {
+        DownloadScheduler scheduler = new DownloadScheduler();
+        DownloadScheduler.Stage stage = scheduler.addStage("stage", 1, 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+        scheduler.submit(stage, null, new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        started.await();
+        scheduler.submit(stage, null, 500, record(order, "video"));
+        scheduler.submit(stage, null, 5, record(order, "photo1"));
+        scheduler.submit(stage, null, 5, record(order, "photo2"));
+        scheduler.submit(stage, null, 1, record(order, "thumbnail"));
+        release.countDown();
+        scheduler.setEnumerated(null);
+        scheduler.awaitCompletion();
+
+        assertEquals(Arrays.asList("thumbnail", "photo1", "photo2", "video"), order);
+    }
+}
@@ -0,0 +1,53 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class TestFlickrDownloader {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("flickomatic", ".state");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static FlickrDownloader downloader(String selectFrom) {
+        Properties properties = new Properties();
+        properties.setProperty("flickomatic.home.savedir.pictures", "pictures");
+        properties.setProperty("flickomatic.home.savedir.metadata", "metadata");
+        properties.setProperty("flickomatic.fulldownload", "false");
+        properties.setProperty("flickomatic.api.key", "key");
+        properties.setProperty("flickomatic.api.secret", "secret");
+        properties.setProperty("flickomatic.api.url", "https://api.flickr.com/services/rest");
+        properties.setProperty("flickomatic.home.authfile", "auth");
+        properties.setProperty("flickomatic.select.from", selectFrom);
+        return new DirectWiring(properties).getBean("flickrDownloader", FlickrDownloader.class);
+    }
+
+    @Test
+    public void testSyncMovesOnOnlyWhenEverythingIsUpToDate() {
+        SyncState syncState = new SyncState(file);
+        FlickrDownloader everything = downloader("");
+        everything.recordSync(syncState, 1000L, 1);
+        assertEquals(-1, syncState.getLastSync());
+        everything.recordSync(syncState, 1000L, 0);
+        assertEquals(1000L, syncState.getLastSync());
+
+        // A selection leaves photos out, so they'd never be looked at again
+        downloader("2020-01-01").recordSync(syncState, 2000L, 0);
+        assertEquals(1000L, syncState.getLastSync());
+    }
+}
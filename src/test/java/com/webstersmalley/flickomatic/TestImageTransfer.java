@@ -0,0 +1,150 @@
+package com.webstersmalley.flickomatic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestImageTransfer {
+    private final byte[] image = new byte[100000];
+    private HttpServer server;
+    private File directory;
+    private ImageTransfer transfer;
+    private String lastRange;
+    // Answers range requests from the start of the image, as a misbehaving server might
+    private volatile boolean ignoreRangeStart = false;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(image);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                lastRange = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                if (lastRange != null && "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-Range"))) {
+                    start = ignoreRangeStart ? 0 : Integer.parseInt(lastRange.substring("bytes=".length(), lastRange.length() - 1));
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (image.length - 1) + "/" + image.length);
+                    exchange.sendResponseHeaders(206, image.length - start);
+                } else {
+                    exchange.sendResponseHeaders(200, image.length);
+                }
+                OutputStream os = exchange.getResponseBody();
+                os.write(image, start, image.length - start);
+                os.close();
+            }
+        });
+        server.start();
+        directory = Files.createTempDirectory("flickomatic").toFile();
+        transfer = new ImageTransfer();
+        transfer.setBufferSize(4096);
+        transfer.setHttpTransport(new HttpTransport());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/1234_abcd_o.jpg";
+    }
+
+    private String sha256(byte[] bytes) throws Exception {
+        return ImageTransfer.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        File output = new File(directory, "1234.jpg");
+        ImageTransfer.Result result = transfer.download(url(), output);
+        assertEquals(image.length, result.getBytes());
+        assertEquals(sha256(image), result.getChecksum());
+        assertArrayEquals(image, Files.readAllBytes(output.toPath()));
+        assertFalse(new File(directory, "1234.jpg.part").exists());
+        assertNull(lastRange);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        File output = new File(directory, "1234.jpg");
+        FileOutputStream part = new FileOutputStream(new File(directory, "1234.jpg.part"));
+        part.write(image, 0, 30000);
+        part.close();
+        FileOutputStream meta = new FileOutputStream(new File(directory, "1234.jpg.part.meta"));
+        meta.write((url() + "\n\"v1\"").getBytes("UTF-8"));
+        meta.close();
+
+        ImageTransfer.Result result = transfer.download(url(), output);
+        assertEquals("bytes=30000-", lastRange);
+        assertEquals(sha256(image), result.getChecksum());
+        assertArrayEquals(image, Files.readAllBytes(output.toPath()));
+        assertFalse(new File(directory, "1234.jpg.part.meta").exists());
+    }
+
+    @Test
+    public void testWrongRangeStartsAgain() throws Exception {
+        File output = new File(directory, "1234.jpg");
+        FileOutputStream part = new FileOutputStream(new File(directory, "1234.jpg.part"));
+        part.write(image, 0, 30000);
+        part.close();
+        FileOutputStream meta = new FileOutputStream(new File(directory, "1234.jpg.part.meta"));
+        meta.write((url() + "\n\"v1\"").getBytes("UTF-8"));
+        meta.close();
+        ignoreRangeStart = true;
+
+        ImageTransfer.Result result = transfer.download(url(), output);
+        assertNull(lastRange);
+        assertEquals(image.length, result.getBytes());
+        assertArrayEquals(image, Files.readAllBytes(output.toPath()));
+    }
+
+    @Test
+    public void testRangeStart() {
+        assertEquals(1000, ImageTransfer.getRangeStart("bytes 1000-1999/2000"));
+        assertEquals(0, ImageTransfer.getRangeStart("bytes 0-1999/*"));
+        assertEquals(-1, ImageTransfer.getRangeStart("bytes */2000"));
+        assertEquals(-1, ImageTransfer.getRangeStart(null));
+    }
+
+    @Test
+    public void testPartialWithoutMetaStartsAgain() throws Exception {
+        File output = new File(directory, "1234.jpg");
+        FileOutputStream part = new FileOutputStream(new File(directory, "1234.jpg.part"));
+        part.write(new byte[50000]);
+        part.close();
+
+        transfer.download(url(), output);
+        assertNull(lastRange);
+        assertArrayEquals(image, Files.readAllBytes(output.toPath()));
+    }
+
+    @Test
+    public void testBandwidthBudget() throws Exception {
+        transfer.setMaxBandwidth(100000);
+        long start = System.nanoTime();
+        transfer.download(url(), new File(directory, "1234.jpg"));
+        // A quarter of a second's worth up front, then 100000 bytes a second
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(600));
+    }
+}
@@ -0,0 +1,28 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestLatencyHistogram {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(99), 0);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertEquals(100, histogram.getCount());
+        // Within the power-of-two bucket
+        double p50 = histogram.getPercentileMillis(50);
+        assertTrue(p50 >= 10 && p50 <= 20);
+        assertTrue(histogram.getPercentileMillis(99) <= 20);
+        assertEquals(1000, histogram.getPercentileMillis(100), 0.001);
+        assertEquals(1000, histogram.getMaxMillis(), 0.001);
+        assertEquals(19.9, histogram.getMeanMillis(), 0.001);
+    }
+}
@@ -0,0 +1,158 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class TestMetadataArchive {
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("flickomatic").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    private MetadataArchive open(long segmentSize) {
+        MetadataArchive archive = new MetadataArchive(folder, segmentSize);
+        archive.open();
+        return archive;
+    }
+
+    private String comments(int i) {
+        return "<rsp stat=\"ok\"><comments photo_id=\"" + i + "\"><comment id=\"" + i + "\">Nice one</comment></comments></rsp>";
+    }
+
+    // Roughly what flickr.photos.getInfo returns
+    private String info(int i) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<rsp stat=\"ok\">\n"
+                + "<photo id=\"" + (10000000000L + i) + "\" secret=\"a1b2c3d4e5\" server=\"7723\" farm=\"8\" dateuploaded=\""
+                + (1381572000 + i) + "\" isfavorite=\"0\" license=\"0\" safety_level=\"0\" rotation=\"0\" originalsecret=\"f6e5d4c3b2\""
+                + " originalformat=\"jpg\" views=\"" + i % 97 + "\" media=\"photo\">\n"
+                + "\t<owner nsid=\"12345678@N00\" username=\"someone\" realname=\"Some One\" location=\"\" iconserver=\"0\" iconfarm=\"0\" path_alias=\"\" />\n"
+                + "\t<title>IMG_" + (4000 + i) + "</title>\n\t<description>Day " + i % 14 + " of the holiday</description>\n"
+                + "\t<visibility ispublic=\"0\" isfriend=\"1\" isfamily=\"1\" />\n"
+                + "\t<dates posted=\"" + (1381572000 + i) + "\" taken=\"2013-10-12 10:" + i % 60 + ":00\" takengranularity=\"0\" takenunknown=\"0\" lastupdate=\""
+                + (1381580000 + i) + "\" />\n"
+                + "\t<permissions permcomment=\"3\" permaddmeta=\"2\" />\n"
+                + "\t<editability cancomment=\"1\" canaddmeta=\"1\" />\n"
+                + "\t<publiceditability cancomment=\"1\" canaddmeta=\"0\" />\n"
+                + "\t<usage candownload=\"1\" canblog=\"1\" canprint=\"1\" canshare=\"1\" />\n"
+                + "\t<comments>0</comments>\n\t<notes />\n\t<people haspeople=\"0\" />\n"
+                + "\t<tags>\n\t\t<tag id=\"1234-" + (10000000000L + i) + "-holiday\" author=\"12345678@N00\" authorname=\"someone\" raw=\"holiday\" machine_tag=\"0\">holiday</tag>\n\t</tags>\n"
+                + "\t<urls>\n\t\t<url type=\"photopage\">https://www.flickr.com/photos/someone/" + (10000000000L + i) + "/</url>\n\t</urls>\n"
+                + "</photo>\n</rsp>\n";
+    }
+
+    private static int gzippedSize(String contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(contents.getBytes("UTF-8"));
+        gzip.close();
+        return bytes.size();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        MetadataArchive archive = open(1 << 20);
+        archive.write("1.comments.xml", comments(1));
+        archive.write("2.comments.xml", comments(2));
+        archive.write("1.comments.xml", comments(3));
+        assertEquals(comments(3), archive.read("1.comments.xml"));
+        assertEquals(comments(2), archive.read("2.comments.xml"));
+        assertNull(archive.read("3.comments.xml"));
+        archive.close();
+
+        archive = open(1 << 20);
+        assertEquals(comments(3), archive.read("1.comments.xml"));
+        assertEquals(2, archive.getNames().size());
+        archive.close();
+    }
+
+    @Test
+    public void testSegmentsAndIndexRebuild() {
+        MetadataArchive archive = open(500);
+        for (int i = 0; i < 50; i++) {
+            archive.write(i + ".comments.xml", comments(i));
+        }
+        archive.close();
+        assertTrue(folder.list().length > 3);
+
+        assertTrue(new File(folder, "metadata.index").delete());
+        archive = open(500);
+        assertEquals(50, archive.getNames().size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(comments(i), archive.read(i + ".comments.xml"));
+        }
+        archive.close();
+    }
+
+    @Test
+    public void testExport() throws IOException {
+        MetadataArchive archive = open(1 << 20);
+        archive.write("1.info.xml", "<photo id=\"1\"/>");
+        archive.write("1.contexts.xml", "<rsp stat=\"ok\"/>");
+        File target = new File(folder, "export");
+        assertTrue(target.mkdir());
+        assertEquals(2, archive.export(target));
+        assertEquals("<photo id=\"1\"/>", new String(Files.readAllBytes(new File(target, "1.info.xml").toPath()), "UTF-8"));
+        archive.close();
+    }
+
+    @Test
+    public void testCompressesBetterThanGzippingEachFile() throws IOException {
+        MetadataArchive archive = open(1 << 20);
+        long raw = 0;
+        long gzipped = 0;
+        for (int i = 0; i < 200; i++) {
+            archive.write(i + ".info.xml", info(i));
+            raw += info(i).length();
+            gzipped += gzippedSize(info(i));
+        }
+        archive.close();
+        long archived = archive.getSize();
+        // Headers and all, against the files on their own: about 4.4 times smaller than raw, 2.3 than gzipped
+        String ratios = "raw " + raw + ", gzipped " + gzipped + ", archived " + archived;
+        assertTrue(ratios, archived * 4 < raw);
+        assertTrue(ratios, archived * 2 < gzipped);
+
+        archive = open(1 << 20);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(info(i), archive.read(i + ".info.xml"));
+        }
+        archive.close();
+    }
+
+    @Test
+    public void testDropsIndexEntriesPastTheEndOfTheSegment() throws IOException {
+        MetadataArchive archive = open(1 << 20);
+        archive.write("1.comments.xml", comments(1));
+        archive.write("2.comments.xml", comments(2));
+        archive.close();
+
+        // As if the index line reached the disk but the record didn't
+        File segment = new File(folder, "metadata-000001.seg");
+        long length = segment.length();
+        Files.write(segment.toPath(), Arrays.copyOf(Files.readAllBytes(segment.toPath()), (int) length - 10));
+        archive = open(1 << 20);
+        assertEquals(comments(1), archive.read("1.comments.xml"));
+        assertNull(archive.read("2.comments.xml"));
+        archive.write("3.comments.xml", comments(3));
+        assertEquals(comments(3), archive.read("3.comments.xml"));
+        archive.close();
+    }
+}
@@ -0,0 +1,61 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestPagedResponseIterator {
+    private final List<String> pagesRequested = Collections.synchronizedList(new ArrayList<String>());
+
+    private Comms pagedComms(final int pages) {
+        return new Comms() {
+            public String sendGetRequest(Map<String, String> params) {
+                String page = params.get("page");
+                pagesRequested.add(page);
+                return "<rsp stat=\"ok\"><photos page=\"" + page + "\" pages=\"" + pages + "\" perpage=\"2\" total=\"" + pages * 2 + "\">"
+                        + "<photo id=\"" + page + "a\"/><photo id=\"" + page + "b\"/></photos></rsp>";
+            }
+        };
+    }
+
+    @Test
+    public void testIteratesOverAllPages() {
+        PagedResponseIterator iterator = new PagedResponseIterator(pagedComms(3),
+                Collections.singletonMap("method", "flickr.photos.getNotInSet"), "photo", 2);
+        List<String> ids = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            ids.add(iterator.next().get("id"));
+        }
+        assertEquals(6, ids.size());
+        assertEquals("1a", ids.get(0));
+        assertEquals("3b", ids.get(5));
+        assertEquals(3, pagesRequested.size());
+        assertEquals(6, iterator.getTotal());
+    }
+
+    @Test
+    public void testSinglePage() {
+        PagedResponseIterator iterator = new PagedResponseIterator(pagedComms(1),
+                Collections.singletonMap("method", "flickr.photosets.getList"), "photo");
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        iterator.next();
+        assertFalse(iterator.hasNext());
+        assertEquals(1, pagesRequested.size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testErrorResponse() {
+        Comms failing = new Comms() {
+            public String sendGetRequest(Map<String, String> params) {
+                return "<rsp stat=\"fail\"><err code=\"1\" msg=\"Photoset not found\"/></rsp>";
+            }
+        };
+        new PagedResponseIterator(failing, Collections.singletonMap("method", "flickr.photosets.getPhotos"), "photo").hasNext();
+    }
+}
@@ -0,0 +1,136 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class TestPhotoManifest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("flickomatic", ".manifest");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRecordAndReload() {
+        PhotoManifest manifest = new PhotoManifest(file);
+        manifest.open();
+        manifest.record("123", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, "abcdef");
+        manifest.record("123", 1000L, "jpg", PhotoManifest.Artifact.INFO, null);
+        manifest.close();
+
+        PhotoManifest reloaded = new PhotoManifest(file);
+        reloaded.open();
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.isCurrent("123", 1000L, PhotoManifest.Artifact.IMAGE));
+        assertTrue(reloaded.isCurrent("123", 999L, PhotoManifest.Artifact.INFO));
+        assertFalse(reloaded.isCurrent("123", 1001L, PhotoManifest.Artifact.IMAGE));
+        assertFalse(reloaded.isCurrent("123", 1000L, PhotoManifest.Artifact.COMMENTS));
+        assertFalse(reloaded.isCurrent("456", 1000L, PhotoManifest.Artifact.IMAGE));
+        assertEquals("abcdef", reloaded.get("123").getChecksum());
+        reloaded.close();
+    }
+
+    @Test
+    public void testCompactsWhileOpen() throws IOException {
+        PhotoManifest manifest = new PhotoManifest(file);
+        manifest.open();
+        manifest.record("456", 1000L, "png", PhotoManifest.Artifact.IMAGE, "fedcba");
+        for (int i = 0; i < 1500; i++) {
+            manifest.record("123", 1000L + i, "jpg", PhotoManifest.Artifact.IMAGE, "abcdef");
+        }
+        // Compacted part way through, and still being appended to
+        assertTrue(Files.readAllLines(file.toPath()).size() < 1000);
+        manifest.record("123", 5000L, "jpg", PhotoManifest.Artifact.INFO, null);
+        manifest.close();
+
+        PhotoManifest reloaded = new PhotoManifest(file);
+        reloaded.open();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.isCurrent("123", 5000L, PhotoManifest.Artifact.INFO));
+        assertEquals("fedcba", reloaded.get("456").getChecksum());
+        reloaded.close();
+    }
+
+    @Test
+    public void testNewVersionDropsOldArtifacts() {
+        PhotoManifest manifest = new PhotoManifest(file);
+        manifest.open();
+        manifest.record("123", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, "abcdef");
+        manifest.record("123", 2000L, "jpg", PhotoManifest.Artifact.INFO, null);
+        assertFalse(manifest.isCurrent("123", 2000L, PhotoManifest.Artifact.IMAGE));
+        assertTrue(manifest.isCurrent("123", 2000L, PhotoManifest.Artifact.INFO));
+        assertNull(manifest.get("123").getChecksum());
+        manifest.close();
+    }
+
+    @Test
+    public void testIgnoresOlderVersion() {
+        PhotoManifest manifest = new PhotoManifest(file);
+        manifest.open();
+        manifest.record("123", 2000L, "jpg", PhotoManifest.Artifact.IMAGE, "abcdef");
+        manifest.record("123", 1000L, "jpg", PhotoManifest.Artifact.INFO, null);
+        assertEquals(2000L, manifest.get("123").getLastUpdate());
+        assertTrue(manifest.isCurrent("123", 2000L, PhotoManifest.Artifact.IMAGE));
+        assertFalse(manifest.isCurrent("123", 2000L, PhotoManifest.Artifact.INFO));
+        manifest.close();
+
+        PhotoManifest reloaded = new PhotoManifest(file);
+        reloaded.open();
+        assertEquals(2000L, reloaded.get("123").getLastUpdate());
+        assertEquals("abcdef", reloaded.get("123").getChecksum());
+        reloaded.close();
+    }
+
+    @Test
+    public void testSizeAndInvalidate() {
+        PhotoManifest manifest = new PhotoManifest(file);
+        manifest.open();
+        manifest.record("123", 1000L, "jpg", PhotoManifest.Artifact.IMAGE, "abcdef", 4096);
+        manifest.record("123", 1000L, "jpg", PhotoManifest.Artifact.INFO, null);
+        assertTrue(manifest.invalidate("123", PhotoManifest.Artifact.IMAGE));
+        assertFalse(manifest.invalidate("123", PhotoManifest.Artifact.IMAGE));
+        manifest.close();
+
+        PhotoManifest reloaded = new PhotoManifest(file);
+        reloaded.open();
+        assertFalse(reloaded.isCurrent("123", 1000L, PhotoManifest.Artifact.IMAGE));
+        assertTrue(reloaded.isCurrent("123", 1000L, PhotoManifest.Artifact.INFO));
+        assertEquals("abcdef", reloaded.get("123").getChecksum());
+        assertEquals(4096, reloaded.get("123").getSize());
+        reloaded.close();
+    }
+
+    @Test
+    public void testIgnoresTruncatedLine() throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        os.write("123\t1000\tjpg\tabcdef\timage,info\n456\t10".getBytes("UTF-8"));
+        os.close();
+        PhotoManifest manifest = new PhotoManifest(file);
+        manifest.open();
+        assertEquals(1, manifest.size());
+        assertTrue(manifest.isCurrent("123", 1000L, PhotoManifest.Artifact.INFO));
+        manifest.record("789", 1000L, "png", PhotoManifest.Artifact.IMAGE, null);
+        manifest.close();
+
+        PhotoManifest reloaded = new PhotoManifest(file);
+        reloaded.open();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.isCurrent("789", 1000L, PhotoManifest.Artifact.IMAGE));
+        reloaded.close();
+    }
+}
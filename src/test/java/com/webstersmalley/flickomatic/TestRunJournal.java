@@ -0,0 +1,122 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestRunJournal {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("flickomatic", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void recordUnfinishedRun() {
+        RunJournal journal = new RunJournal(file, "all");
+        journal.open(true);
+        assertFalse(journal.isResumed());
+        journal.setListed("1");
+        journal.setListed("2");
+        journal.allSetsListed();
+        journal.photoQueued("100", 1000L);
+        journal.setDone("1");
+        journal.photoQueued("200", -1);
+        journal.close();
+    }
+
+    @Test
+    public void testResume() {
+        recordUnfinishedRun();
+
+        RunJournal journal = new RunJournal(file, "all");
+        journal.open(true);
+        assertTrue(journal.isResumed());
+        assertTrue(journal.isListed());
+        assertEquals(Arrays.asList("1", "2"), journal.getSets());
+        assertTrue(journal.isDone("1"));
+        assertFalse(journal.isDone("2"));
+        assertFalse(journal.isDone(null));
+        assertEquals(Long.valueOf(1000L), journal.getQueued().get("100"));
+        assertEquals(Long.valueOf(-1L), journal.getQueued().get("200"));
+
+        // Records from the resumed run add to what was there
+        journal.setDone(null);
+        journal.close();
+        journal = new RunJournal(file, "all");
+        journal.open(true);
+        assertTrue(journal.isDone("1"));
+        assertTrue(journal.isDone(null));
+        journal.close();
+    }
+
+    @Test
+    public void testOnlyResumedByTheSameKindOfRun() {
+        recordUnfinishedRun();
+
+        RunJournal journal = new RunJournal(file, "set 1");
+        journal.open(true);
+        assertFalse(journal.isResumed());
+        assertFalse(journal.isDone("1"));
+        journal.close();
+
+        // ...and the other run's journal is gone
+        journal = new RunJournal(file, "all");
+        journal.open(true);
+        assertFalse(journal.isResumed());
+        journal.close();
+    }
+
+    @Test
+    public void testNotResumedWhenTurnedOff() {
+        recordUnfinishedRun();
+
+        RunJournal journal = new RunJournal(file, "all");
+        journal.open(false);
+        assertFalse(journal.isResumed());
+        assertTrue(journal.getQueued().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testFinishDeletesTheJournal() {
+        RunJournal journal = new RunJournal(file, "all");
+        journal.open(true);
+        journal.setDone("1");
+        journal.finish();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testTruncatedLinesAreIgnored() throws IOException {
+        recordUnfinishedRun();
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.write("queued 300".getBytes("UTF-8"));
+        fos.close();
+
+        RunJournal journal = new RunJournal(file, "all");
+        journal.open(true);
+        assertTrue(journal.isResumed());
+        assertFalse(journal.getQueued().containsKey("300"));
+        journal.setDone("2");
+        journal.close();
+
+        journal = new RunJournal(file, "all");
+        journal.open(true);
+        assertTrue(journal.isDone("2"));
+        journal.close();
+    }
+}
@@ -0,0 +1,90 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestSelection {
+    private static Map<String, String> photo(String... attributes) {
+        Map<String, String> photo = new HashMap<String, String>();
+        for (int i = 0; i < attributes.length; i += 2) {
+            photo.put(attributes[i], attributes[i + 1]);
+        }
+        return photo;
+    }
+
+    @Test
+    public void testSearchParams() {
+        Selection selection = new Selection("2020-01-01", "2020-01-31", "uploaded", "Beach, Holiday", "videos", "", 0, "newest");
+        assertTrue(selection.isSearch());
+        assertFalse(selection.isEverything());
+        Map<String, String> params = new HashMap<String, String>();
+        selection.addSearchParams(params);
+        assertEquals("me", params.get("user_id"));
+        assertEquals("beach,holiday", params.get("tags"));
+        assertEquals("any", params.get("tag_mode"));
+        assertEquals("1577836800", params.get("min_upload_date"));
+        assertEquals("1580515199", params.get("max_upload_date"));
+        assertEquals("videos", params.get("media"));
+        assertEquals("date-posted-desc", params.get("sort"));
+        assertEquals(",date_upload,tags", selection.getExtras());
+    }
+
+    @Test
+    public void testFavoritesSearchIsNotSortedByInterestingness() {
+        Selection selection = new Selection("2020-01-01", "", "uploaded", "", "all", "", 0, "favorites");
+        Map<String, String> params = new HashMap<String, String>();
+        selection.addSearchParams(params);
+        assertNull(params.get("sort"));
+        assertTrue(selection.getExtras().contains("count_faves"));
+    }
+
+    @Test
+    public void testSetsAreListedNotSearched() {
+        Selection selection = new Selection("2020-01-01", "", "taken", "", "photos", "1,2", 0, "size");
+        assertFalse(selection.isSearch());
+        Map<String, String> params = new HashMap<String, String>();
+        selection.addListParams(params, false);
+        assertEquals("photos", params.get("media"));
+        assertNull(params.get("min_taken_date"));
+        selection.addListParams(params, true);
+        assertEquals("2020-01-01 00:00:00", params.get("min_taken_date"));
+    }
+
+    @Test
+    public void testAcceptsWhatTheListingCouldNotFilter() {
+        Selection selection = new Selection("2020-01-01", "2020-01-31", "taken", "beach", "photos", "1", 0, "size");
+        assertTrue(selection.accepts(photo("datetaken", "2020-01-31 23:00:00", "tags", "sea beach", "media", "photo")));
+        assertFalse(selection.accepts(photo("datetaken", "2020-02-01 00:00:00", "tags", "beach")));
+        assertFalse(selection.accepts(photo("datetaken", "2020-01-10 00:00:00", "tags", "mountain")));
+        assertFalse(selection.accepts(photo("media", "video")));
+        // Nothing to go on: let it through
+        assertTrue(selection.accepts(photo("id", "123")));
+    }
+
+    @Test
+    public void testOrder() {
+        Selection newest = new Selection("", "", "uploaded", "", "all", "", 0, "newest");
+        assertTrue(newest.isEverything());
+        assertTrue(newest.getCost(photo("dateupload", "2000"), 10) < newest.getCost(photo("dateupload", "1000"), 1));
+        Selection favorites = new Selection("", "", "uploaded", "", "all", "", 0, "favorites");
+        assertTrue(favorites.getCost(photo("count_faves", "12"), 10) < favorites.getCost(photo("count_faves", "3"), 1));
+        assertEquals(10, Selection.all().getCost(photo("dateupload", "2000"), 10));
+    }
+
+    @Test
+    public void testMaxSize() {
+        Selection selection = new Selection("", "", "uploaded", "", "all", "", 1000, "size");
+        assertTrue(selection.acceptsSize(1000));
+        assertFalse(selection.acceptsSize(1001));
+        assertTrue(Selection.all().acceptsSize(Long.MAX_VALUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBadDate() {
+        new Selection("01/02/2020", "", "uploaded", "", "all", "", 0, "size");
+    }
+}
@@ -0,0 +1,47 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSizeEstimator {
+    private static PhotoInfo photo(String id, String media, long pixels) {
+        PhotoInfo photoInfo = new PhotoInfo(id, "1", "2", "abcd", "jpg");
+        photoInfo.setMedia(media);
+        photoInfo.setPixels(pixels);
+        return photoInfo;
+    }
+
+    @Test
+    public void testVideosAreExpectedToBeLarger() {
+        SizeEstimator estimator = new SizeEstimator();
+        assertTrue(estimator.estimate(photo("1", "video", -1), null) > estimator.estimate(photo("2", "photo", -1), null));
+    }
+
+    @Test
+    public void testLearnsBytesPerPixel() {
+        SizeEstimator estimator = new SizeEstimator();
+        estimator.record(photo("1", "photo", 1000000), 500000);
+        assertEquals(2000000, estimator.estimate(photo("2", "photo", 4000000), null));
+        // Without dimensions, the average size
+        assertEquals(500000, estimator.estimate(photo("3", "photo", -1), null));
+    }
+
+    @Test
+    public void testExistingCopyWins() throws IOException {
+        File file = File.createTempFile("flickomatic", ".jpg");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write(new byte[1234]);
+            fos.close();
+            assertEquals(1234, new SizeEstimator().estimate(photo("1", "video", -1), file));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.webstersmalley.flickomatic;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestSyncDaemon {
+    private final List<Boolean> polls = new ArrayList<Boolean>();
+    private final CountDownLatch polled = new CountDownLatch(1);
+    private volatile int failures = 0;
+
+    // Records the polls instead of syncing
+    private final FlickrDownloader downloader = new FlickrDownloader() {
+        public int synchroniseChanges(boolean enumerateAll) {
+            polls.add(enumerateAll);
+            polled.countDown();
+            return failures;
+        }
+    };
+
+    @Test
+    public void testJitter() {
+        SyncDaemon daemon = new SyncDaemon(downloader, 100, 0.1, 0, 0);
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = daemon.getNextDelayMillis();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(min >= 90000);
+        assertTrue(max <= 110000);
+        assertTrue(max > min);
+    }
+
+    @Test
+    public void testPollsForChangesOnly() {
+        SyncDaemon daemon = new SyncDaemon(downloader, 100, 0, 0, 0);
+        daemon.poll();
+        daemon.poll();
+        assertEquals(2, polls.size());
+        assertFalse(polls.get(0));
+        assertFalse(polls.get(1));
+    }
+
+    @Test
+    public void testUnhealthyWhilePollsFail() {
+        SyncDaemon daemon = new SyncDaemon(downloader, 0, 0, 0, 0);
+        failures = 2;
+        daemon.poll();
+        assertNotNull(daemon.getProblem());
+        assertTrue(daemon.getHealthJson().contains("\"status\":\"unhealthy\""));
+        failures = 0;
+        daemon.poll();
+        assertNull(daemon.getProblem(Instant.now().minusSeconds(1)));
+    }
+
+    @Test
+    public void testUnhealthyWithoutRecentSuccess() {
+        SyncDaemon daemon = new SyncDaemon(downloader, 100, 0, 0, 0);
+        assertNull(daemon.getProblem());
+        assertEquals("{\"status\":\"ok\"}", daemon.getHealthJson());
+        // Three intervals without a poll at all
+        assertNotNull(daemon.getProblem(Instant.now().plusSeconds(301)));
+        daemon.poll();
+        assertNull(daemon.getProblem(Instant.now().plusSeconds(299)));
+        assertNotNull(daemon.getProblem(Instant.now().plusSeconds(301)));
+    }
+
+    @Test
+    public void testUnhealthyWhilePollIsStuck() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FlickrDownloader stuck = new FlickrDownloader() {
+            public int synchroniseChanges(boolean enumerateAll) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        };
+        final SyncDaemon daemon = new SyncDaemon(stuck, 100, 0, 0, 0);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                daemon.poll();
+            }
+        });
+        thread.start();
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertNull(daemon.getProblem());
+            String problem = daemon.getProblem(Instant.now().plusSeconds(301));
+            assertTrue(problem, problem.startsWith("poll running since"));
+            assertTrue(problem, problem.contains("no progress"));
+        } finally {
+            release.countDown();
+            thread.join(10000);
+        }
+        assertNull(daemon.getProblem());
+    }
+
+    @Test
+    public void testHealthyWhileLongPollProgresses() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        // Keeps making API calls until released
+        FlickrDownloader busy = new FlickrDownloader() {
+            public int synchroniseChanges(boolean enumerateAll) {
+                try {
+                    while (!release.await(100, TimeUnit.MILLISECONDS)) {
+                        Metrics.get().recordApiCall("flickr.test", 1000);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        };
+        final SyncDaemon daemon = new SyncDaemon(busy, 1, 0, 0, 0);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                daemon.poll();
+            }
+        });
+        thread.start();
+        try {
+            // Longer than three intervals
+            Thread.sleep(3500);
+            assertNull(daemon.getProblem());
+        } finally {
+            release.countDown();
+            thread.join(10000);
+        }
+        assertNull(daemon.getProblem());
+    }
+
+    private static String get(String url, int expectedStatus) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        assertEquals(expectedStatus, connection.getResponseCode());
+        InputStream is = connection.getInputStream();
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testServesHealthAndProgress() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        final SyncDaemon daemon = new SyncDaemon(downloader, 3600, 0, 0, port);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                daemon.run();
+            }
+        });
+        thread.start();
+        try {
+            assertTrue(polled.await(10, TimeUnit.SECONDS));
+            assertEquals("{\"status\":\"ok\"}", get("http://localhost:" + port + "/health", 200));
+            String progress = get("http://localhost:" + port + "/progress", 200);
+            assertTrue(progress, progress.contains("\"polls\":1"));
+            assertTrue(progress, progress.contains("\"downloaded\":{"));
+        } finally {
+            daemon.stop();
+            thread.join(10000);
+        }
+        assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,173 @@
+package com.webstersmalley.flickomatic;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestThrottlingComms {
+    private final static Map<String, String> PARAMS = Collections.singletonMap("method", "flickr.photos.getInfo");
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private Comms failingComms(final int failures, final CommsException exception) {
+        return new Comms() {
+            public String sendGetRequest(Map<String, String> params) {
+                if (calls.incrementAndGet() <= failures) {
+                    throw exception;
+                }
+                return "<rsp stat=\"ok\"/>";
+            }
+        };
+    }
+
+    private ThrottlingComms throttlingComms(Comms delegate) {
+        ThrottlingComms comms = new ThrottlingComms(delegate);
+        comms.setMaxRate(1000);
+        comms.setBaseDelay(1);
+        comms.setMaxRetries(3);
+        return comms;
+    }
+
+    @Test
+    public void testRetriesRetryableFailures() {
+        ThrottlingComms comms = throttlingComms(failingComms(2, new CommsException("HTTP 502", null, 502, true, false, -1)));
+        assertEquals("<rsp stat=\"ok\"/>", comms.sendGetRequest(PARAMS));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() {
+        ThrottlingComms comms = throttlingComms(failingComms(10, new CommsException("HTTP 502", null, 502, true, false, -1)));
+        try {
+            comms.sendGetRequest(PARAMS);
+            fail("Expected a CommsException");
+        } catch (CommsException e) {
+            assertEquals(4, calls.get());
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryPermanentFailures() {
+        ThrottlingComms comms = throttlingComms(failingComms(1, new CommsException("HTTP 404", null, 404, false, false, -1)));
+        try {
+            comms.sendGetRequest(PARAMS);
+            fail("Expected a CommsException");
+        } catch (CommsException e) {
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testThrottlingHalvesRateAndConcurrency() {
+        ThrottlingComms comms = throttlingComms(failingComms(1, new CommsException("HTTP 429", null, 429, true, true, -1)));
+        comms.sendGetRequest(PARAMS);
+        assertEquals(500.0, comms.getCurrentRate(), 0.001);
+        assertEquals(4, comms.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testRetriesServiceUnavailableResponse() {
+        Comms delegate = new Comms() {
+            public String sendGetRequest(Map<String, String> params) {
+                if (calls.incrementAndGet() == 1) {
+                    return "<rsp stat=\"fail\"><err code=\"105\" msg=\"Service currently unavailable\"/></rsp>";
+                }
+                return "<rsp stat=\"ok\"/>";
+            }
+        };
+        assertEquals("<rsp stat=\"ok\"/>", throttlingComms(delegate).sendGetRequest(PARAMS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testAsyncRequestsRetryAndFail() {
+        ThrottlingComms comms = throttlingComms(failingComms(2, new CommsException("HTTP 502", null, 502, true, false, -1)));
+        assertEquals("<rsp stat=\"ok\"/>", AsyncComms.await(comms.sendGetRequestAsync(PARAMS)));
+        assertEquals(3, calls.get());
+
+        calls.set(0);
+        comms = throttlingComms(failingComms(1, new CommsException("HTTP 404", null, 404, false, false, -1)));
+        try {
+            AsyncComms.await(comms.sendGetRequestAsync(PARAMS));
+            fail("Expected a CommsException");
+        } catch (CommsException e) {
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testAsyncRequestsThatFailBeforeSending() throws Exception {
+        // Throws rather than returning a failed future, as signing a request can
+        AsyncComms throwing = new AsyncComms() {
+            public String sendGetRequest(Map<String, String> params) {
+                throw new UnsupportedOperationException();
+            }
+
+            public CompletableFuture<String> sendGetRequestAsync(Map<String, String> params) {
+                throw new UnsupportedOperationException();
+            }
+
+            public <T> CompletableFuture<T> sendGetRequestAsync(Map<String, String> params, BodyParser<T> parser) {
+                int call = calls.incrementAndGet();
+                if (call <= 2) {
+                    throw new CommsException("Connection refused", null, -1, true, false, -1);
+                } else if (call == 3) {
+                    try {
+                        return CompletableFuture.completedFuture(parser.parse(new ByteArrayInputStream(new byte[0])));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                throw new IllegalStateException("Bad consumer key");
+            }
+        };
+        AsyncComms.BodyParser<String> parser = new AsyncComms.BodyParser<String>() {
+            public String parse(InputStream body) {
+                return "parsed";
+            }
+        };
+        ThrottlingComms comms = throttlingComms(throwing);
+        // So a slot that wasn't given back would hold up the next request
+        comms.setMaxConcurrent(1);
+        assertEquals("parsed", comms.sendGetRequestAsync(PARAMS, parser).get(10, TimeUnit.SECONDS));
+        assertEquals(3, calls.get());
+        try {
+            comms.sendGetRequestAsync(PARAMS, parser).get(10, TimeUnit.SECONDS);
+            fail("Expected the request to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    public void testBackoffIsBounded() {
+        ThrottlingComms comms = new ThrottlingComms();
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long backoff = comms.getBackoff(attempt, -1);
+            assertTrue(backoff >= 0 && backoff <= 60000);
+        }
+        assertEquals(30000, comms.getBackoff(0, 30));
+    }
+
+    @Test
+    public void testTokenBucketPacesRequests() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            bucket.acquire();
+        }
+        // The first token is free, the other ten take 10ms each
+        assertTrue(System.nanoTime() - start >= 90000000L);
+    }
+}
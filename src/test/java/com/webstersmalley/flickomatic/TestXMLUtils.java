@@ -33,4 +33,41 @@ public class TestXMLUtils {
         assertEquals("first", list.get(0).get("id"));
         assertEquals("second", list.get(1).get("id"));
     }
+
+    @Test
+    public void testGetAttributesOfElements() {
+        List<Map<String, String>> list = XMLUtils.getAttributesOfElements(sampleXML, "inner");
+        assertEquals(2, list.size());
+        assertEquals("first", list.get(0).get("id"));
+        assertEquals("second", list.get(1).get("id"));
+        assertEquals(XMLUtils.getListOfAttributesFromElements(XMLUtils.getDocumentFromString(sampleXML), "//inner"), list);
+    }
+
+    @Test
+    public void testGetPhotoInfo() {
+        String info = "<?xml version=\"1.0\" encoding=\"utf-8\" ?><rsp stat=\"ok\">"
+                + "<photo id=\"123\" secret=\"abc\" server=\"7\" farm=\"8\" originalsecret=\"def\" originalformat=\"jpg\">"
+                + "<owner nsid=\"1@N00\"/><title>Title</title><dates posted=\"1\" taken=\"2013-10-12 10:00:00\" lastupdate=\"1381572000\"/>"
+                + "</photo></rsp>";
+        PhotoInfo photoInfo = XMLUtils.getPhotoInfo(info);
+        assertEquals("123", photoInfo.getId());
+        assertEquals("8", photoInfo.getFarm());
+        assertEquals("7", photoInfo.getServer());
+        assertEquals("def", photoInfo.getOriginalSecret());
+        assertEquals("jpg", photoInfo.getOriginalFormat());
+        assertEquals(1381572000L, photoInfo.getLastUpdate());
+        assertEquals("http://farm8.staticflickr.com/7/123_def_o.jpg", photoInfo.getOriginalUrl());
+    }
+
+    @Test
+    public void testNodeToString() {
+        Document document = XMLUtils.getDocumentFromString(sampleXML);
+        String first = XMLUtils.nodeToString(document.getElementsByTagName("inner").item(1));
+        assertTrue(first.contains("<inner id=\"second\"/>"));
+        assertFalse(first.contains("first"));
+        // The transformer is reused, so a second call mustn't be affected by the first
+        assertEquals(first, XMLUtils.nodeToString(document.getElementsByTagName("inner").item(1)));
+        List<Map<String, String>> reparsed = XMLUtils.getListOfAttributesFromElements(XMLUtils.nodeToString(document.getDocumentElement()), "//inner");
+        assertEquals(2, reparsed.size());
+    }
 }